@@ -1,9 +1,9 @@
 import java.io.*;
 import java.net.http.*;
 import java.nio.charset.StandardCharsets;
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.Stream;
 
 import com.sun.net.httpserver.*;
 
@@ -13,6 +13,7 @@ import utils.*;
 
 import static utils.utils.buildHttpRequest;
 import static utils.utils.sendError;
+import static utils.utils.sendTooManyRequests;
 
 /**
  * 处理聊天补全请求的处理器
@@ -20,8 +21,11 @@ import static utils.utils.sendError;
 public class CompletionHandler implements HttpHandler {
     // 支持的模型列表
     public final String[] models = {"gpt-4o", "gpt-4o-mini", "claude","claude-3-haiku","claude-3-5-sonnet"};
-    private final HttpClient httpClient = HttpClient.newHttpClient();
-    private final ExecutorService executor = Executors.newFixedThreadPool(10);
+    private static final String METRICS_HANDLER = "chat_completions";
+    private static final Map<String, String> SSE_HEADERS = Map.of(
+            "Content-Type", "text/event-stream; charset=utf-8",
+            "Cache-Control", "no-cache",
+            "Connection", "keep-alive");
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
@@ -57,747 +61,492 @@ public class CompletionHandler implements HttpHandler {
             return;
         }
 
-        // 异步处理请求
-        CompletableFuture.runAsync(() -> {
-            try {
-
-                //读取请求头
-                Headers requestHeaders = exchange.getRequestHeaders();
-                String Authorization = requestHeaders.getFirst("Authorization");
-                //截取Bearer 后的内容
-                try{
-                    String ReceivedToken = Authorization.substring(7);
-
-                }catch (StringIndexOutOfBoundsException e){
+        // HttpServer 已在 ServerExecutor 的线程上调用 handle，直接在当前线程处理，不再提交一次任务
+        processCompletion(exchange);
+    }
 
-                    e.printStackTrace();
+    /**
+     * 处理一个 POST 补全请求，所有异常都转换为错误响应
+     *
+     * @param exchange 当前的 HttpExchange 对象
+     */
+    private void processCompletion(HttpExchange exchange) {
+        RequestMetrics metrics = new RequestMetrics(METRICS_HANDLER);
+        ApiKeys.Lease lease = null;
+        try {
+            // 校验 Authorization 中的 API Key 并占用该 Key 的配额，未配置 auth.keys.file 时不校验
+            lease = ApiKeys.acquire(exchange);
+
+            // 读取请求体
+            JSONObject requestJson = RequestBodyReader.readJson(exchange);
+
+            JSONArray messages = requestJson.optJSONArray("messages");
+            double temperature = requestJson.optDouble("temperature", 0.6);
+            int maxTokens = requestJson.optInt("max_tokens", 8000);
+            String model = requestJson.optString("model", "gpt-4o");
+            boolean isStream = requestJson.optBoolean("stream", false);
+            boolean hasImage = false;
+
+            if (requestJson.has("messages")) {
+                messages = requestJson.getJSONArray("messages");
+                hasImage = MessageNormalizer.normalize(messages, Main.baseURL);
+
+                if (messages.isEmpty()) {
+                    sendError(exchange, "所有消息的内容均为空。");
+                    return;
                 }
+            }
 
-
-                // 读取请求体
-                InputStream is = exchange.getRequestBody();
-                String requestBody = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))
-                        .lines()
-                        .reduce("", (acc, line) -> acc + line);
-
-                JSONObject requestJson = new JSONObject(requestBody);
-
-                StringBuilder contentBuilder = new StringBuilder();
-                JSONArray messages = requestJson.optJSONArray("messages");
-                double temperature = requestJson.optDouble("temperature", 0.6);
-                int maxTokens = requestJson.optInt("max_tokens", 8000);
-                String model = requestJson.optString("model", "gpt-4o");
-                boolean isStream = requestJson.optBoolean("stream", false);
-                boolean hasImage = false;
-                String imageFilename = null;
-                String imageURL = null;
-
-                if (requestJson.has("messages")) {
-                    messages = requestJson.getJSONArray("messages");
-                    Iterator<Object> iterator = messages.iterator();
-                    while (iterator.hasNext()) {
-                        JSONObject message = (JSONObject) iterator.next();
-                        if (message.has("content")) {
-                            Object contentObj = message.get("content");
-                            if (contentObj instanceof JSONArray contentArray) {
-                                for (int j = 0; j < contentArray.length(); j++) {
-                                    JSONObject contentItem = contentArray.getJSONObject(j);
-                                    if (contentItem.has("type")) {
-                                        String type = contentItem.getString("type");
-                                        if (type.equals("text") && contentItem.has("text")) {
-                                            // 处理文本内容
-                                            String text = contentItem.getString("text");
-                                            contentBuilder.append(text);
-                                            if (j < contentArray.length() - 1) {
-                                                contentBuilder.append(" ");
-                                            }
-                                        } else if (type.equals("image_url") && contentItem.has("image_url")) {
-                                            // 处理图片内容
-                                            JSONObject imageUrlObj = contentItem.getJSONObject("image_url");
-                                            String dataUrl = imageUrlObj.getString("url");
-                                            if (dataUrl.startsWith("data:image/")) {
-                                                // 处理 base64 编码的图片
-                                                String base64Data = dataUrl.substring(dataUrl.indexOf("base64,") + 7);
-                                                byte[] imageBytes = java.util.Base64.getDecoder().decode(base64Data);
-                                                // 生成 UUID 文件名
-                                                String uuid = UUID.randomUUID().toString();
-                                                String extension = "jpg"; // 默认扩展名
-                                                if (dataUrl.startsWith("data:image/png")) {
-                                                    extension = "png";
-                                                } else if (dataUrl.startsWith("data:image/jpeg") || dataUrl.startsWith("data:image/jpg")) {
-                                                    extension = "jpg";
-                                                }
-                                                //按时间搜索一分钟前图片并删除
-                                                //删除Image目录所有文件
-                                                File imagesDir = new File("images");
-//                                                if (imagesDir.exists()) {
-//                                                    File[] files = imagesDir.listFiles();
-//                                                    //按时间搜索
-//                                                    for (File file : files) {
-//                                                        if (file.isFile()) {
-//                                                            long time = file.lastModified();
-//                                                            long now = System.currentTimeMillis();
-//                                                            if (now - time > 60000) {
-//                                                                file.delete();
-//                                                            }
-//                                                        }
-//                                                    }
-//                                                }
-                                                imageFilename = uuid + "." + extension;
-                                                // 保存图片到 images 目录
-
-                                                if (!imagesDir.exists()) {
-                                                    imagesDir.mkdir();
-                                                }
-                                                File imageFile = new File(imagesDir, imageFilename);
-                                                try (FileOutputStream fos = new FileOutputStream(imageFile)) {
-                                                    fos.write(imageBytes);
-                                                }
-                                                // 构建可访问的 URL
-                                                imageURL = Main.baseURL + "/images/" + imageFilename;
-                                                hasImage = true;
-                                                System.out.println("图片已保存: " + imageFilename + ", 可访问 URL: " + imageURL);
-
-                                                // 在消息中添加 images 字段
-                                                JSONArray imagesArray = new JSONArray();
-                                                JSONObject imageObj = new JSONObject();
-                                                imageObj.put("data", imageURL);
-                                                imagesArray.put(imageObj);
-                                                message.put("images", imagesArray);
-                                            } else {
-                                                // 处理标准 URL 的图片
-                                                imageURL = dataUrl;
-                                                hasImage = true;
-                                                System.out.println("接收到标准图片 URL: " + imageURL);
-
-                                                // 在消息中添加 images 字段
-                                                JSONArray imagesArray = new JSONArray();
-                                                JSONObject imageObj = new JSONObject();
-                                                imageObj.put("data", imageURL);
-                                                imagesArray.put(imageObj);
-                                                message.put("images", imagesArray);
-                                            }
-                                        }
-                                    }
-                                }
-
-                                // 处理完 contentArray 后，设置消息的 content 字段
-                                String extractedContent = contentBuilder.toString().trim();
-                                if (extractedContent.isEmpty() && !hasImage) {
-                                    // 如果内容为空且没有图片，则移除该消息
-                                    iterator.remove();
-                                    System.out.println("移除内容为空的消息。");
-                                } else {
-                                    // 否则，更新内容
-                                    message.put("content", extractedContent);
-                                    System.out.println("提取的内容: " + extractedContent);
-                                }
-                            } else if (contentObj instanceof String) {
-                                // 处理纯文本内容
-                                String contentStr = ((String) contentObj).trim();
-                                if (contentStr.isEmpty()) {
-                                    iterator.remove();
-                                    System.out.println("移除内容为空的消息。");
-                                } else {
-                                    message.put("content", contentStr);
-                                    System.out.println("保留的内容: " + contentStr);
-                                }
-                            } else {
-                                // 移除不符合预期类型的消息
-                                iterator.remove();
-                                System.out.println("移除非预期类型的消息。");
-                            }
-                        }
-                    }
-
-                    if (messages.isEmpty()) {
-                        sendError(exchange, "所有消息的内容均为空。");
-                        return;
-                    }
+            // 验证模型是否有效，如果无效则回退到默认模型
+            boolean modelValid = false;
+            for (String m : models) {
+                if (model.equals(m)) {
+                    modelValid = true;
+                    break;
                 }
+            }
+            if (!modelValid) {
+                model = "gpt-4o";
+            }
+            metrics.model(model, isStream);
 
-                // 验证模型是否有效，如果无效则回退到默认模型
-                boolean modelValid = false;
-                for (String m : models) {
-                    if (model.equals(m)) {
-                        modelValid = true;
-                        break;
-                    }
-                }
-                if (!modelValid) {
-                    model = "gpt-4o";
-                }
+            // 开启上下文裁剪时，历史超过该模型的 token 预算则移除最早的几轮对话，裁剪时已统计了 token 数
+            int contextTokens = ContextTrimmer.ENABLED && messages != null ? ContextTrimmer.trim(model, messages) : -1;
+            if (hasImage && contextTokens >= 0) {
+                // 带图片的消息可能已被移除，此时不再上传图片来源或走 vision 转换
+                hasImage = MessageNormalizer.hasImage(messages);
+            }
 
-                // 构建新的请求 JSON，替换相关内容
-                JSONObject newRequestJson = new JSONObject();
-                newRequestJson.put("function_image_gen", false);
-                newRequestJson.put("function_web_search", true);
-                newRequestJson.put("max_tokens", maxTokens);
-                newRequestJson.put("model", model);
-                if (hasImage) {
-                    newRequestJson.put("source", "chat/image_upload");
+            // 按 BPE 词表统计 messages 的 token 数；流式请求只在 stream_options.include_usage 为 true 时返回 usage，
+            // 启用 API Key 时总是统计，记入该 Key 的用量，与返回给客户端的 usage 一致
+            JSONObject streamOptions = requestJson.optJSONObject("stream_options");
+            boolean includeUsage = isStream && streamOptions != null && streamOptions.optBoolean("include_usage", false);
+            int promptTokens = -1;
+            if (!isStream || includeUsage || lease.metered()) {
+                promptTokens = contextTokens >= 0 ? contextTokens : TokenCounter.countMessages(messages);
+            }
+            // 流式请求转发时统计回答的 token 数，include_usage 为 true 时在 [DONE] 之前写出 usage chunk
+            SseTransformer.Usage usage = isStream && promptTokens >= 0
+                    ? new SseTransformer.Usage(model, promptTokens, includeUsage) : null;
+
+            // 构建新的请求 JSON，替换相关内容
+            JSONObject newRequestJson = MessageNormalizer.buildUpstreamRequest(model, maxTokens, temperature, hasImage, messages);
+
+            String modifiedRequestBody = Json.toString(newRequestJson);
+            // 请求体与回答的跟踪默认关闭，开启后按 log.sample.rate 抽样
+            boolean traced = (Log.TRACE_REQUESTS || Log.TRACE_TOKENS) && Log.sampled();
+            if (Log.TRACE_REQUESTS && traced) {
+                Log.info("修改后的请求 JSON: " + modifiedRequestBody);
+            }
+            boolean traceTokens = Log.TRACE_TOKENS && traced;
+
+            // temperature 为 0 的请求可以复用缓存的回答，相同的并发请求只访问一次上游
+            CompletableFuture<String> cacheSink = null;
+            if (!hasImage && CompletionCache.eligible(newRequestJson)) {
+                CompletionCache.Lookup lookup = CompletionCache.lookup(newRequestJson);
+                if (lookup.leader()) {
+                    cacheSink = lookup.sink();
                 } else {
-                    newRequestJson.put("source", "chat/free");
+                    String cached = lookup.result().exceptionally(e -> null).join();
+                    if (cached != null) {
+                        replayCached(exchange, model, cached, isStream, promptTokens, includeUsage, metrics);
+                        return;
+                    }
+                    // 领头请求失败，直接访问上游
                 }
-                newRequestJson.put("temperature", temperature);
-                newRequestJson.put("messages", messages);
+            }
 
-                String modifiedRequestBody = newRequestJson.toString();
-                System.out.println("修改后的请求 JSON: \n" + newRequestJson.toString(4)+"\n");
-                // 获取一次性 Bearer Token
-                String[] tmpToken = BearerTokenGenerator.GetBearer(modifiedRequestBody);
-                // 使用通用的 HttpRequest 构建方法
-                HttpRequest request = buildHttpRequest(modifiedRequestBody, tmpToken);
+            // 排队等待上游许可，直到响应转发完毕才归还；无法在期限内放行时返回 429
+            AdmissionController.Permit permit = null;
+            try {
+                permit = AdmissionController.get().acquire();
+                // 每次尝试都获取新的一次性 Bearer Token，上游失败时按 retry.* 配置重试
+                UpstreamRetry.Call call = UpstreamRetry.call(METRICS_HANDLER,
+                        () -> buildHttpRequest(modifiedRequestBody, TokenProviders.get().getBearer(modifiedRequestBody)), metrics);
 
                 // 根据是否有图片和是否为流式响应，调用不同的处理方法
                 if (hasImage && isStream) {
-                    handleVisionStreamResponse(exchange, request);
+                    handleVisionStreamResponse(exchange, call, usage, metrics, traceTokens);
                 } else if (hasImage && !isStream) {
-                    handleVisionNormalResponse(exchange, request, model);
+                    handleVisionNormalResponse(exchange, call, model, promptTokens, metrics);
                 } else if (!hasImage && isStream) {
-                    handleStreamResponse(exchange, request);
+                    handleStreamResponse(exchange, call, usage, cacheSink, metrics, traceTokens);
                 } else {
-                    handleNormalResponse(exchange, request, model);
+                    handleNormalResponse(exchange, call, model, promptTokens, cacheSink, metrics);
+                }
+            } finally {
+                if (permit != null) {
+                    permit.close();
+                }
+                // 没有得到完整回答时通知等待的请求
+                if (cacheSink != null) {
+                    cacheSink.complete(null);
                 }
+            }
 
-            } catch (Exception e) {
-                e.printStackTrace();
-                sendError(exchange, "内部服务器错误: " + e.getMessage());
+        } catch (ApiKeys.UnauthorizedException e) {
+            sendError(exchange, 401, e.getMessage());
+        } catch (ApiKeys.QuotaExceededException e) {
+            sendTooManyRequests(exchange, e.retryAfterSeconds(), e.getMessage());
+        } catch (RequestBodyReader.TooLargeException e) {
+            sendError(exchange, 413, e.getMessage());
+        } catch (AdmissionController.RejectedException e) {
+            sendTooManyRequests(exchange, e.retryAfterSeconds(), e.getMessage());
+        } catch (Exception e) {
+            Log.error("处理补全请求失败", e);
+            sendError(exchange, "内部服务器错误: " + e.getMessage());
+        } finally {
+            metrics.finish(exchange);
+            if (lease != null) {
+                lease.finish(metrics);
             }
-        }, executor);
+        }
     }
 
     /**
      * 处理包含图片的流式响应
      *
-     * @param exchange 当前的 HttpExchange 对象
-     * @param request  构建好的 HttpRequest 对象
+     * @param exchange    当前的 HttpExchange 对象
+     * @param call         上游请求的重试状态
+     * @param usage        token 统计状态，不需要统计时为 null
+     * @param metrics      当前请求的指标
+     * @param traceTokens  是否在结束后记录完整回答
      */
-    private void handleVisionStreamResponse(HttpExchange exchange, HttpRequest request) throws IOException {
-        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenAccept(response -> {
-                    try {
-                        if (response.statusCode() != 200) {
-                            sendError(exchange, "API 错误: " + response.statusCode());
-                            return;
-                        }
-
-                        Headers responseHeaders = exchange.getResponseHeaders();
-                        responseHeaders.add("Content-Type", "text/event-stream; charset=utf-8");
-                        responseHeaders.add("Cache-Control", "no-cache");
-                        responseHeaders.add("Connection", "keep-alive");
-                        exchange.sendResponseHeaders(200, 0);
-
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            response.body().forEach(line -> {
-                                if (line.startsWith("data: ")) {
-                                    String data = line.substring(6).trim();
-                                    if (data.equals("[DONE]")) {
-                                        try {
-                                            // 转发 [DONE] 信号
-                                            os.write((line + "\n").getBytes(StandardCharsets.UTF_8));
-                                            os.flush();
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
-                                        return;
-                                    }
-
-                                    try {
-                                        JSONObject sseJson = new JSONObject(data);
-
-                                        // 检查是否包含 'choices' 数组
-                                        if (sseJson.has("choices")) {
-                                            JSONArray choices = sseJson.getJSONArray("choices");
-                                            for (int i = 0; i < choices.length(); i++) {
-                                                JSONObject choice = choices.getJSONObject(i);
-                                                JSONObject delta = choice.optJSONObject("delta");
-                                                if (delta != null) {
-                                                    // 处理 'content'
-                                                    if (delta.has("content")) {
-                                                        String content = delta.getString("content");
-                                                        System.out.print(content);
-                                                        // 构建新的 SSE JSON
-                                                        JSONObject newSseJson = new JSONObject();
-                                                        JSONArray newChoices = new JSONArray();
-                                                        JSONObject newChoice = new JSONObject();
-                                                        newChoice.put("index", choice.optInt("index", i));
-
-                                                        // 添加 'content' 字段
-                                                        JSONObject newDelta = new JSONObject();
-                                                        newDelta.put("content", content);
-                                                        newChoice.put("delta", newDelta);
-
-                                                        newChoices.put(newChoice);
-                                                        newSseJson.put("choices", newChoices);
-
-                                                        // 添加其他字段
-                                                        if (sseJson.has("created")) {
-                                                            newSseJson.put("created", sseJson.getLong("created"));
-                                                        } else {
-                                                            newSseJson.put("created", Instant.now().getEpochSecond());
-                                                        }
-
-                                                        if (sseJson.has("id")) {
-                                                            newSseJson.put("id", sseJson.getString("id"));
-                                                        } else {
-                                                            newSseJson.put("id", UUID.randomUUID().toString());
-                                                        }
-
-                                                        newSseJson.put("model", sseJson.optString("model", "gpt-4o"));
-                                                        newSseJson.put("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
-
-                                                        // 构建新的 SSE 行
-                                                        String newSseLine = "data: " + newSseJson + "\n\n";
-                                                        os.write(newSseLine.getBytes(StandardCharsets.UTF_8));
-                                                        os.flush();
-                                                    }
-
-                                                    // 处理 'images'
-                                                    if (delta.has("images")) {
-                                                        JSONArray imagesArray = delta.getJSONArray("images");
-                                                        for (int j = 0; j < imagesArray.length(); j++) {
-                                                            JSONObject imageObj = imagesArray.getJSONObject(j);
-                                                            String imageData = imageObj.getString("data");
-
-                                                            // 假设 data 是可访问的 URL
-                                                            String content = "[Image at " + imageData + "]";
-                                                            System.out.print(content);
-                                                            JSONObject newSseJson = new JSONObject();
-                                                            JSONArray newChoices = new JSONArray();
-                                                            JSONObject newChoice = new JSONObject();
-                                                            newChoice.put("index", choice.optInt("index", i));
-
-                                                            JSONObject newDelta = new JSONObject();
-                                                            newDelta.put("content", content);
-                                                            newChoice.put("delta", newDelta);
-
-                                                            newChoices.put(newChoice);
-                                                            newSseJson.put("choices", newChoices);
-
-                                                            newSseJson.put("created", sseJson.optLong("created", Instant.now().getEpochSecond()));
-                                                            newSseJson.put("id", sseJson.optString("id", UUID.randomUUID().toString()));
-                                                            newSseJson.put("model", sseJson.optString("model", "gpt-4o"));
-                                                            newSseJson.put("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
-
-                                                            String newSseLine = "data: " + newSseJson + "\n\n";
-                                                            os.write(newSseLine.getBytes(StandardCharsets.UTF_8));
-                                                            os.flush();
-                                                        }
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    } catch (JSONException e) {
-                                        System.err.println("JSON解析错误: " + e.getMessage());
-                                    } catch (IOException e) {
-                                        System.err.println("响应发送失败: " + e.getMessage());
-                                        e.printStackTrace();
-                                    }
-                                }
-                            });
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        sendError(exchange, "响应发送失败: " + e.getMessage());
-                    }
-                })
-                .exceptionally(ex -> {
-                    ex.printStackTrace();
-                    sendError(exchange, "请求失败: " + ex.getMessage());
-                    return null;
-                });
+    private void handleVisionStreamResponse(HttpExchange exchange, UpstreamRetry.Call call, SseTransformer.Usage usage,
+                                            RequestMetrics metrics, boolean traceTokens) throws IOException {
+        HttpResponse<Stream<String>> response = sendUpstream(exchange, call, false);
+        if (response == null) {
+            return;
+        }
+        try {
+            SseCollector collector = traceTokens ? new SseCollector(true) : null;
+            // usage 不为 null 时转换的同时统计回答的 token 数
+            StreamRelay.LineHandler handler = (line, out) -> {
+                if (collector != null) {
+                    collector.accept(line);
+                }
+                metrics.tokens(SseTransformer.relayVisionLine(line, out, usage));
+            };
+            SseWriter os = SseWriter.create(new DeferredResponseBody(exchange, SSE_HEADERS));
+            StreamRelay.Outcome outcome = relay(exchange, call, response, os, handler);
+            if (outcome == null) {
+                return;
+            }
+            metrics.responseBytes(os.bytesWritten());
+            if (usage != null) {
+                metrics.usage(usage.promptTokens(), usage.completionTokens());
+            }
+            if (collector != null) {
+                Log.info("流式回答: " + CompletionResponses.visionContent(collector.content(), collector.imageUrls()));
+            }
+            if (outcome == StreamRelay.Outcome.COMPLETED) {
+                os.close();
+            } else {
+                // 客户端已断开或上游中断，直接关闭连接
+                exchange.close();
+            }
+        } catch (IOException e) {
+            Log.error("响应发送失败", e);
+            sendError(exchange, "响应发送失败: " + e.getMessage());
+        }
     }
 
     /**
      * 处理包含图片的非流式响应
      *
+     * @param exchange     当前的 HttpExchange 对象
+     * @param call         上游请求的重试状态
+     * @param model        使用的模型名称
+     * @param promptTokens messages 的 token 数
+     * @param metrics      当前请求的指标
+     */
+    private void handleVisionNormalResponse(HttpExchange exchange, UpstreamRetry.Call call, String model, int promptTokens,
+                                            RequestMetrics metrics) {
+        HttpResponse<Stream<String>> response = sendUpstream(exchange, call, true);
+        if (response == null) {
+            return;
+        }
+        try {
+            // 边读取边拼接 content 字段，并收集图片 URL
+            SseCollector collector = collect(exchange, call, response, true);
+            if (collector == null) {
+                return;
+            }
+            StringBuilder contentBuilder = collector.content();
+            List<String> imageUrls = collector.imageUrls();
+            metrics.aggregatedTokens(collector.chunks());
+
+            // 构建包含图片 URL 的 assistant 内容
+            String assistantContent = CompletionResponses.visionContent(contentBuilder, imageUrls);
+            if (Log.DEBUG) {
+                Log.debug("从 API 接收到的内容: " + assistantContent);
+            }
+
+            // 构建 OpenAI API 风格的响应 JSON
+            int completionTokens = TokenCounter.count(assistantContent);
+            metrics.usage(promptTokens, completionTokens);
+            byte[] responseBytes = CompletionResponses.visionCompletion(model, assistantContent, promptTokens, completionTokens);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBytes);
+            }
+            metrics.responseBytes(responseBytes.length);
+
+        } catch (Exception e) {
+            Log.error("处理响应时发生错误", e);
+            sendError(exchange, "处理响应时发生错误: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 返回缓存的回答，stream 为 true 时按 SSE 重放
+     *
      * @param exchange 当前的 HttpExchange 对象
-     * @param request  构建好的 HttpRequest 对象
      * @param model    使用的模型名称
+     * @param content  缓存的回答
+     * @param isStream     是否为流式请求
+     * @param promptTokens messages 的 token 数，小于 0 时不统计
+     * @param includeUsage 流式请求是否发送 usage chunk
+     * @param metrics      当前请求的指标
      */
-    private void handleVisionNormalResponse(HttpExchange exchange, HttpRequest request, String model) {
-        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenAccept(response -> {
-                    try {
-                        if (response.statusCode() != 200) {
-                            sendError(exchange, "API 错误: " + response.statusCode());
-                            return;
-                        }
-
-                        // 收集 SSE 行
-                        List<String> sseLines = new ArrayList<>();
-                        response.body().forEach(sseLines::add);
-
-                        // 拼接 content 字段，并收集图片 URL
-                        StringBuilder contentBuilder = new StringBuilder();
-                        List<String> imageUrls = new ArrayList<>();
-
-                        for (String line : sseLines) {
-                            if (line.startsWith("data: ")) {
-                                String data = line.substring(6).trim();
-                                if (data.equals("[DONE]")) {
-                                    break;
-                                }
-                                try {
-                                    JSONObject sseJson = new JSONObject(data);
-
-                                    // 检查是否包含 choices 数组
-                                    if (sseJson.has("choices")) {
-                                        JSONArray choices = sseJson.getJSONArray("choices");
-                                        for (int i = 0; i < choices.length(); i++) {
-                                            JSONObject choice = choices.getJSONObject(i);
-                                            if (choice.has("delta")) {
-                                                JSONObject delta = choice.getJSONObject("delta");
-                                                if (delta.has("content")) {
-                                                    String content = delta.getString("content");
-                                                    contentBuilder.append(content);
-                                                }
-                                                if (delta.has("images")) {
-                                                    JSONArray imagesArray = delta.getJSONArray("images");
-                                                    for (int j = 0; j < imagesArray.length(); j++) {
-                                                        JSONObject imageObj = imagesArray.getJSONObject(j);
-                                                        String imageData = imageObj.getString("data"); // 假设 data 是 URL
-                                                        imageUrls.add(imageData);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                } catch (JSONException e) {
-                                    System.err.println("JSON解析错误: " + e.getMessage());
-                                }
-                            }
-                        }
-
-                        // 构建 OpenAI API 风格的响应 JSON
-                        JSONObject openAIResponse = new JSONObject();
-                        openAIResponse.put("id", "chatcmpl-" + UUID.randomUUID());
-                        openAIResponse.put("object", "chat.completion");
-                        openAIResponse.put("created", Instant.now().getEpochSecond());
-                        openAIResponse.put("model", model);
-
-                        JSONArray choicesArray = new JSONArray();
-                        JSONObject choiceObject = new JSONObject();
-                        choiceObject.put("index", 0);
-
-                        JSONObject messageObject = new JSONObject();
-                        messageObject.put("role", "assistant");
-
-                        // 构建包含图片 URL 的 assistant 内容
-                        StringBuilder assistantContent = new StringBuilder();
-                        assistantContent.append(contentBuilder);
-                        for (String imageUrl : imageUrls) {
-                            assistantContent.append("\n[Image: ").append(imageUrl).append("]");
-                        }
-                        messageObject.put("content", assistantContent.toString());
-                        System.out.println("从 API 接收到的内容: " + assistantContent);
-
-                        choiceObject.put("message", messageObject);
-                        choiceObject.put("finish_reason", "stop");
-                        choicesArray.put(choiceObject);
-
-                        openAIResponse.put("choices", choicesArray);
-
-                        exchange.getResponseHeaders().add("Content-Type", "application/json");
-                        String responseBody = openAIResponse.toString();
-                        exchange.sendResponseHeaders(200, responseBody.getBytes(StandardCharsets.UTF_8).length);
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            os.write(responseBody.getBytes(StandardCharsets.UTF_8));
-                        }
-
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        sendError(exchange, "处理响应时发生错误: " + e.getMessage());
-                    }
-                })
-                .exceptionally(ex -> {
-                    ex.printStackTrace();
-                    sendError(exchange, "请求失败: " + ex.getMessage());
-                    return null;
-                });
+    private void replayCached(HttpExchange exchange, String model, String content, boolean isStream, int promptTokens,
+                              boolean includeUsage, RequestMetrics metrics) throws IOException {
+        if (promptTokens >= 0) {
+            metrics.usage(promptTokens, TokenCounter.count(content));
+        }
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.add("X-Cache", "HIT");
+        if (isStream) {
+            responseHeaders.add("Content-Type", "text/event-stream; charset=utf-8");
+            responseHeaders.add("Cache-Control", "no-cache");
+            responseHeaders.add("Connection", "keep-alive");
+            exchange.sendResponseHeaders(200, 0);
+            try (SseWriter os = SseWriter.create(exchange.getResponseBody())) {
+                SseTransformer.writeReplay(model, content, includeUsage ? promptTokens : -1, os);
+                metrics.responseBytes(os.bytesWritten());
+            }
+            return;
+        }
+        byte[] responseBytes = CompletionResponses.chatCompletion(model, content, promptTokens, metrics.completionTokens());
+        responseHeaders.add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, responseBytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(responseBytes);
+        }
+        metrics.responseBytes(responseBytes.length);
     }
 
     /**
      * 处理流式响应
      *
+     * @param exchange    当前的 HttpExchange 对象
+     * @param call         上游请求的重试状态
+     * @param usage        token 统计状态，不需要统计时为 null
+     * @param cacheSink    不为 null 时，完整转发后把拼接的回答写入缓存
+     * @param metrics      当前请求的指标
+     * @param traceTokens  是否在结束后记录完整回答
+     */
+    private void handleStreamResponse(HttpExchange exchange, UpstreamRetry.Call call, SseTransformer.Usage usage,
+                                      CompletableFuture<String> cacheSink, RequestMetrics metrics, boolean traceTokens) {
+        HttpResponse<Stream<String>> response = sendUpstream(exchange, call, false);
+        if (response == null) {
+            return;
+        }
+        try {
+            // 需要写入缓存或跟踪回答时，转发的同时拼接回答
+            SseCollector collector = cacheSink != null || traceTokens ? new SseCollector(false) : null;
+            // usage 不为 null 时在分类的同一遍解析中统计回答的 token 数
+            StreamRelay.LineHandler handler = collector == null
+                    ? (line, out) -> metrics.tokens(SseTransformer.relayLine(line, out, usage))
+                    : (line, out) -> {
+                        collector.accept(line);
+                        metrics.tokens(SseTransformer.relayLine(line, out, usage));
+                    };
+            SseWriter os = SseWriter.create(new DeferredResponseBody(exchange, SSE_HEADERS));
+            StreamRelay.Outcome outcome = relay(exchange, call, response, os, handler);
+            if (outcome == null) {
+                return;
+            }
+            metrics.responseBytes(os.bytesWritten());
+            if (usage != null) {
+                metrics.usage(usage.promptTokens(), usage.completionTokens());
+            }
+            if (traceTokens) {
+                Log.info("流式回答: " + collector.content());
+            }
+            if (outcome == StreamRelay.Outcome.COMPLETED) {
+                os.close();
+                if (cacheSink != null && collector.isDone()) {
+                    cacheSink.complete(collector.content().toString());
+                }
+            } else {
+                // 客户端已断开或上游中断，直接关闭连接
+                exchange.close();
+            }
+        } catch (IOException e) {
+            Log.error("响应发送失败", e);
+            sendError(exchange, "响应发送失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 上游返回非 200 时关闭上游响应并向客户端返回错误；上游 429 时返回 429 并转发 Retry-After
+     *
      * @param exchange 当前的 HttpExchange 对象
-     * @param request  构建好的 HttpRequest 对象
+     * @param response 上游响应
      */
-    private void handleStreamResponse(HttpExchange exchange, HttpRequest request) {
-        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenAccept(response -> {
-                    try {
-                        if (response.statusCode() != 200) {
-                            sendError(exchange, "API 错误: " + response.statusCode());
-                            return;
-                        }
-
-                        Headers responseHeaders = exchange.getResponseHeaders();
-                        responseHeaders.add("Content-Type", "text/event-stream; charset=utf-8");
-                        responseHeaders.add("Cache-Control", "no-cache");
-                        responseHeaders.add("Connection", "keep-alive");
-                        exchange.sendResponseHeaders(200, 0);
-
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            response.body().forEach(line -> {
-//                                System.out.println("原始行: " + line);
-                                try {
-                                    // 只处理以 "data: " 开头的行
-                                    if (!line.startsWith("data: ")) {
-                                        return;
-                                    }
-
-                                    String data = line.substring(6).trim();
-                                    if (data.equals("[DONE]")) {
-                                        // 转发 [DONE] 信号
-                                        os.write((line + "\n\n").getBytes(StandardCharsets.UTF_8));
-                                        os.flush();
-                                        return;
-                                    }
-
-                                    JSONObject json = new JSONObject(data);
-
-                                    // 过滤掉特定类型的消息
-                                    if (shouldFilterOut(json)) {
-                                        return;
-                                    }
-
-                                    // 处理包含 web sources 的消息
-                                    if (json.has("data") && json.getJSONObject("data").has("web")) {
-                                        JSONObject webData = json.getJSONObject("data").getJSONObject("web");
-                                        if (webData.has("sources")) {
-                                            JSONArray sources = webData.getJSONArray("sources");
-                                            StringBuilder urlsList = new StringBuilder();
-                                            for (int i = 0; i < sources.length(); i++) {
-                                                JSONObject source = sources.getJSONObject(i);
-                                                if (source.has("url")) {
-                                                    if (!urlsList.isEmpty()) {
-                                                        urlsList.append("\n\n");
-                                                    }
-                                                    urlsList.append(source.getString("url"));
-                                                }
-                                            }
-                                            System.out.println("从 API 接收到的内容: " + urlsList);
-                                            // 构造新的 SSE 消息，填入 content 字段
-                                            JSONObject newJson = new JSONObject();
-                                            newJson.put("id", generateId());
-                                            newJson.put("object", "chat.completion.chunk");
-                                            newJson.put("created", Instant.now().getEpochSecond());
-                                            newJson.put("model", json.optString("model", "gpt-4o"));
-
-                                            JSONArray choices = new JSONArray();
-                                            JSONObject choice = new JSONObject();
-                                            JSONObject delta = new JSONObject();
-                                            delta.put("content", "\n"+urlsList+"\n");
-                                            choice.put("delta", delta);
-                                            choice.put("index", 0);
-                                            choice.put("finish_reason", JSONObject.NULL);
-                                            choices.put(choice);
-
-                                            newJson.put("choices", choices);
-
-                                            // 发送新构造的 SSE 消息
-
-                                            String newLine = "data: " + newJson + "\n\n";
-                                            os.write(newLine.getBytes(StandardCharsets.UTF_8));
-                                            os.flush();
-                                        }
-                                    } else {
-                                        try {
-                                            JSONObject sseJson = new JSONObject(data);
-
-                                            // 检查是否包含 'choices' 数组
-                                            if (sseJson.has("choices")) {
-                                                JSONArray choices = sseJson.getJSONArray("choices");
-                                                for (int i = 0; i < choices.length(); i++) {
-                                                    JSONObject choice = choices.getJSONObject(i);
-                                                    JSONObject delta = choice.optJSONObject("delta");
-                                                    if (delta != null && delta.has("content")) {
-                                                        String content = delta.getString("content");
-                                                        System.out.print(content);
-                                                    }
-                                                }
-                                            }
-
-                                        } catch (JSONException e) {
-                                            System.err.println("JSON解析错误: " + e.getMessage());
-                                        }
-                                        // 直接转发其他消息
-                                        os.write((line + "\n\n").getBytes(StandardCharsets.UTF_8));
-                                        os.flush();
-                                    }
-                                } catch (JSONException e) {
-                                    System.err.println("JSON解析错误: " + e.getMessage());
-                                } catch (IOException e) {
-                                    System.err.println("响应发送失败: " + e.getMessage());
-                                    e.printStackTrace();
-                                }
-                            });
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        sendError(exchange, "响应发送失败: " + e.getMessage());
-                    }
-                })
-                .exceptionally(ex -> {
-                    ex.printStackTrace();
-                    sendError(exchange, "请求失败: " + ex.getMessage());
-                    return null;
-                });
+    private void sendUpstreamError(HttpExchange exchange, HttpResponse<Stream<String>> response) {
+        response.body().close();
+        if (response.statusCode() == 429) {
+            sendTooManyRequests(exchange, UpstreamClient.retryAfterSeconds(response).orElse(1), "上游请求过于频繁，请稍后重试");
+        } else {
+            sendError(exchange, "API 错误: " + response.statusCode());
+        }
     }
 
     /**
-     * 判断是否需要过滤掉当前的 SSE 消息
+     * 在当前线程上同步发送上游请求（失败时按退避重试），仍然失败时直接向客户端返回错误
      *
-     * @param json 解析后的 JSON 对象
-     * @return 如果需要过滤掉则返回 true，否则返回 false
+     * @param exchange 当前的 HttpExchange 对象
+     * @param call     上游请求的重试状态
+     * @param hedge    是否允许对冲，只用于非流式请求
+     * @return 上游响应，失败时返回 null
      */
-    private boolean shouldFilterOut(JSONObject json) {
-        if (json.has("ping")) {
-            return true;
+    private HttpResponse<Stream<String>> sendUpstream(HttpExchange exchange, UpstreamRetry.Call call, boolean hedge) {
+        try {
+            return call.send(HttpResponse.BodyHandlers.ofLines(), Stream::close, hedge);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, "请求失败: " + e.getMessage());
+        } catch (IOException e) {
+            Log.warn("上游请求失败: " + e.getMessage());
+            sendError(exchange, "请求失败: " + e.getMessage());
         }
-        if (json.has("data")) {
-            JSONObject data = json.getJSONObject("data");
-            if (data.has("analytics")) {
-                return true;
+        return null;
+    }
+
+    /**
+     * 转发流式响应；客户端收到第一个字节之前上游出错时重新发起请求
+     *
+     * @param exchange 当前的 HttpExchange 对象
+     * @param call     上游请求的重试状态
+     * @param response 第一次尝试的上游响应
+     * @param os       响应头延迟发送的客户端输出流
+     * @param handler  逐行处理函数
+     * @return 转发结果，已向客户端返回错误时为 null
+     */
+    private StreamRelay.Outcome relay(HttpExchange exchange, UpstreamRetry.Call call, HttpResponse<Stream<String>> response,
+                                      SseWriter os, StreamRelay.LineHandler handler) {
+        while (true) {
+            if (response.statusCode() != 200) {
+                sendUpstreamError(exchange, response);
+                return null;
+            }
+            StreamRelay.Outcome outcome = StreamRelay.relayOutcome(response.body(), os, handler);
+            if (outcome != StreamRelay.Outcome.UPSTREAM_ERROR || os.bytesWritten() > 0) {
+                return outcome;
             }
-            if (data.has("operation") && data.has("message")) {
-                return true;
+            if (!retry(call, "stream")) {
+                sendError(exchange, "读取上游响应失败");
+                return null;
+            }
+            response = sendUpstream(exchange, call, false);
+            if (response == null) {
+                return null;
             }
         }
-        return false;
     }
 
     /**
-     * 生成随机的 ID
+     * 读取非流式响应；读取上游响应体出错时重新发起请求，客户端不会察觉
      *
-     * @return 长度为 24 的随机字符串
+     * @param exchange      当前的 HttpExchange 对象
+     * @param call          上游请求的重试状态
+     * @param response      第一次尝试的上游响应
+     * @param collectImages 是否同时收集图片 URL
+     * @return 聚合结果，已向客户端返回错误时为 null
      */
-    private String generateId() {
-        return UUID.randomUUID().toString().replace("-", "").substring(0, 24);
+    private SseCollector collect(HttpExchange exchange, UpstreamRetry.Call call, HttpResponse<Stream<String>> response,
+                                 boolean collectImages) {
+        while (true) {
+            if (response.statusCode() != 200) {
+                sendUpstreamError(exchange, response);
+                return null;
+            }
+            try {
+                return new SseCollector(collectImages).collect(response.body());
+            } catch (UncheckedIOException e) {
+                Log.warn("读取上游响应失败: " + e.getMessage());
+                if (!retry(call, "stream")) {
+                    sendError(exchange, "读取上游响应失败: " + e.getMessage());
+                    return null;
+                }
+            }
+            response = sendUpstream(exchange, call, true);
+            if (response == null) {
+                return null;
+            }
+        }
+    }
+
+    private boolean retry(UpstreamRetry.Call call, String reason) {
+        try {
+            return call.retry(reason);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     /**
      * 处理非流式响应
      *
-     * @param exchange 当前的 HttpExchange 对象
-     * @param request  构建好的 HttpRequest 对象
-     * @param model    使用的模型名称
+     * @param exchange     当前的 HttpExchange 对象
+     * @param call         上游请求的重试状态
+     * @param model        使用的模型名称
+     * @param promptTokens messages 的 token 数
+     * @param cacheSink    不为 null 时，收到 [DONE] 后把拼接的回答写入缓存
+     * @param metrics      当前请求的指标
      */
-    private void handleNormalResponse(HttpExchange exchange, HttpRequest request, String model) {
-        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
-                .thenAccept(response -> {
-                    try {
-                        if (response.statusCode() != 200) {
-                            sendError(exchange, "API 错误: " + response.statusCode());
-                            return;
-                        }
-
-                        // 收集 SSE 行
-                        List<String> sseLines = new ArrayList<>();
-                        response.body().forEach(sseLines::add);
-
-                        // 拼接 content 字段，直到 data: [DONE]
-                        StringBuilder contentBuilder = new StringBuilder();
-                        int completionTokens = 0;
-
-                        for (String line : sseLines) {
-                            if (line.startsWith("data: ")) {
-                                String data = line.substring(6).trim();
-                                if (data.equals("[DONE]")) {
-                                    break;
-                                }
-                                try {
-                                    JSONObject sseJson = new JSONObject(data);
-
-                                    // 检查是否包含 choices 数组
-                                    if (sseJson.has("choices")) {
-                                        JSONArray choices = sseJson.getJSONArray("choices");
-                                        for (int i = 0; i < choices.length(); i++) {
-                                            JSONObject choice = choices.getJSONObject(i);
-                                            if (choice.has("delta")) {
-                                                JSONObject delta = choice.getJSONObject("delta");
-                                                if (delta.has("content")) {
-                                                    String content = delta.getString("content");
-                                                    contentBuilder.append(content);
-                                                    completionTokens += content.length(); // 简单估计 token 数
-                                                }
-                                            }
-                                        }
-                                    }
-                                } catch (JSONException e) {
-                                    System.err.println("JSON解析错误: " + e.getMessage());
-                                }
-                            }
-                        }
-
-                        // 构建 OpenAI API 风格的响应 JSON
-                        JSONObject openAIResponse = new JSONObject();
-                        openAIResponse.put("id", "chatcmpl-" + UUID.randomUUID().toString().replace("-", ""));
-                        openAIResponse.put("object", "chat.completion");
-                        openAIResponse.put("created", Instant.now().getEpochSecond());
-                        openAIResponse.put("model", model);
-
-                        JSONArray choicesArray = new JSONArray();
-                        JSONObject choiceObject = new JSONObject();
-                        choiceObject.put("index", 0);
-
-                        JSONObject messageObject = new JSONObject();
-                        messageObject.put("role", "assistant");
-                        messageObject.put("content", contentBuilder.toString());
-                        messageObject.put("refusal", JSONObject.NULL); // 添加 'refusal' 字段
-                        System.out.println("从 API 接收到的内容: " + contentBuilder.toString());
-
-                        choiceObject.put("message", messageObject);
-                        choiceObject.put("logprobs", JSONObject.NULL); // 添加 'logprobs' 字段
-                        choiceObject.put("finish_reason", "stop");
-                        choicesArray.put(choiceObject);
-
-                        openAIResponse.put("choices", choicesArray);
-
-                        // 添加 'usage' 字段
-                        JSONObject usageObject = new JSONObject();
-                        int promptTokens = 16; // 示例值，可以根据实际计算
-                        usageObject.put("prompt_tokens", promptTokens);
-                        usageObject.put("completion_tokens", completionTokens);
-                        usageObject.put("total_tokens", promptTokens + completionTokens);
-
-                        // 添加 'prompt_tokens_details' 字段
-                        JSONObject promptTokensDetails = new JSONObject();
-                        promptTokensDetails.put("cached_tokens", 0);
-                        promptTokensDetails.put("audio_tokens", 0);
-                        usageObject.put("prompt_tokens_details", promptTokensDetails);
-
-                        // 添加 'completion_tokens_details' 字段
-                        JSONObject completionTokensDetails = new JSONObject();
-                        completionTokensDetails.put("reasoning_tokens", 0);
-                        completionTokensDetails.put("audio_tokens", 0);
-                        completionTokensDetails.put("accepted_prediction_tokens", 0);
-                        completionTokensDetails.put("rejected_prediction_tokens", 0);
-                        usageObject.put("completion_tokens_details", completionTokensDetails);
-
-                        openAIResponse.put("usage", usageObject);
-
-                        // 添加 'system_fingerprint' 字段
-                        openAIResponse.put("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
-
-                        exchange.getResponseHeaders().add("Content-Type", "application/json");
-                        String responseBody = openAIResponse.toString();
-                        exchange.sendResponseHeaders(200, responseBody.getBytes(StandardCharsets.UTF_8).length);
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            os.write(responseBody.getBytes(StandardCharsets.UTF_8));
-                        }
-
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        sendError(exchange, "处理响应时发生错误: " + e.getMessage());
-                    }
-                })
-                .exceptionally(ex -> {
-                    ex.printStackTrace();
-                    sendError(exchange, "请求失败: " + ex.getMessage());
-                    return null;
-                });
+    private void handleNormalResponse(HttpExchange exchange, UpstreamRetry.Call call, String model, int promptTokens,
+                                      CompletableFuture<String> cacheSink, RequestMetrics metrics) {
+        HttpResponse<Stream<String>> response = sendUpstream(exchange, call, true);
+        if (response == null) {
+            return;
+        }
+        try {
+            // 边读取边拼接 content 字段，直到 data: [DONE]
+            SseCollector collector = collect(exchange, call, response, false);
+            if (collector == null) {
+                return;
+            }
+            StringBuilder contentBuilder = collector.content();
+            metrics.aggregatedTokens(collector.chunks());
+            String content = contentBuilder.toString();
+            if (Log.DEBUG) {
+                Log.debug("从 API 接收到的内容: " + content);
+            }
+            // 上游在 [DONE] 之前结束（正常 EOF 或连接断开）时回答可能不完整，不写入缓存，由 finally 以 null 结束
+            if (cacheSink != null && collector.isDone()) {
+                cacheSink.complete(content);
+            }
+
+            // 构建 OpenAI API 风格的响应 JSON
+            int completionTokens = TokenCounter.count(content);
+            metrics.usage(promptTokens, completionTokens);
+            byte[] responseBytes = CompletionResponses.chatCompletion(model, content, promptTokens, completionTokens);
+
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBytes);
+            }
+            metrics.responseBytes(responseBytes.length);
+
+        } catch (Exception e) {
+            Log.error("处理响应时发生错误", e);
+            sendError(exchange, "处理响应时发生错误: " + e.getMessage());
+        }
     }
 }
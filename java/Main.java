@@ -2,13 +2,17 @@ import java.io.*;
 import java.net.*;
 import java.net.http.*;
 import java.nio.file.*;
-import java.util.concurrent.*;
 import com.sun.net.httpserver.*;
+import utils.ApiKeys;
+import utils.Config;
+import utils.ImageStore;
+import utils.Metrics;
+import utils.ServerExecutor;
+import utils.UpstreamClient;
 
 public class Main {
     public static final String[] models = {"gpt-4o", "gpt-4o-mini", "claude-3-5-sonnet", "claude"};
     public static int port = 80;
-    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
     public static String baseURL = "http://localhost";
     public static HttpServer createHttpServer(int initialPort) throws IOException {
 
@@ -48,29 +52,19 @@ public class Main {
         server.createContext("/v1/chat/completions", new CompletionHandler());
         server.createContext("/v1/images/generations", new TextToImageHandler());
         server.createContext("/v1/models", new ModelsHandler());
+        if (Metrics.ENABLED) {
+            server.createContext("/metrics", new MetricsHandler());
+        }
         // Serve images directory
-        server.createContext("/images/", new HttpHandler() {
-            @Override
-            public void handle(HttpExchange exchange) throws IOException {
-                String uriPath = exchange.getRequestURI().getPath();
-                String imageName = uriPath.substring("/images/".length());
-                File imageFile = new File("images", imageName);
-                if (imageFile.exists() && !imageFile.isDirectory()) {
-                    Headers headers = exchange.getResponseHeaders();
-                    String contentType = Files.probeContentType(imageFile.toPath());
-                    headers.add("Content-Type", contentType != null ? contentType : "application/octet-stream");
-                    exchange.sendResponseHeaders(200, imageFile.length());
-                    try (OutputStream os = exchange.getResponseBody(); FileInputStream fis = new FileInputStream(imageFile)) {
-                        fis.transferTo(os);
-                    }
-                } else {
-                    exchange.sendResponseHeaders(404, -1);
-                }
-            }
-        });
+        server.createContext("/images/", new StaticFileHandler("/images/", ImageStore.IMAGES_DIR.toPath(),
+                Config.getLong("static.max.age.seconds", 86400)));
 
-        server.setExecutor(executor);
+        server.setExecutor(ServerExecutor.get());
+        ImageStore.startEviction();
+        ApiKeys.start();
         server.start();
+        System.out.println(ServerExecutor.stats());
+        UpstreamClient.warmUp();
     }
 }
 
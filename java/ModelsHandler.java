@@ -2,6 +2,7 @@
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.json.JSONObject;
+import utils.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -40,7 +41,7 @@ public class ModelsHandler implements HttpHandler {
             os.write(responseBytes);
             os.close();
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("返回模型列表失败", e);
             exchange.sendResponseHeaders(500, -1);
         }
     }
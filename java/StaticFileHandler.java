@@ -0,0 +1,266 @@
+// StaticFileHandler.java
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import utils.RequestMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 静态文件处理器，用于提供 images 目录下的图片
+ * <p>
+ * 每个文件的 MIME 类型、大小、修改时间和 ETag 缓存在内存中，文件变化时自动失效；
+ * 支持 If-None-Match / If-Modified-Since 条件请求 (304)、单个 Range 请求 (206) 和 HEAD 请求，
+ * 文件内容通过 FileChannel.transferTo 按区间发送，不把整个文件读入内存，并拒绝任何跳出根目录的路径。
+ * 注意这不是零拷贝：HttpExchange 不暴露底层 SocketChannel，目标只能是包装响应流的 Channel，
+ * JDK 会经过一个堆缓冲区逐段复制，无法使用 sendfile。
+ */
+public class StaticFileHandler implements HttpHandler {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final int MAX_CACHED_FILES = 10_000;
+
+    private final String contextPath;
+    private final Path root;
+    private final String cacheControl;
+    private final Map<String, FileInfo> metadata = new ConcurrentHashMap<>();
+
+    /**
+     * @param contextPath  注册的路径前缀，例如 /images/
+     * @param root         文件根目录
+     * @param maxAgeSeconds Cache-Control 的 max-age
+     */
+    public StaticFileHandler(String contextPath, Path root, long maxAgeSeconds) {
+        this.contextPath = contextPath;
+        this.root = root.toAbsolutePath().normalize();
+        this.cacheControl = "public, max-age=" + maxAgeSeconds;
+    }
+
+    private record FileInfo(String contentType, long size, long lastModified, String etag) {
+    }
+
+    private record Range(long start, long end) {
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        RequestMetrics metrics = new RequestMetrics("images").model("none", false);
+        try (exchange) {
+            String method = exchange.getRequestMethod().toUpperCase();
+            boolean head = method.equals("HEAD");
+            if (!head && !method.equals("GET")) {
+                exchange.getResponseHeaders().add("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Path file = resolve(exchange.getRequestURI().getPath());
+            FileInfo info = file == null ? null : info(file);
+            if (info == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("ETag", info.etag());
+            headers.add("Last-Modified", HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(info.lastModified()), ZoneOffset.UTC)));
+            headers.add("Cache-Control", cacheControl);
+            headers.add("Accept-Ranges", "bytes");
+
+            if (notModified(exchange.getRequestHeaders(), info)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            headers.add("Content-Type", info.contentType());
+            Range range = parseRange(exchange.getRequestHeaders(), info);
+            if (range != null && range.start() < 0) {
+                headers.add("Content-Range", "bytes */" + info.size());
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+
+            long start = 0;
+            long length = info.size();
+            int status = 200;
+            if (range != null) {
+                start = range.start();
+                length = range.length();
+                status = 206;
+                headers.add("Content-Range", "bytes " + range.start() + "-" + range.end() + "/" + info.size());
+            }
+
+            if (head) {
+                headers.add("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            // 长度为 0 时 sendResponseHeaders 需要传 -1
+            exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            if (length > 0) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                     OutputStream os = exchange.getResponseBody()) {
+                    // 目标是包装 OutputStream 的 Channel，transferTo 经堆缓冲区复制，不是 sendfile
+                    WritableByteChannel target = Channels.newChannel(os);
+                    long position = start;
+                    long remaining = length;
+                    while (remaining > 0) {
+                        long sent = channel.transferTo(position, remaining, target);
+                        if (sent <= 0) {
+                            break;
+                        }
+                        position += sent;
+                        remaining -= sent;
+                    }
+                    metrics.responseBytes(position - start);
+                }
+            }
+        } finally {
+            metrics.finish(exchange);
+        }
+    }
+
+    /**
+     * 把请求路径解析为根目录下的文件，路径越界或不合法时返回 null
+     */
+    private Path resolve(String uriPath) {
+        if (!uriPath.startsWith(contextPath)) {
+            return null;
+        }
+        String name = uriPath.substring(contextPath.length());
+        if (name.isEmpty() || name.indexOf('\0') >= 0 || name.contains("\\")) {
+            return null;
+        }
+        try {
+            Path file = root.resolve(name).normalize();
+            return file.startsWith(root) && !file.equals(root) ? file : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 读取文件元数据，文件大小或修改时间变化时重新计算
+     */
+    private FileInfo info(Path file) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            metadata.remove(file.toString());
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            return null;
+        }
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String key = file.toString();
+        FileInfo cached = metadata.get(key);
+        if (cached != null && cached.size() == size && cached.lastModified() == lastModified) {
+            return cached;
+        }
+        String contentType = cached != null ? cached.contentType() : Files.probeContentType(file);
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        FileInfo info = new FileInfo(contentType, size, lastModified,
+                "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"");
+        if (metadata.size() >= MAX_CACHED_FILES) {
+            metadata.clear();
+        }
+        metadata.put(key, info);
+        return info;
+    }
+
+    private static boolean notModified(Headers requestHeaders, FileInfo info) {
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String candidate = tag.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(info.etag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince.trim(), HTTP_DATE).toInstant().toEpochMilli();
+                // HTTP 日期只精确到秒
+                return info.lastModified() / 1000 <= since / 1000;
+            } catch (DateTimeParseException ignored) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 解析单个 Range 请求
+     *
+     * @return null 表示返回完整文件；start 为 -1 表示范围无法满足 (416)
+     */
+    private static Range parseRange(Headers requestHeaders, FileInfo info) {
+        String header = requestHeaders.getFirst("Range");
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            // 不支持多段 Range，按完整文件返回
+            return null;
+        }
+        String ifRange = requestHeaders.getFirst("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(info.etag())) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long size = info.size();
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // bytes=-N 表示最后 N 个字节
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new Range(-1, -1);
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+            if (start >= size || start > end) {
+                return new Range(-1, -1);
+            }
+            return new Range(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
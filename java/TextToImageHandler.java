@@ -6,30 +6,55 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
-import utils.BearerTokenGenerator;
-import utils.BearerTokenGeneratorNative;
+import utils.AdmissionController;
+import utils.ApiKeys;
+import utils.Config;
+import utils.Log;
+import utils.Metrics;
+import utils.RequestBodyReader;
+import utils.RequestMetrics;
+import utils.SseEvent;
+import utils.ServerExecutor;
+import utils.TokenProviders;
+import utils.TtlCache;
+import utils.UpstreamClient;
+import utils.UpstreamRetry;
 import utils.utils;
 
 public class TextToImageHandler implements HttpHandler {
-    private final HttpClient httpClient = HttpClient.newHttpClient();
-    private final Executor executor = Executors.newFixedThreadPool(10); // 使用固定大小的线程池
+    private final Executor executor = ServerExecutor.get(); // 与 HttpServer 共用的执行器
     private static final int CACHE_MAX_SIZE = 100;
     private static final String OPENAI_API_KEY = "YOUR_OPENAI_API_KEY"; // 请替换为您的 OpenAI API 密钥
     private static final String OPENAI_API_URI = "http://127.0.0.1:"+Main.port+"/v1/chat/completions";
+    // 指标标签：图像请求固定使用 gpt-4o，且总是非流式
+    private static final String METRICS_HANDLER = "image_generations";
+    private static final String IMAGE_MODEL = "gpt-4o";
+    private static final Metrics.Family<Metrics.Counter> ATTEMPTS = Metrics.counter("chaton_image_attempts_total",
+            "图像生成尝试次数", "result");
+
+    // 图像结果缓存，默认关闭；只缓存成功生成的图像 URL
+    private static final boolean IMAGE_CACHE_ENABLED = Config.getBoolean("image.cache.enabled", false);
+    private static final TtlCache<String, List<String>> imageCache = new TtlCache<>("图像结果缓存",
+            Config.getInt("image.cache.max.entries", 256),
+            Config.getLong("image.cache.ttl.seconds", 600) * 1000,
+            Objects::nonNull);
+
+    static {
+        if (IMAGE_CACHE_ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(imageCache.stats())));
+        }
+    }
 
     private static final Map<String, String> promptCache = Collections.synchronizedMap(new LinkedHashMap<String, String>(CACHE_MAX_SIZE, 0.75f, true) {
         @Override
@@ -59,34 +84,44 @@ public class TextToImageHandler implements HttpHandler {
             return;
         }
 
-        // 异步处理请求
-        CompletableFuture.runAsync(() -> {
-            try {
-                // 读取请求体
-                InputStream is = exchange.getRequestBody();
-                String requestBody = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))
-                        .lines()
-                        .reduce("", (acc, line) -> acc + line);
+        // HttpServer 已在 ServerExecutor 的线程上调用 handle，直接在当前线程处理，不再提交一次任务
+        processGeneration(exchange);
+    }
 
-                System.out.println("Received Image Generations JSON: " + requestBody);
+    /**
+     * 处理一个 POST 图像生成请求，所有异常都转换为错误响应
+     *
+     * @param exchange 当前的 HttpExchange 对象
+     */
+    private void processGeneration(HttpExchange exchange) {
+        RequestMetrics metrics = new RequestMetrics(METRICS_HANDLER).model(IMAGE_MODEL, false);
+        ApiKeys.Lease lease = null;
+        try {
+            // 校验 API Key 并占用配额，未配置 auth.keys.file 时不校验
+            lease = ApiKeys.acquire(exchange);
 
-                JSONObject userInput = new JSONObject(requestBody);
+            // 读取请求体
+            JSONObject userInput = RequestBodyReader.readJson(exchange);
 
-                // 验证必需的字段
-                if (!userInput.has("prompt")) {
-                    utils.sendError(exchange, "缺少必需的字段: prompt");
-                    return;
-                }
+            if (Log.DEBUG) {
+                Log.debug("Received Image Generations JSON: " + userInput);
+            }
 
-                String userPrompt = userInput.optString("prompt", "").trim();
-                String responseFormat = userInput.optString("response_format", "").trim();
-                int n = userInput.optInt("n", 1); // 读取 n 的值，默认为 1
+            // 验证必需的字段
+            if (!userInput.has("prompt")) {
+                utils.sendError(exchange, "缺少必需的字段: prompt");
+                return;
+            }
 
-                if (userPrompt.isEmpty()) {
-                    utils.sendError(exchange, "Prompt 不能为空。");
-                    return;
-                }
-                //可选: 润色提示词
+            String userPrompt = userInput.optString("prompt", "").trim();
+            String responseFormat = userInput.optString("response_format", "").trim();
+            int n = userInput.optInt("n", 1); // 读取 n 的值，默认为 1
+
+            if (userPrompt.isEmpty()) {
+                utils.sendError(exchange, "Prompt 不能为空。");
+                return;
+            }
+            //可选: 润色提示词
 //                synchronized (promptCache) {
 //                    if (promptCache.containsKey(userPrompt)) {
 //                        userPrompt = promptCache.get(userPrompt);
@@ -103,268 +138,468 @@ public class TextToImageHandler implements HttpHandler {
 //                        System.out.println("Cache updated with prompt: " + userPrompt);
 //                    }
 //                }
-                System.out.println("Prompt: " + userPrompt);
-                System.out.println("Number of images to generate (n): " + n);
-
-                // 设置最大尝试次数为 2 * n
-                int maxAttempts = 2 * n;
-                System.out.println("Max Attempts: " + maxAttempts);
-
-                // 初始化用于存储多个 URL 的线程安全列表
-                List<String> finalDownloadUrls = Collections.synchronizedList(new ArrayList<>());
-
-                // 开始尝试生成图像
-                boolean success = attemptGenerateImages(userPrompt, responseFormat, n, maxAttempts, finalDownloadUrls).join();
-
-                if (success) {
-                    // 根据 response_format 返回相应的响应
-                    boolean isBase64Response = "b64_json".equalsIgnoreCase(responseFormat);
-
-                    JSONObject responseJson = new JSONObject();
-                    responseJson.put("created", System.currentTimeMillis() / 1000); // 添加 created 字段
-                    JSONArray dataArray = new JSONArray();
-
-                    if (isBase64Response) {
-                        // 对每个下载链接进行处理
-                        for (String downloadUrl : finalDownloadUrls) {
-                            try {
-                                // 下载图像并编码为 Base64
-                                byte[] imageBytes = downloadImage(downloadUrl);
-                                if (imageBytes == null) {
-                                    // 如果下载失败，跳过此链接
-                                    System.err.println("无法从 URL 下载图像: " + downloadUrl);
-                                    continue;
-                                }
-
-                                // 转换为 Base64
-                                String imageBase64 = Base64.getEncoder().encodeToString(imageBytes);
-
-                                JSONObject dataObject = new JSONObject();
-                                dataObject.put("b64_json", imageBase64);
-                                dataArray.put(dataObject);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                // 继续处理其他图像
-                            }
-                        }
-                    } else {
-                        // 直接返回所有图像的 URL
-                        for (String downloadUrl : finalDownloadUrls) {
-                            JSONObject dataObject = new JSONObject();
-                            dataObject.put("url", downloadUrl);
-                            dataArray.put(dataObject);
-                        }
-                    }
+            Log.debug("Prompt: " + userPrompt);
+            Log.debug("Number of images to generate (n): " + n);
+
+            // 设置最大尝试次数为 2 * n
+            int maxAttempts = 2 * n;
+            Log.debug("Max Attempts: " + maxAttempts);
+
+            // 根据 response_format 返回相应的响应
+            boolean isBase64Response = "b64_json".equalsIgnoreCase(responseFormat);
+
+            // 开始尝试生成图像，b64_json 时每张图像就绪后立即开始下载
+            List<GeneratedImage> images = generateOrReuseImages(userPrompt, responseFormat, isBase64Response, n, maxAttempts);
+
+            if (images.size() >= n && isBase64Response) {
+                // 边下载边编码，直接写入客户端
+                writeBase64Response(exchange, images, n);
+            } else if (images.size() >= n) {
+                JSONObject responseJson = new JSONObject();
+                responseJson.put("created", System.currentTimeMillis() / 1000); // 添加 created 字段
+                JSONArray dataArray = new JSONArray();
+
+                // 直接返回所有图像的 URL
+                for (GeneratedImage image : images) {
+                    JSONObject dataObject = new JSONObject();
+                    dataObject.put("url", image.url());
+                    dataArray.put(dataObject);
+                }
 
-                    // 如果收集的 URL 数量不足 n，则通过复制现有的 URL 来填充
-                    while (dataArray.length() < n && dataArray.length() > 0) {
-                        for (int i = 0; i < dataArray.length() && dataArray.length() < n; i++) {
-                            JSONObject original = dataArray.getJSONObject(i);
-                            dataArray.put(original);
-                        }
+                // 如果收集的 URL 数量不足 n，则通过复制现有的 URL 来填充
+                while (dataArray.length() < n && dataArray.length() > 0) {
+                    for (int i = 0; i < dataArray.length() && dataArray.length() < n; i++) {
+                        JSONObject original = dataArray.getJSONObject(i);
+                        dataArray.put(original);
                     }
+                }
 
-                    responseJson.put("data", dataArray);
+                responseJson.put("data", dataArray);
 
-                    try {
-                        byte[] responseBytes = responseJson.toString().getBytes(StandardCharsets.UTF_8);
-                        exchange.getResponseHeaders().add("Content-Type", "application/json");
-                        exchange.sendResponseHeaders(200, responseBytes.length);
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            os.write(responseBytes);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        utils.sendError(exchange, "发送响应时发生错误: " + e.getMessage());
+                try {
+                    byte[] responseBytes = responseJson.toString().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().add("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, responseBytes.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(responseBytes);
                     }
+                    metrics.responseBytes(responseBytes.length);
+                } catch (IOException e) {
+                    Log.error("发送响应时发生错误", e);
+                    utils.sendError(exchange, "发送响应时发生错误: " + e.getMessage());
+                }
+
+            } else {
+                // 如果在所有尝试后仍未收集到足够的链接，则返回错误
+                utils.sendError(exchange, "无法生成足够数量的图像。");
+            }
+
+        } catch (ApiKeys.UnauthorizedException e) {
+            utils.sendError(exchange, 401, e.getMessage());
+        } catch (ApiKeys.QuotaExceededException e) {
+            utils.sendTooManyRequests(exchange, e.retryAfterSeconds(), e.getMessage());
+        } catch (RequestBodyReader.TooLargeException e) {
+            utils.sendError(exchange, 413, e.getMessage());
+        } catch (AdmissionController.RejectedException e) {
+            utils.sendTooManyRequests(exchange, e.retryAfterSeconds(), e.getMessage());
+        } catch (JSONException je) {
+            Log.warn("JSON 解析错误", je);
+            utils.sendError(exchange, "JSON 解析错误: " + je.getMessage());
+        } catch (Exception e) {
+            Log.error("处理图像生成请求失败", e);
+            utils.sendError(exchange, "内部服务器错误: " + e.getMessage());
+        } finally {
+            metrics.finish(exchange);
+            if (lease != null) {
+                lease.finish(metrics);
+            }
+        }
+    }
+
+    /**
+     * 生成的图像
+     *
+     * @param url      最终下载链接
+     * @param download b64_json 格式下已开始的下载，结果为响应体输入流（失败时为 null）；其他格式为 null
+     */
+    private record GeneratedImage(String url, CompletableFuture<InputStream> download) {
+    }
 
+    /**
+     * 以 chunked 方式流式写出 b64_json 响应
+     * <p>
+     * 每张图像从下载流经 Base64 编码器直接写入客户端，不生成 byte[]、base64 字符串或完整的 JSON，
+     * 每个请求只占用固定大小的缓冲区。下载失败的图像被跳过，不足 n 张时重新下载已成功的图像来填充。
+     * 响应头发出后再失败无法返回错误，只能断开连接。
+     */
+    private void writeBase64Response(HttpExchange exchange, List<GeneratedImage> images, int n) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        List<String> written = new ArrayList<>();
+        try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024)) {
+            os.write("{\"data\":[".getBytes(StandardCharsets.UTF_8));
+            for (GeneratedImage image : images) {
+                if (writeBase64Image(os, image.download(), !written.isEmpty())) {
+                    written.add(image.url());
                 } else {
-                    // 如果在所有尝试后仍未收集到足够的链接，则返回错误
-                    utils.sendError(exchange, "无法生成足够数量的图像。");
+                    // 如果下载失败，跳过此链接
+                    Log.warn("无法从 URL 下载图像: " + image.url());
                 }
+            }
+            // 如果收集的图像数量不足 n，则通过重新下载已有的图像来填充
+            int count = written.size();
+            for (int i = 0; count > 0 && count < n && i < n; i++) {
+                if (writeBase64Image(os, downloadImage(written.get(i % written.size())), true)) {
+                    count++;
+                }
+            }
+            os.write(("],\"created\":" + System.currentTimeMillis() / 1000 + "}").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.warn("发送图像时发生错误: " + e.getMessage());
+            exchange.close();
+        } finally {
+            // 关闭未被读取的下载流
+            for (GeneratedImage image : images) {
+                image.download().thenAccept(TextToImageHandler::closeQuietly);
+            }
+        }
+    }
 
-            } catch (JSONException je) {
-                je.printStackTrace();
-                utils.sendError(exchange, "JSON 解析错误: " + je.getMessage());
-            } catch (Exception e) {
-                e.printStackTrace();
-                utils.sendError(exchange, "内部服务器错误: " + e.getMessage());
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
             }
-        }, executor);
+        }
     }
 
     /**
-     * 尝试生成图像，带有重试机制。
+     * 写出一个 {"b64_json": "..."} 元素
      *
-     * @param userPrompt       用户的提示
-     * @param responseFormat   响应格式
-     * @param n                需要生成的图像数量
-     * @param maxAttempts      最大尝试次数
-     * @param finalDownloadUrls 收集的最终下载链接列表
-     * @return CompletableFuture<Boolean> 表示是否成功收集到足够的下载链接
+     * @return 是否写出；下载失败时不写任何内容
      */
-    private CompletableFuture<Boolean> attemptGenerateImages(String userPrompt, String responseFormat, int n,
-                                                             int maxAttempts, List<String> finalDownloadUrls) {
-        return CompletableFuture.supplyAsync(() -> {
-            for (int attempt = 1; attempt <= maxAttempts; attempt++) {
-                int needed = n - finalDownloadUrls.size();
-                if (needed <= 0) {
-                    break;
+    private boolean writeBase64Image(OutputStream os, CompletableFuture<InputStream> download, boolean separator) throws IOException {
+        InputStream in = download.join();
+        if (in == null) {
+            return false;
+        }
+        try (in) {
+            os.write(((separator ? "," : "") + "{\"b64_json\":\"").getBytes(StandardCharsets.UTF_8));
+            // 编码器关闭时只补齐末尾的 padding，不关闭客户端输出流
+            try (OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
                 }
 
-                System.out.println("Attempt " + attempt + " - 需要生成的图像数量: " + needed);
+                @Override
+                public void close() {
+                }
+            })) {
+                in.transferTo(encoder);
+            }
+            os.write("\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        return true;
+    }
 
-                List<CompletableFuture<String>> futures = new ArrayList<>();
+    /**
+     * 生成图像，开启 image.cache.enabled 时复用相同 prompt、n 与 response_format 的结果
+     * <p>
+     * 缓存中只保存图像 URL。并发的相同请求只生成一次，负责生成的请求沿用流水线中已开始的下载，
+     * 其余请求和之后命中缓存的请求根据 URL 重新下载。
+     *
+     * @return 成功生成的图像，数量少于 n 表示失败（此时已开始的下载均已关闭）
+     * @throws AdmissionController.RejectedException 尝试因准入控制被拒绝而无法凑够 n 张
+     */
+    private List<GeneratedImage> generateOrReuseImages(String userPrompt, String responseFormat, boolean base64, int n,
+                                                       int maxAttempts) throws AdmissionController.RejectedException {
+        try {
+            return generateOrReuseImagesAsync(userPrompt, responseFormat, base64, n, maxAttempts);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof AdmissionController.RejectedException rejected) {
+                throw rejected;
+            }
+            throw e;
+        }
+    }
 
-                for (int i = 0; i < needed; i++) {
-                    int finalAttempt = attempt;
-                    CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
-                        try {
-                            // 构建新的 TextToImage JSON 请求体
-                            JSONObject textToImageJson = new JSONObject();
-                            textToImageJson.put("function_image_gen", true);
-                            textToImageJson.put("function_web_search", true);
-                            textToImageJson.put("image_aspect_ratio", "1:1");
-                            textToImageJson.put("image_style", "anime"); // 固定 image_style
-                            textToImageJson.put("max_tokens", 8000);
-                            JSONArray messages = new JSONArray();
-                            JSONObject message = new JSONObject();
-                            message.put("content", "You are a helpful artist, please draw a picture. Based on imagination, draw a picture with user message.");
-                            message.put("role", "system");
-                            JSONObject userMessage = new JSONObject();
-                            userMessage.put("content", "Draw: " + userPrompt);
-                            userMessage.put("role", "user");
-                            messages.put(message);
-                            messages.put(userMessage);
-                            textToImageJson.put("messages", messages);
-                            textToImageJson.put("model", "gpt-4o"); // 固定 model
-                            textToImageJson.put("source", "chat/free"); // 固定 source
-
-                            String modifiedRequestBody = textToImageJson.toString();
-
-                            // 构建请求
-                            String[] tmpToken = BearerTokenGenerator.GetBearer(modifiedRequestBody);
-                            System.out.println("Attempt " + finalAttempt + " - 构建的请求: " + modifiedRequestBody);
-                            HttpRequest request = utils.buildHttpRequest(modifiedRequestBody, tmpToken);
-
-                            // 发送请求并处理 SSE 流
-                            HttpResponse.BodyHandler<Stream<String>> bodyHandler = HttpResponse.BodyHandlers.ofLines();
-                            HttpResponse<Stream<String>> response = httpClient.send(request, bodyHandler);
-
-                            if (response.statusCode() != 200) {
-                                System.err.println("Attempt " + finalAttempt + " - API 错误: " + response.statusCode());
-                                return null;
-                            }
-
-                            // 初始化用于拼接 URL 的 StringBuilder
-                            StringBuilder urlBuilder = new StringBuilder();
-
-                            // 读取 SSE 流并拼接 URL
-                            response.body().forEach(line -> {
-                                if (line.startsWith("data: ")) {
-                                    String data = line.substring(6).trim();
-                                    if (data.equals("[DONE]")) {
-                                        return; // 完成读取
-                                    }
+    private List<GeneratedImage> generateOrReuseImagesAsync(String userPrompt, String responseFormat, boolean base64, int n, int maxAttempts) {
+        if (!IMAGE_CACHE_ENABLED) {
+            return generateImages(userPrompt, base64, n, maxAttempts).join();
+        }
+        String key = n + "\n" + responseFormat.toLowerCase(Locale.ROOT) + "\n" + userPrompt;
+        AtomicReference<List<GeneratedImage>> generated = new AtomicReference<>();
+        List<String> urls = imageCache.get(key, () -> generateImages(userPrompt, base64, n, maxAttempts)
+                .thenApply(images -> {
+                    generated.set(images);
+                    return images.size() >= n ? images.stream().map(GeneratedImage::url).toList() : null;
+                })).join();
+        if (generated.get() != null) {
+            return generated.get();
+        }
+        if (urls == null) {
+            return List.of();
+        }
+        Log.debug("图像结果缓存命中: " + userPrompt);
+        return urls.stream()
+                .map(url -> new GeneratedImage(url, base64 ? downloadImage(url) : null))
+                .toList();
+    }
 
-                                    try {
-                                        JSONObject sseJson = new JSONObject(data);
-                                        if (sseJson.has("choices")) {
-                                            JSONArray choices = sseJson.getJSONArray("choices");
-                                            for (int j = 0; j < choices.length(); j++) {
-                                                JSONObject choice = choices.getJSONObject(j);
-                                                JSONObject delta = choice.optJSONObject("delta");
-                                                if (delta != null && delta.has("content")) {
-                                                    String content = delta.getString("content");
-                                                    urlBuilder.append(content);
-                                                }
-                                            }
-                                        }
-                                    } catch (JSONException e) {
-                                        System.err.println("Attempt " + finalAttempt + " - JSON解析错误: " + e.getMessage());
-                                    }
-                                }
-                            });
-
-                            String imageMarkdown = urlBuilder.toString();
-                            // Step 1: 检查Markdown文本是否为空
-                            if (imageMarkdown.isEmpty()) {
-                                System.out.println("Attempt " + finalAttempt + " - 无法从 SSE 流中构建图像 Markdown。");
-                                return null;
-                            }
-
-                            // Step 2: 从Markdown中提取图像路径
-                            String extractedPath = extractPathFromMarkdown(imageMarkdown);
-
-                            // Step 3: 如果没有提取到路径，输出错误信息
-                            if (extractedPath == null || extractedPath.isEmpty()) {
-                                System.out.println("Attempt " + finalAttempt + " - 无法从 Markdown 中提取路径。");
-                                return null;
-                            }
-
-                            // Step 4: 过滤掉 "https://spc.unk/" 前缀
-                            extractedPath = extractedPath.replace("https://spc.unk/", "");
-
-                            // 输出提取到的路径
-                            System.out.println("Attempt " + finalAttempt + " - 提取的路径: " + extractedPath);
-
-                            // Step 5: 拼接最终的存储URL
-                            String storageUrl = "https://api.chaton.ai/storage/" + extractedPath;
-                            System.out.println("Attempt " + finalAttempt + " - 存储URL: " + storageUrl);
-
-                            // 请求 storageUrl 获取 JSON 数据
-                            String finalDownloadUrl = fetchGetUrlFromStorage(storageUrl);
-                            if (finalDownloadUrl == null || finalDownloadUrl.isEmpty()) {
-                                System.out.println("Attempt " + finalAttempt + " - 无法从 storage URL 获取最终下载链接。");
-                                return null;
-                            }
-
-                            System.out.println("Final Download URL: " + finalDownloadUrl);
-
-                            return finalDownloadUrl;
-
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            System.err.println("Attempt " + finalAttempt + " - 处理响应时发生错误: " + e.getMessage());
-                            return null;
-                        }
-                    }, executor);
+    /**
+     * 并发生成图像，没有轮次屏障。
+     * <p>
+     * 一开始同时发起 n 个尝试，任何一个尝试失败后补发新的尝试，总尝试次数不超过 maxAttempts；
+     * 补发与补全请求的重试共用 {@link UpstreamRetry} 的重试预算，并按同样的带抖动退避延迟发出，预算不足时不再补发。
+     * 每个尝试在发出上游请求前取得准入许可，被拒绝时不再补发，凑不够 n 张时以 RejectedException 结束。
+     * 每个尝试拿到图像 Markdown 后立即查询 storage，b64_json 时再立即开始下载，不等待其他尝试。
+     * 收集到 n 张图像，或剩余的尝试已不可能凑够 n 张时立即结束。
+     * 整个流程基于 sendAsync，等待上游期间不占用线程。
+     *
+     * @param userPrompt  用户的提示
+     * @param base64      是否需要下载图像数据
+     * @param n           需要生成的图像数量
+     * @param maxAttempts 最大尝试次数
+     * @return 成功生成的图像，数量少于 n 表示失败（此时已开始的下载均已关闭）
+     */
+    private CompletableFuture<List<GeneratedImage>> generateImages(String userPrompt, boolean base64, int n, int maxAttempts) {
+        ImagePipeline pipeline = new ImagePipeline(userPrompt, base64, n, maxAttempts);
+        pipeline.start();
+        return pipeline.result;
+    }
+
+    /**
+     * 一次图像生成请求的尝试调度状态
+     */
+    private class ImagePipeline {
+        private final String userPrompt;
+        private final boolean base64;
+        private final int n;
+        private final int maxAttempts;
+        private final List<GeneratedImage> images = new ArrayList<>();
+        private final CompletableFuture<List<GeneratedImage>> result = new CompletableFuture<>();
+        private int started;
+        private int inFlight;
+        private AdmissionController.RejectedException rejected;
+
+        ImagePipeline(String userPrompt, boolean base64, int n, int maxAttempts) {
+            this.userPrompt = userPrompt;
+            this.base64 = base64;
+            this.n = n;
+            this.maxAttempts = maxAttempts;
+        }
+
+        synchronized void start() {
+            if (n <= 0) {
+                result.complete(List.of());
+                return;
+            }
+            for (int i = 0; i < n && started < maxAttempts; i++) {
+                UpstreamRetry.deposit();
+                launch(0);
+            }
+        }
 
-                    futures.add(future);
+        // 调用方持有锁
+        private void launch(long delayMillis) {
+            int attempt = ++started;
+            inFlight++;
+            Log.debug("Attempt " + attempt + " - 已完成: " + images.size() + ", 进行中: " + inFlight);
+            generateOne(userPrompt, attempt, base64, delayMillis)
+                    .whenComplete((image, error) -> onAttemptDone(attempt, image, error));
+        }
+
+        private synchronized void onAttemptDone(int attempt, GeneratedImage image, Throwable error) {
+            inFlight--;
+            ATTEMPTS.labels(image != null ? "success" : "failure").inc();
+            if (result.isDone()) {
+                // 已经结束，关闭晚到的尝试已开始的下载，释放上游连接
+                if (image != null && image.download() != null) {
+                    image.download().thenAccept(TextToImageHandler::closeQuietly);
                 }
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof AdmissionController.RejectedException e) {
+                rejected = e;
+            } else if (error != null) {
+                Log.warn("Attempt " + attempt + " - 处理响应时发生错误: " + error.getMessage());
+            }
+            if (image != null) {
+                images.add(image);
+                if (images.size() >= n) {
+                    result.complete(List.copyOf(images));
+                    return;
+                }
+            } else if (rejected == null && started < maxAttempts && UpstreamRetry.tryRetry(METRICS_HANDLER, "image")) {
+                // 失败后退避补发，不等待其他尝试
+                launch(UpstreamRetry.backoffMillis(started - n + 1));
+            }
+            // 进行中的尝试全部成功也凑不够 n 张时提前结束
+            if (!result.isDone() && images.size() + inFlight < n) {
+                // 不足 n 张时调用方不会读取已开始的下载，在这里关闭
+                closeDownloads();
+                if (rejected != null) {
+                    result.completeExceptionally(rejected);
+                    return;
+                }
+                Log.debug("已达到最大尝试次数，仍未收集到足够数量的下载链接。");
+                result.complete(List.copyOf(images));
+            }
+        }
 
-                // 等待所有任务完成
-                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        private void closeDownloads() {
+            for (GeneratedImage collected : images) {
+                if (collected.download() != null) {
+                    collected.download().thenAccept(TextToImageHandler::closeQuietly);
+                }
+            }
+        }
+    }
 
-                // 收集成功的下载链接
-                for (CompletableFuture<String> future : futures) {
+    /**
+     * 单次尝试：生成图像、查询 storage，b64_json 时下载图像
+     *
+     * @param delayMillis 发出上游请求前的退避时间
+     * @return 生成的图像，失败时为 null
+     */
+    private CompletableFuture<GeneratedImage> generateOne(String userPrompt, int attempt, boolean base64, long delayMillis) {
+        Executor start = delayMillis > 0 ? CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS, executor) : executor;
+        return CompletableFuture.supplyAsync(() -> {
                     try {
-                        String url = future.get();
-                        if (url != null && !url.isEmpty()) {
-                            finalDownloadUrls.add(url);
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        System.err.println("Attempt " + attempt + " - 获取下载链接时发生错误: " + e.getMessage());
+                        return AdmissionController.get().acquire();
+                    } catch (AdmissionController.RejectedException e) {
+                        throw new CompletionException(e);
                     }
-                }
+                }, start)
+                .thenCompose(permit -> {
+                    try {
+                        HttpRequest request = buildImageRequest(userPrompt, attempt);
+                        // 上游响应读取完毕后归还许可
+                        return UpstreamClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                                .whenComplete((response, error) -> {
+                                    permit.close();
+                                    if (response != null) {
+                                        // 只有生成请求本身调整并发上限，storage 查询与图片下载不参与
+                                        AdmissionController.get().onUpstreamResponse(response.statusCode(),
+                                                UpstreamClient.retryAfterSeconds(response));
+                                    }
+                                    RequestMetrics.upstreamResponse(METRICS_HANDLER, IMAGE_MODEL, false,
+                                            response != null ? response.statusCode() : -1);
+                                });
+                    } catch (RuntimeException e) {
+                        permit.close();
+                        throw e;
+                    }
+                })
+                .thenCompose(response -> {
+                    String storageUrl = storageUrlFromResponse(response, attempt);
+                    if (storageUrl == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return fetchGetUrlFromStorage(storageUrl);
+                })
+                .thenCompose(finalDownloadUrl -> {
+                    if (finalDownloadUrl == null || finalDownloadUrl.isEmpty()) {
+                        Log.debug("Attempt " + attempt + " - 无法从 storage URL 获取最终下载链接。");
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    Log.debug("Final Download URL: " + finalDownloadUrl);
+                    if (!base64) {
+                        return CompletableFuture.completedFuture(new GeneratedImage(finalDownloadUrl, null));
+                    }
+                    // 立即开始下载，只接收响应头和少量缓冲，其余数据在写出响应时再读取
+                    return CompletableFuture.completedFuture(new GeneratedImage(finalDownloadUrl, downloadImage(finalDownloadUrl)));
+                });
+    }
+
+    /**
+     * 构建图像生成的上游请求
+     */
+    private HttpRequest buildImageRequest(String userPrompt, int attempt) {
+        // 构建新的 TextToImage JSON 请求体
+        JSONObject textToImageJson = new JSONObject();
+        textToImageJson.put("function_image_gen", true);
+        textToImageJson.put("function_web_search", true);
+        textToImageJson.put("image_aspect_ratio", "1:1");
+        textToImageJson.put("image_style", "anime"); // 固定 image_style
+        textToImageJson.put("max_tokens", 8000);
+        JSONArray messages = new JSONArray();
+        JSONObject message = new JSONObject();
+        message.put("content", "You are a helpful artist, please draw a picture. Based on imagination, draw a picture with user message.");
+        message.put("role", "system");
+        JSONObject userMessage = new JSONObject();
+        userMessage.put("content", "Draw: " + userPrompt);
+        userMessage.put("role", "user");
+        messages.put(message);
+        messages.put(userMessage);
+        textToImageJson.put("messages", messages);
+        textToImageJson.put("model", "gpt-4o"); // 固定 model
+        textToImageJson.put("source", "chat/free"); // 固定 source
+
+        String modifiedRequestBody = textToImageJson.toString();
+
+        // 构建请求
+        String[] tmpToken = TokenProviders.get().getBearer(modifiedRequestBody);
+        Log.debug("Attempt " + attempt + " - 构建的请求: " + modifiedRequestBody);
+        return utils.buildHttpRequest(modifiedRequestBody, tmpToken);
+    }
+
+    /**
+     * 从上游 SSE 响应中拼出图像 Markdown 并得到 storage URL
+     *
+     * @return storage URL，失败时返回 null
+     */
+    private String storageUrlFromResponse(HttpResponse<String> response, int attempt) {
+        if (response.statusCode() != 200) {
+            Log.warn("Attempt " + attempt + " - API 错误: " + response.statusCode());
+            return null;
+        }
 
-                // 检查是否已经收集到足够的下载链接
-                if (finalDownloadUrls.size() >= n) {
-                    return true;
+        // 读取 SSE 流并拼接 URL
+        StringBuilder urlBuilder = new StringBuilder();
+        response.body().lines().forEach(line -> {
+            if (line.startsWith("data: ")) {
+                String data = line.substring(6).trim();
+                if (data.equals("[DONE]")) {
+                    return; // 完成读取
+                }
+                if (!SseEvent.appendContent(data, urlBuilder)) {
+                    Log.warn("Attempt " + attempt + " - JSON解析错误: " + data);
                 }
             }
+        });
 
-            // 在所有尝试后，检查是否收集到足够的链接
-            if (finalDownloadUrls.size() >= n) {
-                return true;
-            } else {
-                System.out.println("已达到最大尝试次数，仍未收集到足够数量的下载链接。");
-                return false;
-            }
+        String imageMarkdown = urlBuilder.toString();
+        // Step 1: 检查Markdown文本是否为空
+        if (imageMarkdown.isEmpty()) {
+            Log.debug("Attempt " + attempt + " - 无法从 SSE 流中构建图像 Markdown。");
+            return null;
+        }
+
+        // Step 2: 从Markdown中提取图像路径
+        String extractedPath = extractPathFromMarkdown(imageMarkdown);
+
+        // Step 3: 如果没有提取到路径，输出错误信息
+        if (extractedPath == null || extractedPath.isEmpty()) {
+            Log.debug("Attempt " + attempt + " - 无法从 Markdown 中提取路径。");
+            return null;
+        }
+
+        // Step 4: 过滤掉 "https://spc.unk/" 前缀
+        extractedPath = extractedPath.replace("https://spc.unk/", "");
+
+        // 输出提取到的路径
+        Log.debug("Attempt " + attempt + " - 提取的路径: " + extractedPath);
 
-        }, executor);
+        // Step 5: 拼接最终的存储URL
+        String storageUrl = utils.UPSTREAM_BASE + "/storage/" + extractedPath;
+        Log.debug("Attempt " + attempt + " - 存储URL: " + storageUrl);
+        return storageUrl;
     }
+
     /**
      * 使用 OpenAI 的 chat/completions API 润色用户的提示词
      *
@@ -372,19 +607,7 @@ public class TextToImageHandler implements HttpHandler {
      * @return 润色后的提示词
      */
     private String refinePrompt(String prompt) {
-        HttpURLConnection connection = null;
         try {
-            URL url = new URL(OPENAI_API_URI);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + OPENAI_API_KEY);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-
-            // 设置超时时间（以毫秒为单位）
-            connection.setConnectTimeout(30000); // 30 秒连接超时
-            connection.setReadTimeout(60000);    // 60 秒读取超时
-
             // 构建请求体
             JSONObject requestBody = new JSONObject();
             requestBody.put("model", "claude-3-5-sonnet");
@@ -407,57 +630,38 @@ public class TextToImageHandler implements HttpHandler {
 
             requestBody.put("messages", messages);
 
-            // 发送请求体
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+            // 与上游请求共用连接池与超时设置
+            HttpRequest request = UpstreamClient.newRequest(OPENAI_API_URI)
+                    .header("Authorization", "Bearer " + OPENAI_API_KEY)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
+                    .build();
+            HttpResponse<String> response = UpstreamClient.send(request, HttpResponse.BodyHandlers.ofString());
 
             // 处理响应
-            int responseCode = connection.getResponseCode();
-            InputStream responseStream = (responseCode >= 200 && responseCode < 300) ?
-                    connection.getInputStream() : connection.getErrorStream();
-
+            int responseCode = response.statusCode();
             if (responseCode >= 200 && responseCode < 300) {
-                // 读取响应内容
-                BufferedReader reader = new BufferedReader(new InputStreamReader(responseStream, StandardCharsets.UTF_8));
-                StringBuilder responseBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
-
-                JSONObject responseJson = new JSONObject(responseBuilder.toString());
+                JSONObject responseJson = new JSONObject(response.body());
                 JSONArray choices = responseJson.getJSONArray("choices");
                 if (choices.length() > 0) {
                     JSONObject firstChoice = choices.getJSONObject(0);
                     String refinedPrompt = firstChoice.getJSONObject("message").getString("content").trim();
                     return refinedPrompt;
                 } else {
-                    System.err.println("OpenAI API 返回的 choices 数组为空。");
+                    Log.warn("OpenAI API 返回的 choices 数组为空。");
                     return null;
                 }
             } else {
-                // 读取错误信息
-                BufferedReader reader = new BufferedReader(new InputStreamReader(responseStream, StandardCharsets.UTF_8));
-                StringBuilder errorBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    errorBuilder.append(line);
-                }
-
-                String errorResponse = errorBuilder.toString();
-                System.err.println("OpenAI API 返回错误 (" + responseCode + "): " + errorResponse);
+                Log.warn("OpenAI API 返回错误 (" + responseCode + "): " + response.body());
                 return null;
             }
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         } catch (IOException | JSONException e) {
-            System.err.println("调用 OpenAI API 失败: " + e.getMessage());
+            Log.warn("调用 OpenAI API 失败: " + e.getMessage());
             return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
         }
     }
 
@@ -485,59 +689,61 @@ public class TextToImageHandler implements HttpHandler {
      * 从 storage URL 获取 JSON 并提取 getUrl
      *
      * @param storageUrl 拼接后的 storage URL
-     * @return getUrl 的值，如果失败则返回 null
+     * @return getUrl 的值，如果失败则为 null
      */
-    private String fetchGetUrlFromStorage(String storageUrl) {
-        try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(storageUrl))
-                    .GET()
-                    .build();
-
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-            if (response.statusCode() != 200) {
-                System.err.println("获取 storage URL 失败，状态码: " + response.statusCode());
-                return null;
-            }
+    private CompletableFuture<String> fetchGetUrlFromStorage(String storageUrl) {
+        HttpRequest request = UpstreamClient.newRequest(storageUrl)
+                .GET()
+                .build();
+
+        return UpstreamClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        Log.warn("获取 storage URL 失败，状态码: " + response.statusCode());
+                        return null;
+                    }
 
-            JSONObject jsonResponse = new JSONObject(response.body());
-            if (jsonResponse.has("getUrl")) {
-                return jsonResponse.getString("getUrl");
-            } else {
-                System.err.println("JSON 响应中缺少 'getUrl' 字段。");
-                return null;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+                    JSONObject jsonResponse = new JSONObject(response.body());
+                    if (jsonResponse.has("getUrl")) {
+                        return jsonResponse.getString("getUrl");
+                    } else {
+                        Log.warn("JSON 响应中缺少 'getUrl' 字段。");
+                        return null;
+                    }
+                })
+                .exceptionally(e -> {
+                    Log.warn("获取 storage URL 失败", e);
+                    return null;
+                });
     }
 
     /**
-     * 下载图像
+     * 开始下载图像
      *
      * @param imageUrl 图像的最终下载 URL
-     * @return 图像的字节数组，失败时返回 null
+     * @return 图像的响应体输入流，失败时为 null
      */
-    private byte[] downloadImage(String imageUrl) {
-        try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(imageUrl))
-                    .GET()
-                    .build();
-
-            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
-
-            if (response.statusCode() == 200) {
-                return response.body();
-            } else {
-                System.err.println("下载图像失败，状态码: " + response.statusCode());
-                return null;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+    private CompletableFuture<InputStream> downloadImage(String imageUrl) {
+        HttpRequest request = UpstreamClient.newRequest(imageUrl)
+                .GET()
+                .build();
+
+        return UpstreamClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .thenApply(response -> {
+                    if (response.statusCode() == 200) {
+                        return response.body();
+                    } else {
+                        Log.warn("下载图像失败，状态码: " + response.statusCode());
+                        try {
+                            response.body().close();
+                        } catch (IOException ignored) {
+                        }
+                        return null;
+                    }
+                })
+                .exceptionally(e -> {
+                    Log.warn("下载图像失败", e);
+                    return null;
+                });
     }
 }
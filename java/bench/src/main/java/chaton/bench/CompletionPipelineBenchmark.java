@@ -0,0 +1,102 @@
+package chaton.bench;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.CompletionResponses;
+import utils.Json;
+import utils.MessageNormalizer;
+import utils.SseCollector;
+import utils.TokenCounter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CompletionHandler 的请求规范化与非流式聚合
+ * <p>
+ * legacyNormalize 与 legacyAggregate 保留了旧版本用 org.json 解析和序列化的实现，与 Jackson 流式版本对比，
+ * 分配量可加 -prof gc 查看 gc.alloc.rate.norm。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompletionPipelineBenchmark {
+    private String requestBody;
+    private List<String> chatLines;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        stdout = Fixtures.silenceStdout();
+        requestBody = Fixtures.text(Fixtures.CHAT_REQUEST);
+        chatLines = Fixtures.lines(Fixtures.CHAT_STREAM);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * handle 中从请求 JSON 到上游请求体的过程
+     */
+    @Benchmark
+    public String normalize() throws IOException {
+        byte[] body = requestBody.getBytes(StandardCharsets.UTF_8);
+        JSONObject requestJson = Json.parseObject(body, 0, body.length);
+        JSONArray messages = requestJson.getJSONArray("messages");
+        boolean hasImage = MessageNormalizer.normalize(messages, "http://localhost");
+        JSONObject upstream = MessageNormalizer.buildUpstreamRequest(requestJson.optString("model", "gpt-4o"),
+                requestJson.optInt("max_tokens", 8000), requestJson.optDouble("temperature", 0.6), hasImage, messages);
+        return Json.toString(upstream);
+    }
+
+    /**
+     * 旧版本用 JSONTokener 解析、JSONObject.toString 序列化
+     */
+    @Benchmark
+    public String legacyNormalize() throws IOException {
+        JSONObject requestJson = new JSONObject(requestBody);
+        JSONArray messages = requestJson.getJSONArray("messages");
+        boolean hasImage = MessageNormalizer.normalize(messages, "http://localhost");
+        JSONObject upstream = MessageNormalizer.buildUpstreamRequest(requestJson.optString("model", "gpt-4o"),
+                requestJson.optInt("max_tokens", 8000), requestJson.optDouble("temperature", 0.6), hasImage, messages);
+        return upstream.toString();
+    }
+
+    /**
+     * handleNormalResponse 的聚合与响应构建
+     */
+    @Benchmark
+    public byte[] aggregate() throws IOException {
+        StringBuilder content = new SseCollector(false).collect(chatLines.stream()).content();
+        String text = content.toString();
+        return CompletionResponses.chatCompletion("gpt-4o", text, 16, TokenCounter.count(text));
+    }
+
+    @Benchmark
+    public byte[] legacyAggregate() {
+        StringBuilder content = new SseCollector(false).collect(chatLines.stream()).content();
+        String text = content.toString();
+        return JsonParityCheck.legacyChatCompletion("gpt-4o", text, 16, TokenCounter.count(text))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
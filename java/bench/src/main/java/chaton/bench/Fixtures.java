@@ -0,0 +1,86 @@
+package chaton.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 读取仓库根目录 fixtures 下录制的上游 SSE 与请求样本
+ * <p>
+ * 目录可通过 -Dfixtures.dir 指定，默认依次尝试 fixtures、../fixtures、../../fixtures。
+ */
+public class Fixtures {
+    public static final String CHAT_STREAM = "chat-stream.sse";
+    public static final String VISION_STREAM = "vision-stream.sse";
+    public static final String CHAT_REQUEST = "chat-request.json";
+
+    public static Path dir() {
+        String configured = System.getProperty("fixtures.dir");
+        if (configured != null) {
+            return Path.of(configured);
+        }
+        for (String candidate : new String[]{"fixtures", "../fixtures", "../../fixtures"}) {
+            Path path = Path.of(candidate);
+            if (Files.isDirectory(path)) {
+                return path;
+            }
+        }
+        throw new IllegalStateException("找不到 fixtures 目录，请通过 -Dfixtures.dir 指定");
+    }
+
+    /**
+     * @return SSE 样本的所有行（与 HttpResponse.BodyHandlers.ofLines 一致，包含空行）
+     */
+    public static List<String> lines(String name) {
+        try {
+            return Files.readAllLines(dir().resolve(name), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String text(String name) {
+        try {
+            return Files.readString(dir().resolve(name), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 丢弃所有写入的输出流，只统计字节数和 flush 次数
+     */
+    public static class CountingOutputStream extends OutputStream {
+        public long bytes;
+        public long flushes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    /**
+     * 代理代码中的 System.out 输出会淹没基准测试结果，测试期间将其丢弃
+     */
+    public static PrintStream silenceStdout() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return original;
+    }
+}
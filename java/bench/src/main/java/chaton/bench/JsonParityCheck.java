@@ -0,0 +1,439 @@
+package chaton.bench;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import utils.CompletionResponses;
+import utils.Json;
+import utils.MessageNormalizer;
+import utils.SseEvent;
+import utils.SseTransformer;
+import utils.TokenCounter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Jackson 流式读写与旧版本 org.json 实现的输出一致性检查
+ * <p>
+ * 这里保留了旧版本用 JSONObject 构建再 toString 的 chatCompletion、visionCompletion、web sources、识图 chunk、
+ * 缓存重放与 usage chunk，以及 new JSONObject(String) 的请求解析，与当前实现在同一组输入上逐字节比较。
+ * 输入包括 "&lt;/"、控制字符、U+2028、U+0080–U+009F、emoji、孤立代理项、1.50 / -0.0 / 1e5 / 超长整数等数字，
+ * 以及重复的键和不合法的 JSON。随机的 id、created 与 system_fingerprint 比较前统一替换，
+ * 任何不一致时输出两边的结果并以非 0 状态退出：
+ * <pre>
+ * java -cp target/benchmarks.jar chaton.bench.JsonParityCheck
+ * </pre>
+ */
+public class JsonParityCheck {
+    private static final String[] STRINGS = {
+            "hello", "", "a</b>c</", "tab\tnl\ncr\rbs\\q\"", "ctl\u0001\u001f\u007f\u0080\u009f",
+            "  ⃿℀", "emoji 😀 中文", "lone \uD800 x \uDC00", "slash / and <script>",
+            "x".repeat(5000) + "é",
+    };
+
+    private static final String[] VISION_EVENTS = {
+            "{\"id\":\"abc\",\"created\":123,\"model\":\"m\",\"choices\":[{\"index\":2,\"delta\":{\"content\":\"hi</x>\\u2028\"}}]}",
+            "{\"choices\":[{\"delta\":{\"content\":\"a\"}},{\"delta\":{\"content\":\"b\",\"images\":[{\"data\":\"http://x/y\"}]}}],\"id\":\"z\",\"created\":\"77\"}",
+            "{\"choices\":[{\"foo\":1},{\"delta\":{\"images\":[{\"data\":\"u1\"},{\"data\":\"u2\"}]}}],\"id\":5,\"created\":\"bad\",\"model\":1.50}",
+            "{\"choices\":[{\"delta\":{\"content\":\"a\"}}],\"id\":5}",
+            "{\"choices\":[{\"delta\":{\"content\":null}}]}",
+            "{\"choices\":[{\"delta\":{\"content\":\"\\ud83d\\ude00 e\\u0001\"}}],\"model\":null,\"created\":1.9}",
+            "{\"choices\":{}}", "not json", "{\"a\":1,\"a\":2}", "{\"x\":[1,{\"y\":null}],\"choices\":[]}",
+            "{\"choices\":[{\"delta\":{\"images\":[{\"data\":1}]}}]}",
+    };
+
+    private static final String[] CHAT_EVENTS = {
+            "{\"data\":{\"web\":{\"sources\":[{\"url\":\"http://a/</b>\"},{\"url\":\"\\u2028x\\ud83d\\ude00\"}]}},\"model\":\"gpt-4o-mini\"}",
+            "{\"data\":{\"web\":{\"sources\":[{\"url\":\"http://a\"}]}}}",
+            "{\"choices\":[{\"delta\":{\"content\":\"x\"}}]}",
+            "[DONE]",
+    };
+
+    private static final String[] REQUESTS = {
+            "{\"messages\":[{\"role\":\"user\",\"content\":\"a</b>\\u2028\\u0007\\ud83d\\ude00\",\"weird key\\n</\":"
+                    + "[1.50,-0.0,1e5,12345678901234567890,3.0e-2,true,null,{}]}],\"temperature\":0.70,\"model\":\"gpt-4o\",\"n\":-0,\"big\":1.0E400}",
+            "{\"messages\":[{\"role\":\"system\",\"content\":\"s\"},{\"role\":\"user\",\"content\":[{\"type\":\"text\",\"text\":\"\\u0085\\u009f\"},"
+                    + "{\"type\":\"image_url\",\"image_url\":{\"url\":\"http://example.com/a.png\"}}]}],\"max_tokens\":9007199254740993}",
+            "{\"messages\":[],\"a\":1,\"a\":2}",
+            "{\"messages\":[{\"role\":\"user\",\"content\":\"x\"}]",
+            "[1,2]",
+    };
+
+    private static int total;
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        PrintStream stdout = Fixtures.silenceStdout();
+        try {
+            for (String s : STRINGS) {
+                check(stdout, "chatCompletion " + s, legacyChatCompletion("gpt-4o", s, 12, 34),
+                        utf8(CompletionResponses.chatCompletion("gpt-4o", s, 12, 34)));
+                check(stdout, "chatCompletion model " + s, legacyChatCompletion(s, "c", 1, 2),
+                        utf8(CompletionResponses.chatCompletion(s, "c", 1, 2)));
+                check(stdout, "visionCompletion " + s, legacyVisionCompletion("gpt-4o", s, 12, 34),
+                        utf8(CompletionResponses.visionCompletion("gpt-4o", s, 12, 34)));
+                check(stdout, "writeReplay " + s, capture(os -> legacyWriteReplay("gpt-4o", s, 5, os)),
+                        capture(os -> SseTransformer.writeReplay("gpt-4o", s, 5, os)));
+                check(stdout, "writeReplay no usage " + s, capture(os -> legacyWriteReplay(s, s + s, -1, os)),
+                        capture(os -> SseTransformer.writeReplay(s, s + s, -1, os)));
+            }
+            for (String event : VISION_EVENTS) {
+                String line = "data: " + event;
+                check(stdout, "relayVisionLine " + event, relay(os -> legacyRelayVisionLine(line, os)),
+                        relay(os -> SseTransformer.relayVisionLine(line, os)));
+            }
+            for (String event : CHAT_EVENTS) {
+                String line = "data: " + event;
+                check(stdout, "relayLine " + event, relay(os -> legacyRelayLine(line, os)),
+                        relay(os -> SseTransformer.relayLine(line, os)));
+            }
+            checkStreams(stdout);
+            checkRequest(stdout, "fixture", Fixtures.text(Fixtures.CHAT_REQUEST));
+            for (String request : REQUESTS) {
+                checkRequest(stdout, request, request);
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        stdout.println(total + " 个用例，失败 " + failures);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 录制的完整 SSE 样本，普通对话带 include_usage 的 usage chunk
+     */
+    private static void checkStreams(PrintStream stdout) throws IOException {
+        List<String> chatLines = Fixtures.lines(Fixtures.CHAT_STREAM);
+        check(stdout, Fixtures.CHAT_STREAM, capture(os -> {
+            TokenCounter.Counter counter = TokenCounter.counter();
+            for (String line : chatLines) {
+                if (!line.startsWith("data: ")) {
+                    continue;
+                }
+                String data = line.substring(6).trim();
+                if (data.equals("[DONE]")) {
+                    legacyWriteUsage("chatcmpl-" + SseTransformer.generateId(), Instant.now().getEpochSecond(), "gpt-4o",
+                            16, counter.total(), os);
+                } else if (SseEvent.classify(data).type() == SseEvent.Type.CONTENT) {
+                    JSONArray choices = new JSONObject(data).getJSONArray("choices");
+                    for (int i = 0; i < choices.length(); i++) {
+                        JSONObject delta = choices.getJSONObject(i).optJSONObject("delta");
+                        if (delta != null && delta.optString("content", "").length() > 0) {
+                            counter.append(delta.getString("content"));
+                        }
+                    }
+                }
+                legacyRelayLine(line, os);
+            }
+        }), capture(os -> {
+            SseTransformer.Usage usage = new SseTransformer.Usage("gpt-4o", 16, true);
+            for (String line : chatLines) {
+                SseTransformer.relayLine(line, os, usage);
+            }
+        }));
+
+        List<String> visionLines = Fixtures.lines(Fixtures.VISION_STREAM);
+        check(stdout, Fixtures.VISION_STREAM, capture(os -> {
+            for (String line : visionLines) {
+                legacyRelayVisionLine(line, os);
+            }
+        }), capture(os -> {
+            for (String line : visionLines) {
+                SseTransformer.relayVisionLine(line, os);
+            }
+        }));
+    }
+
+    /**
+     * 请求体的解析与序列化，以及规范化后的上游请求体；不合法的 JSON 两边都应拒绝
+     */
+    private static void checkRequest(PrintStream stdout, String label, String body) throws IOException {
+        String legacy;
+        try {
+            JSONObject requestJson = new JSONObject(body);
+            legacy = requestJson + "\n" + upstream(requestJson, false);
+        } catch (JSONException e) {
+            legacy = "rejected";
+        }
+        String current;
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            JSONObject requestJson = Json.parseObject(bytes, 0, bytes.length);
+            current = Json.toString(requestJson) + "\n" + upstream(requestJson, true);
+        } catch (IOException | JSONException e) {
+            current = "rejected";
+        }
+        check(stdout, "request " + label, legacy, current);
+    }
+
+    private static String upstream(JSONObject requestJson, boolean jackson) throws IOException {
+        JSONArray messages = requestJson.optJSONArray("messages");
+        if (messages == null) {
+            return "";
+        }
+        boolean hasImage = MessageNormalizer.normalize(messages, "http://localhost");
+        JSONObject upstream = MessageNormalizer.buildUpstreamRequest(requestJson.optString("model", "gpt-4o"),
+                requestJson.optInt("max_tokens", 8000), requestJson.optDouble("temperature", 0.6), hasImage, messages);
+        return jackson ? Json.toString(upstream) : upstream.toString();
+    }
+
+    private static void check(PrintStream stdout, String label, String legacy, String current) {
+        total++;
+        // 比较写给客户端的 UTF-8 字节，孤立代理项在两边都会被替换为 '?'
+        String expected = normalize(utf8(legacy.getBytes(StandardCharsets.UTF_8)));
+        String actual = normalize(utf8(current.getBytes(StandardCharsets.UTF_8)));
+        if (!expected.equals(actual)) {
+            failures++;
+            stdout.println("FAIL " + abbreviate(label) + "\n  org.json: " + expected + "\n  Jackson:  " + actual);
+        }
+    }
+
+    /**
+     * 替换每次调用都不同的 id、created 与 system_fingerprint
+     */
+    private static String normalize(String output) {
+        return output.replaceAll("\"created\":\\d+", "\"created\":0")
+                .replaceAll("chatcmpl-[0-9a-f-]+", "chatcmpl-X")
+                .replaceAll("fp_[0-9a-f]{12}", "fp_X")
+                .replaceAll("\"id\":\"[0-9a-f-]{24,36}\"", "\"id\":\"X\"");
+    }
+
+    private static String abbreviate(String label) {
+        return label.length() > 120 ? label.substring(0, 120) + "..." : label;
+    }
+
+    private static String utf8(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private interface Writer {
+        void write(OutputStream os) throws IOException;
+    }
+
+    private interface Relay {
+        int relay(OutputStream os) throws IOException;
+    }
+
+    private static String capture(Writer writer) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writer.write(os);
+        return os.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 写出的内容与返回的 chunk 数
+     */
+    private static String relay(Relay relay) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int chunks = relay.relay(os);
+        return os.toString(StandardCharsets.UTF_8) + " -> " + chunks;
+    }
+
+    /**
+     * 旧版本 CompletionResponses.chatCompletion，先构建 JSONObject 再序列化
+     */
+    static String legacyChatCompletion(String model, String content, int promptTokens, int completionTokens) {
+        JSONObject response = new JSONObject();
+        response.put("id", "chatcmpl-" + UUID.randomUUID().toString().replace("-", ""));
+        response.put("object", "chat.completion");
+        response.put("created", Instant.now().getEpochSecond());
+        response.put("model", model);
+
+        JSONObject message = new JSONObject();
+        message.put("role", "assistant");
+        message.put("content", content);
+        message.put("refusal", JSONObject.NULL);
+        JSONObject choice = new JSONObject();
+        choice.put("index", 0);
+        choice.put("message", message);
+        choice.put("logprobs", JSONObject.NULL);
+        choice.put("finish_reason", "stop");
+        response.put("choices", new JSONArray().put(choice));
+        response.put("usage", legacyUsage(promptTokens, completionTokens));
+        response.put("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
+        return response.toString();
+    }
+
+    private static String legacyVisionCompletion(String model, String assistantContent, int promptTokens, int completionTokens) {
+        JSONObject response = new JSONObject();
+        response.put("id", "chatcmpl-" + UUID.randomUUID());
+        response.put("object", "chat.completion");
+        response.put("created", Instant.now().getEpochSecond());
+        response.put("model", model);
+
+        JSONObject message = new JSONObject();
+        message.put("role", "assistant");
+        message.put("content", assistantContent);
+        JSONObject choice = new JSONObject();
+        choice.put("index", 0);
+        choice.put("message", message);
+        choice.put("finish_reason", "stop");
+        response.put("choices", new JSONArray().put(choice));
+        response.put("usage", legacyUsage(promptTokens, completionTokens));
+        return response.toString();
+    }
+
+    private static JSONObject legacyUsage(int promptTokens, int completionTokens) {
+        JSONObject usage = new JSONObject();
+        usage.put("prompt_tokens", promptTokens);
+        usage.put("completion_tokens", completionTokens);
+        usage.put("total_tokens", promptTokens + completionTokens);
+        usage.put("prompt_tokens_details", new JSONObject().put("cached_tokens", 0).put("audio_tokens", 0));
+        usage.put("completion_tokens_details", new JSONObject().put("reasoning_tokens", 0).put("audio_tokens", 0)
+                .put("accepted_prediction_tokens", 0).put("rejected_prediction_tokens", 0));
+        return usage;
+    }
+
+    /**
+     * 旧版本 relayLine：内容消息与 [DONE] 原样转发，web sources 构建 JSONObject 后转发
+     */
+    private static int legacyRelayLine(String line, OutputStream os) throws IOException {
+        if (!line.startsWith("data: ")) {
+            return 0;
+        }
+        String data = line.substring(6).trim();
+        SseEvent event = SseEvent.classify(data);
+        switch (event.type()) {
+            case DONE, CONTENT -> {
+                os.write((line + "\n\n").getBytes(StandardCharsets.UTF_8));
+                return event.type() == SseEvent.Type.CONTENT ? 1 : 0;
+            }
+            case WEB_SOURCES -> {
+                JSONObject chunk = new JSONObject();
+                chunk.put("id", SseTransformer.generateId());
+                chunk.put("object", "chat.completion.chunk");
+                chunk.put("created", Instant.now().getEpochSecond());
+                chunk.put("model", event.model() != null ? event.model() : "gpt-4o");
+                JSONObject choice = new JSONObject();
+                choice.put("delta", new JSONObject().put("content", "\n" + String.join("\n\n", event.urls()) + "\n"));
+                choice.put("index", 0);
+                choice.put("finish_reason", JSONObject.NULL);
+                chunk.put("choices", new JSONArray().put(choice));
+                os.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+            }
+            default -> {
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 旧版本 relayVisionLine 与 writeVisionChunks，content 与每张图片各构建一个 JSONObject
+     */
+    private static int legacyRelayVisionLine(String line, OutputStream os) throws IOException {
+        if (!line.startsWith("data: ")) {
+            return 0;
+        }
+        String data = line.substring(6).trim();
+        if (data.equals("[DONE]")) {
+            os.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            return 0;
+        }
+        int written = 0;
+        try {
+            JSONObject sseJson = new JSONObject(data);
+            if (!sseJson.has("choices")) {
+                return 0;
+            }
+            JSONArray choices = sseJson.getJSONArray("choices");
+            for (int i = 0; i < choices.length(); i++) {
+                JSONObject choice = choices.getJSONObject(i);
+                JSONObject delta = choice.optJSONObject("delta");
+                if (delta == null) {
+                    continue;
+                }
+                if (delta.has("content")) {
+                    JSONObject chunk = legacyVisionChunk(choice.optInt("index", i), delta.getString("content"));
+                    chunk.put("created", sseJson.has("created") ? sseJson.getLong("created") : Instant.now().getEpochSecond());
+                    chunk.put("id", sseJson.has("id") ? sseJson.getString("id") : UUID.randomUUID().toString());
+                    legacyWriteVisionChunk(chunk, sseJson, os);
+                    written++;
+                }
+                if (delta.has("images")) {
+                    JSONArray images = delta.getJSONArray("images");
+                    for (int j = 0; j < images.length(); j++) {
+                        String imageData = images.getJSONObject(j).getString("data");
+                        JSONObject chunk = legacyVisionChunk(choice.optInt("index", i), "[Image at " + imageData + "]");
+                        chunk.put("created", sseJson.optLong("created", Instant.now().getEpochSecond()));
+                        chunk.put("id", sseJson.optString("id", UUID.randomUUID().toString()));
+                        legacyWriteVisionChunk(chunk, sseJson, os);
+                        written++;
+                    }
+                }
+            }
+        } catch (JSONException ignored) {
+            // 与旧版本一样，已写出的 chunk 保留
+        }
+        return written;
+    }
+
+    private static JSONObject legacyVisionChunk(int index, String content) {
+        JSONObject choice = new JSONObject().put("index", index).put("delta", new JSONObject().put("content", content));
+        return new JSONObject().put("choices", new JSONArray().put(choice));
+    }
+
+    private static void legacyWriteVisionChunk(JSONObject chunk, JSONObject sseJson, OutputStream os) throws IOException {
+        chunk.put("model", sseJson.optString("model", "gpt-4o"));
+        chunk.put("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
+        os.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void legacyWriteUsage(String id, long created, String model, int promptTokens, int completionTokens,
+                                         OutputStream os) throws IOException {
+        JSONObject chunk = new JSONObject();
+        chunk.put("id", id);
+        chunk.put("object", "chat.completion.chunk");
+        chunk.put("created", created);
+        chunk.put("model", model);
+        chunk.put("choices", new JSONArray());
+        chunk.put("usage", legacyUsage(promptTokens, completionTokens));
+        os.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 旧版本 writeReplay：每 32 个字符一个 chunk，不拆开代理对
+     */
+    private static void legacyWriteReplay(String model, String content, int promptTokens, OutputStream os) throws IOException {
+        String id = "chatcmpl-" + SseTransformer.generateId();
+        long created = Instant.now().getEpochSecond();
+        int start = 0;
+        while (start < content.length()) {
+            int end = Math.min(content.length(), start + 32);
+            if (end < content.length() && Character.isHighSurrogate(content.charAt(end - 1))) {
+                end--;
+            }
+            legacyWriteReplayChunk(id, created, model, new JSONObject().put("content", content.substring(start, end)),
+                    JSONObject.NULL, os);
+            start = end;
+        }
+        legacyWriteReplayChunk(id, created, model, new JSONObject(), "stop", os);
+        if (promptTokens >= 0) {
+            legacyWriteUsage(id, created, model, promptTokens, TokenCounter.count(content), os);
+        }
+        os.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void legacyWriteReplayChunk(String id, long created, String model, JSONObject delta, Object finishReason,
+                                               OutputStream os) throws IOException {
+        JSONObject choice = new JSONObject();
+        choice.put("index", 0);
+        choice.put("delta", delta);
+        choice.put("finish_reason", finishReason);
+        JSONObject chunk = new JSONObject();
+        chunk.put("id", id);
+        chunk.put("object", "chat.completion.chunk");
+        chunk.put("created", created);
+        chunk.put("model", model);
+        chunk.put("choices", new JSONArray().put(choice));
+        os.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,207 @@
+package chaton.bench;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import utils.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端压测工具，输出首个 token 延迟、完整响应延迟的 p50/p99 和每秒请求数
+ * <p>
+ * 用法：LoadTest &lt;代理地址，例如 http://127.0.0.1:18080&gt; [模拟上游地址，例如 http://127.0.0.1:18081]
+ * <p>
+ * 指定上游地址时先直接压测上游作为基线，再压测代理，最后输出两者之差，即代理自身的开销。
+ * 配置：load.concurrency（默认 16）、load.seconds（默认 20）、load.warmup.seconds（默认 5）、
+ * load.stream（默认 true）、load.model（默认 gpt-4o）、load.api.key（发给代理的 Authorization，默认 sk-load-test）。
+ */
+public class LoadTest {
+    private final int concurrency = Config.getInt("load.concurrency", 16);
+    private final long seconds = Config.getLong("load.seconds", 20);
+    private final long warmupSeconds = Config.getLong("load.warmup.seconds", 5);
+    private final boolean stream = Config.getBoolean("load.stream", true);
+    private final String model = Config.get("load.model", "gpt-4o");
+    private final String apiKey = Config.get("load.api.key", "sk-load-test");
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+
+    /**
+     * 单轮压测的结果
+     */
+    public record Result(String name, long[] firstTokenNanos, long[] totalNanos, long errors, double seconds) {
+        double rps() {
+            return totalNanos.length / seconds;
+        }
+
+        static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+
+        String report() {
+            return String.format(Locale.ROOT,
+                    "%-8s 请求: %d, 失败: %d, RPS: %.1f, 首 token p50/p99: %.2f/%.2f ms, 完整响应 p50/p99: %.2f/%.2f ms",
+                    name, totalNanos.length, errors, rps(),
+                    millis(percentile(firstTokenNanos, 50)), millis(percentile(firstTokenNanos, 99)),
+                    millis(percentile(totalNanos, 50)), millis(percentile(totalNanos, 99)));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法: LoadTest <代理地址> [模拟上游地址]");
+            System.exit(1);
+        }
+        LoadTest test = new LoadTest();
+        Result direct = null;
+        if (args.length > 1) {
+            direct = test.run("upstream", test.upstreamRequest(args[1]));
+            System.out.println(direct.report());
+        }
+        Result proxy = test.run("proxy", test.proxyRequest(args[0]));
+        System.out.println(proxy.report());
+        if (direct != null) {
+            System.out.printf(Locale.ROOT, "代理开销 首 token p50/p99: %.2f/%.2f ms, 完整响应 p50/p99: %.2f/%.2f ms%n",
+                    millis(Result.percentile(proxy.firstTokenNanos(), 50) - Result.percentile(direct.firstTokenNanos(), 50)),
+                    millis(Result.percentile(proxy.firstTokenNanos(), 99) - Result.percentile(direct.firstTokenNanos(), 99)),
+                    millis(Result.percentile(proxy.totalNanos(), 50) - Result.percentile(direct.totalNanos(), 50)),
+                    millis(Result.percentile(proxy.totalNanos(), 99) - Result.percentile(direct.totalNanos(), 99)));
+        }
+        System.exit(0);
+    }
+
+    private JSONArray messages() {
+        return new JSONArray().put(new JSONObject().put("role", "user").put("content", "Explain how an SSE proxy works."));
+    }
+
+    HttpRequest proxyRequest(String base) {
+        JSONObject body = new JSONObject()
+                .put("model", model)
+                .put("stream", stream)
+                .put("messages", messages());
+        return post(base + "/v1/chat/completions", body).header("Authorization", "Bearer " + apiKey).build();
+    }
+
+    /**
+     * 与 MessageNormalizer.buildUpstreamRequest 生成的请求体一致
+     */
+    HttpRequest upstreamRequest(String base) {
+        JSONObject body = new JSONObject()
+                .put("function_image_gen", false)
+                .put("function_web_search", true)
+                .put("max_tokens", 8000)
+                .put("model", model)
+                .put("source", "chat/free")
+                .put("temperature", 0.6)
+                .put("messages", messages());
+        return post(base + "/chats/stream", body).build();
+    }
+
+    private static HttpRequest.Builder post(String url, JSONObject body) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+    }
+
+    Result run(String name, HttpRequest request) throws Exception {
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<long[][]>> workers = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(executor.submit(() -> worker(request, warmupEnd, end)));
+            }
+        }
+        List<long[]> firstTokens = new ArrayList<>();
+        List<long[]> totals = new ArrayList<>();
+        long errors = 0;
+        for (Future<long[][]> worker : workers) {
+            long[][] samples = worker.get();
+            firstTokens.add(samples[0]);
+            totals.add(samples[1]);
+            errors += samples[2][0];
+        }
+        return new Result(name, merge(firstTokens), merge(totals), errors, seconds);
+    }
+
+    /**
+     * @return {首 token 延迟, 完整响应延迟, {失败数}}
+     */
+    private long[][] worker(HttpRequest request, long warmupEnd, long end) {
+        long[] firstTokens = new long[1024];
+        long[] totals = new long[1024];
+        int count = 0;
+        long errors = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long start = now;
+            long firstToken = -1;
+            boolean ok;
+            try {
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (firstToken < 0 && !line.isEmpty() && (!stream || line.contains("\"content\""))) {
+                            firstToken = System.nanoTime() - start;
+                        }
+                    }
+                }
+                ok = response.statusCode() == 200;
+            } catch (IOException e) {
+                ok = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long total = System.nanoTime() - start;
+            if (start < warmupEnd) {
+                continue;
+            }
+            if (!ok) {
+                errors++;
+                continue;
+            }
+            if (count == totals.length) {
+                firstTokens = Arrays.copyOf(firstTokens, count * 2);
+                totals = Arrays.copyOf(totals, count * 2);
+            }
+            firstTokens[count] = firstToken < 0 ? total : firstToken;
+            totals[count] = total;
+            count++;
+        }
+        return new long[][]{Arrays.copyOf(firstTokens, count), Arrays.copyOf(totals, count), {errors}};
+    }
+
+    private static long[] merge(List<long[]> parts) {
+        long[] merged = parts.stream().flatMapToLong(Arrays::stream).toArray();
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
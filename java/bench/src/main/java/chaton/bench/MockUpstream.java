@@ -0,0 +1,211 @@
+package chaton.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import utils.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 模拟 ChatOn 上游服务，用于在不访问真实服务的情况下对代理进行压测
+ * <p>
+ * 代理启动时设置 -Dchaton.upstream.base=http://127.0.0.1:18081 即可指向本服务。提供以下接口：
+ * <ul>
+ *     <li>POST /chats/stream：按配置的速率回放 SSE，包含 operation、ping、web sources、analytics 帧和 [DONE]；
+ *     function_image_gen 为 true 时输出图片 Markdown，source 为 chat/image_upload 时在 delta.images 中返回图片</li>
+ *     <li>GET /storage/&lt;path&gt;：返回 {"getUrl": ".../files/&lt;path&gt;"}</li>
+ *     <li>GET /files/&lt;path&gt;：返回固定大小的图片数据</li>
+ * </ul>
+ * 配置（同样通过 -Dchaton.<配置名> 传入）：mock.port、mock.tokens、mock.tokens.per.second（0 表示不限速）、
+ * mock.first.token.millis、mock.ping.every、mock.web.sources、mock.image.bytes、
+ * mock.failure.rate（/chats/stream 直接返回错误的比例，用于测试重试）、mock.failure.status（返回的状态码，默认 500）、
+ * mock.retry.after.seconds（大于 0 时错误响应带上 Retry-After，用于测试准入控制的退避）。
+ */
+public class MockUpstream {
+    private static final String[] WORDS = {"The", " proxy", " forwards", " each", " upstream", " chunk", " to", " the",
+            " client", " as", " soon", " as", " it", " arrives", ",", " without", " buffering", " the", " whole", " answer", "."};
+
+    private final int tokens = Config.getInt("mock.tokens", 200);
+    private final double tokensPerSecond = Config.getDouble("mock.tokens.per.second", 50);
+    private final long firstTokenMillis = Config.getLong("mock.first.token.millis", 200);
+    private final int pingEvery = Config.getInt("mock.ping.every", 50);
+    private final boolean webSources = Config.getBoolean("mock.web.sources", true);
+    private final byte[] image = fakeImage(Config.getInt("mock.image.bytes", 256 * 1024));
+    private final double failureRate = Config.getDouble("mock.failure.rate", 0);
+    private final int failureStatus = Config.getInt("mock.failure.status", 500);
+    private final long retryAfterSeconds = Config.getLong("mock.retry.after.seconds", 0);
+
+    private final LongAdder streams = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder storageRequests = new LongAdder();
+    private final LongAdder fileRequests = new LongAdder();
+
+    private HttpServer server;
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Config.getInt("mock.port", 18081);
+        MockUpstream mock = new MockUpstream();
+        mock.start(port);
+        System.out.println("Mock upstream started on port " + port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(mock.stats())));
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.createContext("/chats/stream", this::handleStream);
+        server.createContext("/storage/", this::handleStorage);
+        server.createContext("/files/", this::handleFile);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public String stats() {
+        return "模拟上游 SSE: " + streams.sum() + ", 注入失败: " + failures.sum() + ", 客户端断开: " + disconnects.sum()
+                + ", storage: " + storageRequests.sum() + ", files: " + fileRequests.sum();
+    }
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            JSONObject request;
+            try (InputStream is = exchange.getRequestBody()) {
+                request = new JSONObject(new String(is.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            streams.increment();
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failures.increment();
+                if (retryAfterSeconds > 0) {
+                    exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+                }
+                exchange.sendResponseHeaders(failureStatus, -1);
+                return;
+            }
+            String model = request.optString("model", "gpt-4o");
+            boolean imageGen = request.optBoolean("function_image_gen", false);
+            boolean vision = "chat/image_upload".equals(request.optString("source"));
+
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream os = exchange.getResponseBody();
+            String id = "chatcmpl-" + UUID.randomUUID().toString().replace("-", "");
+            long created = System.currentTimeMillis() / 1000;
+
+            send(os, "{\"data\":{\"operation\":\"chat\",\"message\":\"started\"}}");
+            long start = System.nanoTime();
+            sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(firstTokenMillis));
+            if (webSources && request.optBoolean("function_web_search", false)) {
+                send(os, "{\"data\":{\"web\":{\"sources\":[{\"title\":\"Example\",\"url\":\"https://example.com/a\"}]}},\"model\":"
+                        + JSONObject.quote(model) + "}");
+            }
+
+            String[] chunks = imageGen ? imageMarkdown() : null;
+            int count = chunks != null ? chunks.length : tokens;
+            long interval = tokensPerSecond > 0 ? (long) (1_000_000_000L / tokensPerSecond) : 0;
+            long first = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (pingEvery > 0 && i > 0 && i % pingEvery == 0) {
+                    send(os, "{\"ping\":" + System.currentTimeMillis() / 1000 + "}");
+                }
+                sleepUntil(first + i * interval);
+                String content = chunks != null ? chunks[i] : WORDS[i % WORDS.length];
+                JSONObject delta = new JSONObject().put("content", content);
+                if (vision && i == count / 2) {
+                    delta.put("images", new JSONArray().put(new JSONObject().put("data", "https://spc.unk/images/" + id + ".png")));
+                }
+                send(os, chunk(id, created, model, delta));
+            }
+            send(os, "{\"data\":{\"analytics\":{\"tokens\":" + count + ",\"latency_ms\":"
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "}}}");
+            send(os, "[DONE]");
+        } catch (IOException e) {
+            // 客户端提前断开
+            disconnects.increment();
+        }
+    }
+
+    private void handleStorage(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            storageRequests.increment();
+            String path = exchange.getRequestURI().getPath().substring("/storage/".length());
+            String host = exchange.getRequestHeaders().getFirst("Host");
+            byte[] body = new JSONObject().put("getUrl", "http://" + host + "/files/" + path).toString()
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private void handleFile(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            fileRequests.increment();
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, image.length);
+            exchange.getResponseBody().write(image);
+        }
+    }
+
+    private static String chunk(String id, long created, String model, JSONObject delta) {
+        return "{\"id\":\"" + id + "\",\"object\":\"chat.completion.chunk\",\"created\":" + created
+                + ",\"model\":" + JSONObject.quote(model)
+                + ",\"choices\":[{\"index\":0,\"delta\":" + delta + ",\"finish_reason\":null}]}";
+    }
+
+    /**
+     * 与真实服务一样把图片 Markdown 拆成多段输出
+     */
+    private static String[] imageMarkdown() {
+        String markdown = "![Image](https://spc.unk/images/" + UUID.randomUUID() + ".png)";
+        int parts = 4;
+        String[] chunks = new String[parts];
+        int size = (markdown.length() + parts - 1) / parts;
+        for (int i = 0; i < parts; i++) {
+            chunks[i] = markdown.substring(Math.min(i * size, markdown.length()), Math.min((i + 1) * size, markdown.length()));
+        }
+        return chunks;
+    }
+
+    private static void send(OutputStream os, String data) throws IOException {
+        os.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static byte[] fakeImage(int size) {
+        byte[] bytes = new byte[Math.max(size, 8)];
+        byte[] signature = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+        System.arraycopy(signature, 0, bytes, 0, signature.length);
+        for (int i = signature.length; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+}
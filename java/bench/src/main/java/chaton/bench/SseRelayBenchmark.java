@@ -0,0 +1,206 @@
+package chaton.bench;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import utils.SseEvent;
+import utils.SseTransformer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 流式响应的逐行转换：handleStreamResponse、handleVisionStreamResponse 与消息过滤
+ * <p>
+ * legacyRelay 保留了旧版本每行最多三次 JSONObject 解析的实现，用于和 relay 对比单 token 的 CPU 与分配开销；
+ * legacyRelayVision 保留了识图消息先解析为 JSONObject、再构建新 JSONObject 序列化的实现，与 Jackson 流式版本对比；
+ * firstChunk 只转发第一条内容消息，对应首字节延迟中代理自身的部分。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SseRelayBenchmark {
+    private List<String> chatLines;
+    private List<String> visionLines;
+    private String firstContentLine;
+    private Fixtures.CountingOutputStream os;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        stdout = Fixtures.silenceStdout();
+        chatLines = Fixtures.lines(Fixtures.CHAT_STREAM);
+        visionLines = Fixtures.lines(Fixtures.VISION_STREAM);
+        firstContentLine = chatLines.stream()
+                .filter(line -> line.contains("\"choices\""))
+                .findFirst()
+                .orElseThrow();
+        os = new Fixtures.CountingOutputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public long relay() throws IOException {
+        for (String line : chatLines) {
+            SseTransformer.relayLine(line, os);
+        }
+        return os.bytes;
+    }
+
+    /**
+     * stream_options.include_usage：分类的同一遍解析中统计回答的 token 数
+     */
+    @Benchmark
+    public long relayWithUsage() throws IOException {
+        SseTransformer.Usage usage = new SseTransformer.Usage("gpt-4o", 16, true);
+        for (String line : chatLines) {
+            SseTransformer.relayLine(line, os, usage);
+        }
+        return os.bytes;
+    }
+
+    @Benchmark
+    public long legacyRelay() throws IOException {
+        for (String line : chatLines) {
+            legacyRelayLine(line, os);
+        }
+        return os.bytes;
+    }
+
+    @Benchmark
+    public long relayVision() throws IOException {
+        for (String line : visionLines) {
+            SseTransformer.relayVisionLine(line, os);
+        }
+        return os.bytes;
+    }
+
+    @Benchmark
+    public long legacyRelayVision() throws IOException {
+        for (String line : visionLines) {
+            legacyRelayVisionLine(line, os);
+        }
+        return os.bytes;
+    }
+
+    @Benchmark
+    public void classify(Blackhole bh) {
+        for (String line : chatLines) {
+            if (line.startsWith("data: ")) {
+                bh.consume(SseEvent.classify(line.substring(6).trim()));
+            }
+        }
+    }
+
+    @Benchmark
+    public long firstChunk() throws IOException {
+        SseTransformer.relayLine(firstContentLine, os);
+        return os.bytes;
+    }
+
+    /**
+     * 旧版本 handleStreamResponse 的逐行处理（不含 web sources 分支）
+     */
+    private static void legacyRelayLine(String line, OutputStream os) throws IOException {
+        if (!line.startsWith("data: ")) {
+            return;
+        }
+        String data = line.substring(6).trim();
+        if (data.equals("[DONE]")) {
+            os.write((line + "\n\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(data);
+            if (json.has("ping")) {
+                return;
+            }
+            if (json.has("data")) {
+                JSONObject d = json.getJSONObject("data");
+                if (d.has("analytics") || (d.has("operation") && d.has("message")) || d.has("web")) {
+                    return;
+                }
+            }
+            JSONObject sseJson = new JSONObject(data);
+            if (sseJson.has("choices")) {
+                JSONArray choices = sseJson.getJSONArray("choices");
+                for (int i = 0; i < choices.length(); i++) {
+                    JSONObject delta = choices.getJSONObject(i).optJSONObject("delta");
+                    if (delta != null && delta.has("content")) {
+                        System.out.print(delta.getString("content"));
+                    }
+                }
+            }
+            os.write((line + "\n\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+        } catch (JSONException ignored) {
+        }
+    }
+
+    /**
+     * 旧版本 relayVisionLine 的内容消息部分（不含图片）
+     */
+    private static void legacyRelayVisionLine(String line, OutputStream os) throws IOException {
+        if (!line.startsWith("data: ")) {
+            return;
+        }
+        String data = line.substring(6).trim();
+        if (data.equals("[DONE]")) {
+            os.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            return;
+        }
+        try {
+            JSONObject sseJson = new JSONObject(data);
+            if (!sseJson.has("choices")) {
+                return;
+            }
+            JSONArray choices = sseJson.getJSONArray("choices");
+            for (int i = 0; i < choices.length(); i++) {
+                JSONObject choice = choices.getJSONObject(i);
+                JSONObject delta = choice.optJSONObject("delta");
+                if (delta == null || !delta.has("content")) {
+                    continue;
+                }
+                JSONObject newDelta = new JSONObject().put("content", delta.getString("content"));
+                JSONObject newChoice = new JSONObject().put("index", choice.optInt("index", i)).put("delta", newDelta);
+                JSONObject newSseJson = new JSONObject();
+                newSseJson.put("choices", new JSONArray().put(newChoice));
+                newSseJson.put("created", sseJson.has("created") ? sseJson.getLong("created") : Instant.now().getEpochSecond());
+                newSseJson.put("id", sseJson.has("id") ? sseJson.getString("id") : UUID.randomUUID().toString());
+                newSseJson.put("model", sseJson.optString("model", "gpt-4o"));
+                newSseJson.put("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
+                os.write(("data: " + newSseJson + "\n\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            }
+        } catch (JSONException ignored) {
+        }
+    }
+}
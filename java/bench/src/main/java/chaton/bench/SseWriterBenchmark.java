@@ -0,0 +1,112 @@
+package chaton.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.SseTransformer;
+import utils.SseWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较 SSE 输出的 immediate 与 coalesce 模式
+ * <p>
+ * 16 个线程同时转发录制的对话流，每次 flush 到下层输出流时模拟一次写系统调用的固定开销 (syscallNanos)。
+ * 结果中的 flushes 计数器即每个流的系统调用次数，吞吐量为每秒转发的完整流数。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class SseWriterBenchmark {
+    @Param({"immediate", "coalesce"})
+    public String mode;
+
+    @Param({"5000"})
+    public long syscallNanos;
+
+    private List<String> chatLines;
+    private PrintStream stdout;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long flushes;
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        stdout = Fixtures.silenceStdout();
+        chatLines = Fixtures.lines(Fixtures.CHAT_STREAM);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void relay(Counters counters) throws IOException {
+        SyscallOutputStream socket = new SyscallOutputStream(syscallNanos);
+        SseWriter.Mode writerMode = SseWriter.Mode.valueOf(mode.toUpperCase());
+        try (SseWriter os = new SseWriter(socket, writerMode, TimeUnit.MILLISECONDS.toNanos(20), 8 * 1024)) {
+            for (String line : chatLines) {
+                SseTransformer.relayLine(line, os);
+            }
+        }
+        counters.flushes += socket.flushes;
+        counters.bytes += socket.bytes;
+    }
+
+    /**
+     * 每次 flush 忙等固定时间，模拟 write 系统调用
+     */
+    static class SyscallOutputStream extends OutputStream {
+        private final long syscallNanos;
+        long bytes;
+        long flushes;
+
+        SyscallOutputStream(long syscallNanos) {
+            this.syscallNanos = syscallNanos;
+        }
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+            long deadline = System.nanoTime() + syscallNanos;
+            while (System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package chaton.bench;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.MessageNormalizer;
+import utils.SseEvent;
+import utils.TokenCounter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * usage 的 token 计数：规范化后的 messages，以及流式回答逐 chunk 的增量计数
+ * <p>
+ * 使用 -Dchaton.tokenizer.vocab.file=cl100k_base.tiktoken 测量 BPE，未指定时测量的是估算
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenCounterBenchmark {
+    private JSONArray messages;
+    private List<String> deltas;
+    private String content;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stdout = Fixtures.silenceStdout();
+        messages = new JSONObject(Fixtures.text(Fixtures.CHAT_REQUEST)).getJSONArray("messages");
+        MessageNormalizer.normalize(messages, "http://localhost");
+        deltas = new ArrayList<>();
+        StringBuilder all = new StringBuilder();
+        for (String line : Fixtures.lines(Fixtures.CHAT_STREAM)) {
+            StringBuilder delta = new StringBuilder();
+            if (line.startsWith("data: ") && SseEvent.appendContent(line.substring(6).trim(), delta) && !delta.isEmpty()) {
+                deltas.add(delta.toString());
+                all.append(delta);
+            }
+        }
+        content = all.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * prompt_tokens
+     */
+    @Benchmark
+    public int prompt() {
+        return TokenCounter.countMessages(messages);
+    }
+
+    /**
+     * 非流式回答的 completion_tokens
+     */
+    @Benchmark
+    public int completion() {
+        return TokenCounter.count(content);
+    }
+
+    /**
+     * 流式回答逐 chunk 追加
+     */
+    @Benchmark
+    public int incremental() {
+        TokenCounter.Counter counter = TokenCounter.counter();
+        for (String delta : deltas) {
+            counter.append(delta);
+        }
+        return counter.total();
+    }
+}
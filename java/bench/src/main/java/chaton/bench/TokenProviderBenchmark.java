@@ -0,0 +1,48 @@
+package chaton.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.TokenProvider;
+import utils.TokenProviders;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较各 Token 生成后端的耗时
+ * <p>
+ * 默认只运行 stub；java 与 native 后端需要对应的实现或动态库，可通过 -p backend=java,native 指定。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenProviderBenchmark {
+    @Param({"stub"})
+    public String backend;
+
+    private TokenProvider provider;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        provider = TokenProviders.create(backend);
+        body = Fixtures.text(Fixtures.CHAT_REQUEST);
+    }
+
+    @Benchmark
+    public String[] getBearer() {
+        return provider.getBearer(body);
+    }
+}
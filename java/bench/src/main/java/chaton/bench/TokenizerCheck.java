@@ -0,0 +1,64 @@
+package chaton.bench;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import utils.Config;
+import utils.TokenCounter;
+
+/**
+ * TokenCounter 的已知答案检查：用 fixtures 中的小词表验证 BPE 合并顺序与预分词正则
+ * <p>
+ * tokenizer-vocab.tiktoken 是手工构造的词表片段：256 个单字节 token 加少量合并，合并的 rank 与整段 token
+ * 使错误的合并顺序（如从左到右贪心）或错误的切分（如 cl100k 不拆分大小写、o200k 不合并缩写）都会改变 token 数。
+ * tokenizer-cases.json 中每个用例记录两种编码下的期望片段与 token 数。检查整段计数、逐字符追加的增量计数，
+ * 以及逐片段计数之和，任何不一致时以非 0 状态退出：
+ * <pre>
+ * java -cp target/benchmarks.jar chaton.bench.TokenizerCheck
+ * java -cp target/benchmarks.jar -Dchaton.tokenizer.encoding=o200k_base chaton.bench.TokenizerCheck
+ * </pre>
+ */
+public class TokenizerCheck {
+    public static final String VOCAB = "tokenizer-vocab.tiktoken";
+    public static final String CASES = "tokenizer-cases.json";
+
+    public static void main(String[] args) {
+        // 必须在 TokenCounter 初始化之前设置
+        if (System.getProperty("chaton.tokenizer.vocab.file") == null) {
+            System.setProperty("chaton.tokenizer.vocab.file", Fixtures.dir().resolve(VOCAB).toString());
+        }
+        String encoding = Config.get("tokenizer.encoding", "cl100k_base");
+        if (!TokenCounter.exact()) {
+            System.err.println("词表加载失败");
+            System.exit(1);
+        }
+
+        JSONArray cases = new JSONArray(Fixtures.text(CASES));
+        int failures = 0;
+        for (int i = 0; i < cases.length(); i++) {
+            JSONObject testCase = cases.getJSONObject(i);
+            String text = testCase.getString("text");
+            JSONObject expected = testCase.getJSONObject(encoding);
+            int tokens = expected.getInt("tokens");
+
+            int whole = TokenCounter.count(text);
+            TokenCounter.Counter counter = TokenCounter.counter();
+            text.codePoints().forEach(cp -> counter.append(Character.toString(cp)));
+            int incremental = counter.total();
+            int pieces = 0;
+            JSONArray expectedPieces = expected.getJSONArray("pieces");
+            for (int j = 0; j < expectedPieces.length(); j++) {
+                pieces += TokenCounter.count(expectedPieces.getString(j));
+            }
+
+            if (whole != tokens || incremental != tokens || pieces != tokens) {
+                failures++;
+                System.out.println("FAIL " + JSONObject.quote(text) + ": 期望 " + tokens + "，整段 " + whole
+                        + "，增量 " + incremental + "，逐片段 " + pieces + " " + expectedPieces);
+            }
+        }
+        System.out.println(encoding + ": " + cases.length() + " 个用例，失败 " + failures);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package utils;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 上游请求的准入控制
+ * <p>
+ * 每个上游请求在发出前取得一个许可，请求（包括流式响应的转发）结束后归还：
+ * <ul>
+ *     <li>速率：令牌桶，每秒 admission.rate.per.second 个令牌，最多积累 admission.burst 个；为 0 时不限速</li>
+ *     <li>并发：同时持有的许可不超过当前并发上限。上游返回 429/503 时上限减半（每个 admission.backoff.millis 最多一次），
+ *     上游带 Retry-After 时在该时间内暂停放行；之后每个正常响应使上限增加 1/上限，约每轮并发增加 1 (AIMD)。
+ *     上限在 admission.min.concurrency 与 admission.max.concurrency 之间</li>
+ *     <li>排队：不能立即放行的请求最多排队 admission.queue.size 个，最长等待 admission.queue.timeout.millis；
+ *     队列已满、等待超时或预计等待时间已超过期限时立即拒绝，由处理器返回 429 和 Retry-After</li>
+ * </ul>
+ * 突发流量因此在入口处被削减，而不是在执行器和上游连接上堆积。admission.enabled 为 false 时不做任何限制。
+ */
+public class AdmissionController {
+    public static final boolean ENABLED = Config.getBoolean("admission.enabled", true);
+    // 上游 Retry-After 最多遵守的时长
+    private static final long MAX_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final AdmissionController instance = new AdmissionController(
+            Config.getDouble("admission.rate.per.second", 0),
+            Config.getDouble("admission.burst", Math.max(1, Config.getDouble("admission.rate.per.second", 0))),
+            Config.getInt("admission.min.concurrency", 4),
+            Config.getInt("admission.max.concurrency", 256),
+            Config.getInt("admission.queue.size", 256),
+            Config.getLong("admission.queue.timeout.millis", 10_000),
+            Config.getLong("admission.backoff.millis", 1000));
+
+    static {
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(instance.stats())));
+            Metrics.gauge("chaton_admission_concurrency_limit", "当前的上游并发上限", () -> instance.limit);
+            Metrics.gauge("chaton_admission_in_flight", "已放行且尚未结束的上游请求数", () -> instance.inFlight);
+            Metrics.gauge("chaton_admission_queued", "正在排队的请求数", () -> instance.waiting);
+            Metrics.counterFunction("chaton_admission_admitted_total", "放行的请求数", instance.admitted::sum);
+            Metrics.counterFunction("chaton_admission_rejected_total", "队列已满被拒绝的请求数", instance.rejected::sum);
+            Metrics.counterFunction("chaton_admission_shed_total", "等待超时或预计超时被拒绝的请求数", instance.shed::sum);
+            Metrics.counterFunction("chaton_admission_backoffs_total", "因上游 429/503 降低并发上限的次数", instance.backoffs::sum);
+        }
+    }
+
+    /**
+     * 请求未被放行
+     */
+    public static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        public RejectedException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return 建议客户端等待的秒数，至少为 1
+         */
+        public long retryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * 上游请求许可，请求结束后关闭；重复关闭无效
+     */
+    public final class Permit implements AutoCloseable {
+        // 关闭准入控制时的许可不占用并发
+        private final boolean counted;
+        private boolean released;
+
+        private Permit(boolean counted) {
+            this.counted = counted;
+        }
+
+        @Override
+        public void close() {
+            if (counted && !released) {
+                released = true;
+                release();
+            }
+        }
+    }
+
+    private final double ratePerSecond;
+    private final double burst;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final int queueSize;
+    private final long queueTimeoutNanos;
+    private final long backoffNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // 以下字段由 lock 保护，指标读取时允许看到旧值
+    private volatile double limit;
+    private volatile int inFlight;
+    private volatile int waiting;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long lastBackoffAt;
+    private long pausedUntil;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder backoffs = new LongAdder();
+
+    public AdmissionController(double ratePerSecond, double burst, int minConcurrency, int maxConcurrency,
+                               int queueSize, long queueTimeoutMillis, long backoffMillis) {
+        this.ratePerSecond = Math.max(0, ratePerSecond);
+        this.burst = Math.max(1, burst);
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.minConcurrency = Math.max(1, Math.min(minConcurrency, this.maxConcurrency));
+        this.queueSize = Math.max(0, queueSize);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, queueTimeoutMillis));
+        this.backoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, backoffMillis));
+        this.limit = this.maxConcurrency;
+        this.tokens = this.burst;
+        this.lastBackoffAt = System.nanoTime() - backoffNanos;
+        this.pausedUntil = System.nanoTime();
+    }
+
+    /**
+     * @return 按配置创建的全局实例
+     */
+    public static AdmissionController get() {
+        return instance;
+    }
+
+    /**
+     * 取得一个上游请求许可，必要时排队等待
+     *
+     * @return 许可，请求结束后关闭
+     * @throws RejectedException 队列已满、等待超时或预计无法在期限内放行
+     */
+    public Permit acquire() throws RejectedException {
+        if (!ENABLED) {
+            return new Permit(false);
+        }
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            if (waiting == 0 && admissible(now)) {
+                return admit();
+            }
+            if (waiting >= queueSize) {
+                rejected.increment();
+                throw new RejectedException("请求过多，请稍后重试", retryAfterSeconds(now, waiting));
+            }
+            if (estimatedWaitNanos(now, waiting + 1) > queueTimeoutNanos) {
+                shed.increment();
+                throw new RejectedException("请求过多，请稍后重试", retryAfterSeconds(now, waiting + 1));
+            }
+            waiting++;
+            try {
+                while (true) {
+                    now = System.nanoTime();
+                    refill(now);
+                    if (admissible(now)) {
+                        Permit permit = admit();
+                        if (waiting > 1 && admissible(now)) {
+                            // 还有余量时唤醒下一个等待者
+                            available.signal();
+                        }
+                        return permit;
+                    }
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        shed.increment();
+                        throw new RejectedException("排队超时，请稍后重试", retryAfterSeconds(now, waiting));
+                    }
+                    available.awaitNanos(Math.min(remaining, wakeUpNanos(now)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedException("等待许可时被中断", 1);
+            } finally {
+                waiting--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 根据上游响应调整并发上限
+     *
+     * @param status     上游状态码
+     * @param retryAfter 上游 Retry-After 的秒数
+     */
+    public void onUpstreamResponse(int status, OptionalLong retryAfter) {
+        if (!ENABLED) {
+            return;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (status == 429 || status == 503) {
+                if (now - lastBackoffAt >= backoffNanos && limit > minConcurrency) {
+                    lastBackoffAt = now;
+                    limit = Math.max(minConcurrency, limit / 2);
+                    backoffs.increment();
+                    Log.warn("上游返回 " + status + "，并发上限降为 " + (int) limit);
+                }
+                if (retryAfter.isPresent() && retryAfter.getAsLong() > 0) {
+                    long until = now + Math.min(MAX_PAUSE_NANOS, TimeUnit.SECONDS.toNanos(retryAfter.getAsLong()));
+                    if (until - pausedUntil > 0) {
+                        pausedUntil = until;
+                    }
+                }
+            } else if (limit < maxConcurrency) {
+                limit = Math.min(maxConcurrency, limit + 1 / limit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 以下方法在持有 lock 时调用
+
+    private Permit admit() {
+        inFlight++;
+        if (ratePerSecond > 0) {
+            tokens -= 1;
+        }
+        admitted.increment();
+        return new Permit(true);
+    }
+
+    private boolean admissible(long now) {
+        return inFlight < (int) limit && (ratePerSecond <= 0 || tokens >= 1) && now - pausedUntil >= 0;
+    }
+
+    private void refill(long now) {
+        if (ratePerSecond > 0) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerSecond / 1e9);
+        }
+        refilledAt = now;
+    }
+
+    /**
+     * 排在第 position 位的请求至少还要等待多久才有令牌（不考虑并发上限）
+     */
+    private long estimatedWaitNanos(long now, int position) {
+        long wait = Math.max(0, pausedUntil - now);
+        if (ratePerSecond > 0) {
+            wait = Math.max(wait, (long) ((position - tokens) / ratePerSecond * 1e9));
+        }
+        return wait;
+    }
+
+    /**
+     * 没有被唤醒时，下一次检查令牌或暂停是否结束的时间
+     */
+    private long wakeUpNanos(long now) {
+        if (now - pausedUntil < 0) {
+            return pausedUntil - now;
+        }
+        if (ratePerSecond > 0 && tokens < 1 && inFlight < (int) limit) {
+            return Math.max(1, (long) ((1 - tokens) / ratePerSecond * 1e9));
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private long retryAfterSeconds(long now, int position) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(estimatedWaitNanos(now, position) + 999_999_999L));
+    }
+
+    /**
+     * @return 并发上限、放行、拒绝与退避统计
+     */
+    public String stats() {
+        return String.format(Locale.ROOT, "准入控制 并发上限: %.1f, 放行: %d, 队列满拒绝: %d, 超时拒绝: %d, 退避: %d",
+                limit, admitted.sum(), rejected.sum(), shed.sum(), backoffs.sum());
+    }
+}
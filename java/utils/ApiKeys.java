@@ -0,0 +1,366 @@
+package utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 API Key 区分的调用方：校验、配额与用量统计
+ * <p>
+ * 设置 auth.keys.file 后才启用，否则不校验 Authorization，与之前的行为相同。Key 文件是 JSON 数组，例如
+ * <pre>
+ * [{"key": "sk-alice-...", "name": "alice", "max_concurrency": 4, "requests_per_minute": 60}]
+ * </pre>
+ * name 用于用量文件与日志，不写出原始 Key，不能重复，省略时为 "key-" 加 Key 的 SHA-256 前 12 位十六进制；
+ * max_concurrency、requests_per_minute 省略时使用
+ * auth.default.max.concurrency、auth.default.requests.per.minute，为 0 表示不限。
+ * <p>
+ * 所有 Key 保存在不可变的 Map 中，通过 volatile 引用整体替换，请求线程的查找不加锁；
+ * 后台线程每 auth.reload.seconds 检查文件修改时间并重新加载，加载失败时保留旧的 Key。
+ * 每分钟请求数按 GCRA 限制（允许一分钟的配额一次用完），并发数与 GCRA 状态都用 CAS 更新，同样不加锁。
+ * 配额与用量按 name 保存，重新加载 Key 不会清零。
+ * <p>
+ * 每个调用方的请求数、拒绝数、响应字节数和 token 数（prompt 与 completion 分开，与返回给客户端的 usage 一致，
+ * 按 {@link TokenCounter} 统计）记录在 LongAdder 中，
+ * 由后台线程每 auth.usage.flush.seconds 写入 auth.usage.file（先写临时文件再改名），启动时从该文件继续累计，
+ * 请求路径上不做任何文件 I/O。
+ */
+public class ApiKeys {
+    private static final String KEYS_FILE = Config.get("auth.keys.file", "");
+    public static final boolean ENABLED = !KEYS_FILE.isBlank();
+    private static final long RELOAD_SECONDS = Math.max(1, Config.getLong("auth.reload.seconds", 30));
+    private static final int DEFAULT_MAX_CONCURRENCY = Config.getInt("auth.default.max.concurrency", 0);
+    private static final int DEFAULT_REQUESTS_PER_MINUTE = Config.getInt("auth.default.requests.per.minute", 0);
+    private static final Path USAGE_FILE = Path.of(Config.get("auth.usage.file", "usage.json"));
+    private static final long FLUSH_SECONDS = Math.max(1, Config.getLong("auth.usage.flush.seconds", 60));
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Lease NONE = new Lease(null);
+
+    private static volatile Map<String, Client> clients = Map.of();
+    private static volatile FileTime loadedAt;
+    // 按 name 保存，跨重新加载保留
+    private static final Map<String, State> states = new ConcurrentHashMap<>();
+    private static final Map<String, JSONObject> previousUsage = new HashMap<>();
+    private static volatile ScheduledExecutorService scheduler;
+
+    private static final Metrics.Family<Metrics.Counter> REJECTED = Metrics.counter("chaton_auth_rejected_total",
+            "被拒绝的请求数，reason 为 unauthorized、concurrency 或 rate", "reason");
+
+    /**
+     * 缺少或无效的 API Key
+     */
+    public static class UnauthorizedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnauthorizedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 超出该 Key 的并发或每分钟请求数配额
+     */
+    public static class QuotaExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        public QuotaExceededException(String message, long retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * @return 建议客户端等待的秒数，至少为 1
+         */
+        public long retryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    private record Client(String name, int maxConcurrency, int requestsPerMinute, State state) {
+    }
+
+    /**
+     * 一个调用方的配额状态与用量
+     */
+    private static final class State {
+        final AtomicInteger inFlight = new AtomicInteger();
+        // GCRA 的理论到达时间 (nanoTime)
+        final AtomicLong tat = new AtomicLong(System.nanoTime());
+        final LongAdder requests = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder promptTokens = new LongAdder();
+        final LongAdder completionTokens = new LongAdder();
+    }
+
+    /**
+     * 一个请求占用的配额，请求结束时调用 {@link #finish(RequestMetrics)} 记录用量并归还并发
+     */
+    public static final class Lease {
+        private final Client client;
+        private boolean finished;
+
+        private Lease(Client client) {
+            this.client = client;
+        }
+
+        /**
+         * @return 是否需要记录用量；为 false 时处理器不必为计费统计 token 数
+         */
+        public boolean metered() {
+            return client != null;
+        }
+
+        /**
+         * 记录该请求的响应字节数与 usage 中的 token 数并归还并发；重复调用无效
+         */
+        public void finish(RequestMetrics metrics) {
+            if (client == null || finished) {
+                return;
+            }
+            finished = true;
+            client.state().bytes.add(metrics.totalBytes());
+            client.state().promptTokens.add(metrics.promptTokens());
+            client.state().completionTokens.add(metrics.completionTokens());
+            client.state().inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 校验请求的 API Key 并占用配额
+     *
+     * @return 配额，未启用时为不做任何记录的空配额
+     * @throws UnauthorizedException  缺少或无效的 Key
+     * @throws QuotaExceededException 超出并发或每分钟请求数
+     */
+    public static Lease acquire(HttpExchange exchange) throws UnauthorizedException, QuotaExceededException {
+        if (!ENABLED) {
+            return NONE;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        Client client = null;
+        if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            client = clients.get(authorization.substring(7).trim());
+        }
+        if (client == null) {
+            REJECTED.labels("unauthorized").inc();
+            throw new UnauthorizedException("无效的 API Key");
+        }
+        State state = client.state();
+        int inFlight = state.inFlight.incrementAndGet();
+        if (client.maxConcurrency() > 0 && inFlight > client.maxConcurrency()) {
+            state.inFlight.decrementAndGet();
+            state.rejected.increment();
+            REJECTED.labels("concurrency").inc();
+            throw new QuotaExceededException("并发请求数超过限制: " + client.maxConcurrency(), 1);
+        }
+        long waitNanos = client.requestsPerMinute() > 0 ? admitRate(state, client.requestsPerMinute()) : 0;
+        if (waitNanos > 0) {
+            state.inFlight.decrementAndGet();
+            state.rejected.increment();
+            REJECTED.labels("rate").inc();
+            throw new QuotaExceededException("每分钟请求数超过限制: " + client.requestsPerMinute(),
+                    Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999L)));
+        }
+        state.requests.increment();
+        return new Lease(client);
+    }
+
+    /**
+     * GCRA：每个请求把理论到达时间推后一个间隔，超前当前时间一分钟以上时拒绝
+     *
+     * @return 0 表示放行，否则为还需等待的纳秒数
+     */
+    private static long admitRate(State state, int requestsPerMinute) {
+        long interval = MINUTE_NANOS / requestsPerMinute;
+        long tolerance = MINUTE_NANOS - interval;
+        while (true) {
+            long now = System.nanoTime();
+            long tat = state.tat.get();
+            long base = tat - now > 0 ? tat : now;
+            long wait = base - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (state.tat.compareAndSet(tat, base + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 加载 Key 与已有用量，启动重新加载与用量写入线程；未启用时不做任何事
+     *
+     * @throws IOException Key 文件无法读取或格式错误
+     */
+    public static synchronized void start() throws IOException {
+        if (!ENABLED || scheduler != null) {
+            return;
+        }
+        loadUsage();
+        reload();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "api-keys");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reload();
+            } catch (Exception e) {
+                Log.warn("重新加载 API Key 失败，继续使用已加载的 Key: " + e.getMessage());
+            }
+        }, RELOAD_SECONDS, RELOAD_SECONDS, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(ApiKeys::flushQuietly, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(ApiKeys::flushQuietly));
+        Metrics.gauge("chaton_auth_keys", "已加载的 API Key 数", () -> clients.size());
+        System.out.println("已加载 API Key: " + clients.size() + " 个，用量写入 " + USAGE_FILE.toAbsolutePath());
+    }
+
+    /**
+     * 文件修改时间变化时重新加载 Key
+     */
+    private static void reload() throws IOException {
+        Path path = Path.of(KEYS_FILE);
+        FileTime modified = Files.getLastModifiedTime(path);
+        if (modified.equals(loadedAt)) {
+            return;
+        }
+        JSONArray array = new JSONArray(Files.readString(path, StandardCharsets.UTF_8));
+        Map<String, Client> loaded = new HashMap<>();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject entry = array.getJSONObject(i);
+            String key = entry.getString("key").trim();
+            if (key.isEmpty()) {
+                throw new IOException("第 " + (i + 1) + " 个 Key 为空");
+            }
+            String name = entry.optString("name", "");
+            if (name.isEmpty()) {
+                // Key 大多以 "sk-" 开头，前缀会重复，用整个 Key 的哈希区分
+                name = "key-" + sha256(key).substring(0, 12);
+            }
+            // 配额与用量按 name 保存，重复的 name 会共用同一份状态
+            if (!names.add(name)) {
+                throw new IOException("重复的 name: " + name);
+            }
+            Client client = new Client(name,
+                    entry.optInt("max_concurrency", DEFAULT_MAX_CONCURRENCY),
+                    entry.optInt("requests_per_minute", DEFAULT_REQUESTS_PER_MINUTE),
+                    states.computeIfAbsent(name, ApiKeys::newState));
+            if (loaded.putIfAbsent(key, client) != null) {
+                throw new IOException("重复的 Key: " + name);
+            }
+        }
+        clients = Map.copyOf(loaded);
+        if (loadedAt != null) {
+            Log.info("已重新加载 API Key: " + loaded.size() + " 个");
+        }
+        loadedAt = modified;
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 新的调用方从用量文件中已有的累计值开始计数
+     */
+    private static State newState(String name) {
+        State state = new State();
+        JSONObject previous;
+        synchronized (previousUsage) {
+            previous = previousUsage.remove(name);
+        }
+        if (previous != null) {
+            state.requests.add(previous.optLong("requests"));
+            state.rejected.add(previous.optLong("rejected"));
+            state.bytes.add(previous.optLong("bytes"));
+            state.promptTokens.add(previous.optLong("prompt_tokens"));
+            state.completionTokens.add(previous.optLong("completion_tokens"));
+        }
+        return state;
+    }
+
+    private static void loadUsage() {
+        try {
+            JSONObject usage = new JSONObject(Files.readString(USAGE_FILE, StandardCharsets.UTF_8)).optJSONObject("clients");
+            if (usage != null) {
+                synchronized (previousUsage) {
+                    for (String name : usage.keySet()) {
+                        previousUsage.put(name, usage.getJSONObject(name));
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // 第一次启动
+        } catch (Exception e) {
+            Log.warn("读取用量文件失败，从 0 开始统计: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把所有调用方的累计用量写入 auth.usage.file
+     */
+    public static void flush() throws IOException {
+        JSONObject clientsJson = new JSONObject();
+        synchronized (previousUsage) {
+            // 不在当前 Key 文件中的调用方保留原有记录
+            previousUsage.forEach(clientsJson::put);
+        }
+        Map<String, State> sorted = new TreeMap<>(states);
+        sorted.forEach((name, state) -> clientsJson.put(name, new JSONObject()
+                .put("requests", state.requests.sum())
+                .put("rejected", state.rejected.sum())
+                .put("bytes", state.bytes.sum())
+                .put("prompt_tokens", state.promptTokens.sum())
+                .put("completion_tokens", state.completionTokens.sum())
+                .put("total_tokens", state.promptTokens.sum() + state.completionTokens.sum())));
+        JSONObject usage = new JSONObject()
+                .put("updated", System.currentTimeMillis() / 1000)
+                .put("clients", clientsJson);
+        Path target = USAGE_FILE.toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.writeString(tmp, usage.toString(2), StandardCharsets.UTF_8);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            Log.warn("写入用量文件失败: " + e.getMessage());
+        }
+    }
+}
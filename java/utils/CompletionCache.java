@@ -0,0 +1,118 @@
+package utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 确定性补全请求的结果缓存，默认关闭
+ * <p>
+ * 只缓存 temperature 为 0 且不含图片的请求。键是规范化后的上游请求体（对象键排序、无多余空白）的 SHA-256，
+ * 值是拼接后的回答内容；回答超过 completion.cache.max.entry.chars 个字符时不缓存，
+ * 因此缓存占用的内存不超过 completion.cache.max.entries × max.entry.chars 个字符。
+ * <p>
+ * 相同的并发请求只有第一个（领头请求）访问上游，其余请求等待其结果；领头请求失败或客户端中途断开时，
+ * 等待的请求各自访问上游。
+ */
+public class CompletionCache {
+    public static final boolean ENABLED = Config.getBoolean("completion.cache.enabled", false);
+    private static final int MAX_ENTRY_CHARS = Config.getInt("completion.cache.max.entry.chars", 256 * 1024);
+
+    private static final TtlCache<String, String> cache = new TtlCache<>("补全结果缓存",
+            Config.getInt("completion.cache.max.entries", 1024),
+            Config.getLong("completion.cache.ttl.seconds", 300) * 1000,
+            content -> content != null && content.length() <= MAX_ENTRY_CHARS);
+
+    static {
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(cache.stats())));
+        }
+    }
+
+    /**
+     * 一次缓存查找的结果
+     *
+     * @param result 缓存的回答；未命中时为领头请求的结果，领头请求失败时为 null
+     * @param sink   本请求是领头请求时，用于写入回答（失败时写入 null）；否则为 null
+     */
+    public record Lookup(CompletableFuture<String> result, CompletableFuture<String> sink) {
+        public boolean leader() {
+            return sink != null;
+        }
+    }
+
+    /**
+     * @param upstreamRequest 规范化后的上游请求体
+     * @return 请求是否可以使用缓存
+     */
+    public static boolean eligible(JSONObject upstreamRequest) {
+        return ENABLED && upstreamRequest.optDouble("temperature", 0.6) == 0;
+    }
+
+    /**
+     * 查找缓存，未命中且没有相同的请求正在进行时，本请求成为领头请求
+     */
+    public static Lookup lookup(JSONObject upstreamRequest) {
+        CompletableFuture<String> sink = new CompletableFuture<>();
+        AtomicBoolean leader = new AtomicBoolean();
+        CompletableFuture<String> result = cache.get(key(upstreamRequest), () -> {
+            leader.set(true);
+            return sink;
+        });
+        return new Lookup(result, leader.get() ? sink : null);
+    }
+
+    /**
+     * @return 规范化 JSON 的 SHA-256 十六进制串
+     */
+    public static String key(JSONObject upstreamRequest) {
+        StringBuilder canonical = new StringBuilder();
+        appendCanonical(upstreamRequest, canonical);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendCanonical(Object value, StringBuilder out) {
+        if (value instanceof JSONObject object) {
+            List<String> keys = new ArrayList<>(object.keySet());
+            Collections.sort(keys);
+            out.append('{');
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(JSONObject.quote(keys.get(i))).append(':');
+                appendCanonical(object.get(keys.get(i)), out);
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray array) {
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendCanonical(array.get(i), out);
+            }
+            out.append(']');
+        } else {
+            out.append(JSONObject.valueToString(value));
+        }
+    }
+
+    public static String stats() {
+        return cache.stats();
+    }
+}
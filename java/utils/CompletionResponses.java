@@ -0,0 +1,139 @@
+package utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 构建 OpenAI API 风格的非流式响应
+ * <p>
+ * 响应直接由 Jackson 生成器写出，不构建中间的 JSONObject；字段顺序与之前 JSONObject 的输出相同，
+ * 输出逐字节一致（见 {@link Json}）。
+ */
+public class CompletionResponses {
+
+    /**
+     * 构建普通对话的 chat.completion 响应
+     *
+     * @param model            使用的模型名称
+     * @param content          回答内容
+     * @param promptTokens     messages 的 token 数
+     * @param completionTokens 回答的 token 数
+     * @return UTF-8 编码的响应 JSON
+     */
+    public static byte[] chatCompletion(String model, String content, int promptTokens, int completionTokens) throws IOException {
+        // 构建 OpenAI API 风格的响应 JSON
+        return Json.toBytes(gen -> {
+            gen.writeStartObject();
+            gen.writeNumberField("created", Instant.now().getEpochSecond());
+            // 添加 'usage' 字段
+            gen.writeFieldName("usage");
+            writeUsage(gen, promptTokens, completionTokens);
+            Json.writeStringField(gen, "model", model);
+            gen.writeStringField("id", "chatcmpl-" + UUID.randomUUID().toString().replace("-", ""));
+
+            gen.writeArrayFieldStart("choices");
+            gen.writeStartObject();
+            gen.writeStringField("finish_reason", "stop");
+            gen.writeNumberField("index", 0);
+            gen.writeObjectFieldStart("message");
+            gen.writeStringField("role", "assistant");
+            gen.writeNullField("refusal"); // 添加 'refusal' 字段
+            Json.writeStringField(gen, "content", content);
+            gen.writeEndObject();
+            gen.writeNullField("logprobs"); // 添加 'logprobs' 字段
+            gen.writeEndObject();
+            gen.writeEndArray();
+
+            // 添加 'system_fingerprint' 字段
+            gen.writeStringField("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
+            gen.writeStringField("object", "chat.completion");
+            gen.writeEndObject();
+        });
+    }
+
+    /**
+     * 写出 usage 字段的值，同时用于非流式响应与流式响应最后的 usage chunk
+     *
+     * @param gen              JSON 生成器
+     * @param promptTokens     messages 的 token 数
+     * @param completionTokens 回答的 token 数
+     */
+    public static void writeUsage(JsonGenerator gen, int promptTokens, int completionTokens) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("completion_tokens", completionTokens);
+        gen.writeNumberField("prompt_tokens", promptTokens);
+
+        // 添加 'completion_tokens_details' 字段
+        gen.writeObjectFieldStart("completion_tokens_details");
+        gen.writeNumberField("accepted_prediction_tokens", 0);
+        gen.writeNumberField("audio_tokens", 0);
+        gen.writeNumberField("reasoning_tokens", 0);
+        gen.writeNumberField("rejected_prediction_tokens", 0);
+        gen.writeEndObject();
+
+        // 添加 'prompt_tokens_details' 字段
+        gen.writeObjectFieldStart("prompt_tokens_details");
+        gen.writeNumberField("audio_tokens", 0);
+        gen.writeNumberField("cached_tokens", 0);
+        gen.writeEndObject();
+
+        gen.writeNumberField("total_tokens", promptTokens + completionTokens);
+        gen.writeEndObject();
+    }
+
+    /**
+     * 构建包含图片 URL 的 assistant 内容
+     *
+     * @param content   回答内容
+     * @param imageUrls 上游返回的图片 URL
+     * @return assistant 内容
+     */
+    public static String visionContent(CharSequence content, List<String> imageUrls) {
+        StringBuilder assistantContent = new StringBuilder();
+        assistantContent.append(content);
+        for (String imageUrl : imageUrls) {
+            assistantContent.append("\n[Image: ").append(imageUrl).append("]");
+        }
+        return assistantContent.toString();
+    }
+
+    /**
+     * 构建识图对话的 chat.completion 响应
+     *
+     * @param model            使用的模型名称
+     * @param assistantContent 由 {@link #visionContent} 构建的内容
+     * @param promptTokens     messages 的 token 数
+     * @param completionTokens 回答的 token 数
+     * @return UTF-8 编码的响应 JSON
+     */
+    public static byte[] visionCompletion(String model, String assistantContent, int promptTokens, int completionTokens)
+            throws IOException {
+        // 构建 OpenAI API 风格的响应 JSON
+        return Json.toBytes(gen -> {
+            gen.writeStartObject();
+            gen.writeNumberField("created", Instant.now().getEpochSecond());
+            gen.writeFieldName("usage");
+            writeUsage(gen, promptTokens, completionTokens);
+            Json.writeStringField(gen, "model", model);
+            gen.writeStringField("id", "chatcmpl-" + UUID.randomUUID());
+
+            gen.writeArrayFieldStart("choices");
+            gen.writeStartObject();
+            gen.writeStringField("finish_reason", "stop");
+            gen.writeNumberField("index", 0);
+            gen.writeObjectFieldStart("message");
+            gen.writeStringField("role", "assistant");
+            Json.writeStringField(gen, "content", assistantContent);
+            gen.writeEndObject();
+            gen.writeEndObject();
+            gen.writeEndArray();
+
+            gen.writeStringField("object", "chat.completion");
+            gen.writeEndObject();
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package utils;
+
+import java.util.Locale;
+
+/**
+ * 运行时配置
+ * <p>
+ * 优先读取 JVM 系统属性 {@code -Dchaton.<key>}，其次读取环境变量 {@code CHATON_<KEY>}
+ * （key 中的 '.' 与 '-' 替换为 '_' 并转为大写），都未设置时使用默认值。
+ */
+public class Config {
+    private static final String PROPERTY_PREFIX = "chaton.";
+    private static final String ENV_PREFIX = "CHATON_";
+
+    /**
+     * 读取字符串配置
+     *
+     * @param key          配置名，例如 executor.mode
+     * @param defaultValue 默认值
+     * @return 配置值
+     */
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null || value.isBlank()) {
+            value = System.getenv(ENV_PREFIX + key.replace('.', '_').replace('-', '_').toUpperCase(Locale.ROOT));
+        }
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("配置 " + key + " 不是有效的整数: " + value + "，使用默认值 " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("配置 " + key + " 不是有效的整数: " + value + "，使用默认值 " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.err.println("配置 " + key + " 不是有效的数字: " + value + "，使用默认值 " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes");
+    }
+}
@@ -0,0 +1,202 @@
+package utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按模型的 token 预算裁剪过长的对话历史，默认关闭
+ * <p>
+ * 在消息规范化之后、构建上游请求之前调用。messages 的 token 数超过模型的预算
+ * （context.budget.&lt;模型名&gt;，未设置时为 context.budget.tokens）时，保留开头的 system 消息和最后一条消息，
+ * 从最早的一轮对话（一条 user 消息及其后的回复）开始整轮移除，直到不超过预算；
+ * context.trim.note 为 true 时在 system 消息之后插入一条说明，告诉模型省略了多少条较早的消息。
+ * <p>
+ * 聊天前端每一轮都会重新发送完整的历史，因此每条消息的 token 数按 role、content、name 与图片数的 64 位哈希缓存
+ * （最近最少使用的条目超出上限时淘汰），同一会话的后续请求只需要对新增的消息做 BPE 计数。
+ * 移除的消息数、节省的 token 数与请求体字节数记录在 /metrics 中，退出时输出汇总。
+ */
+public class ContextTrimmer {
+    public static final boolean ENABLED = Config.getBoolean("context.trim.enabled", false);
+    private static final int DEFAULT_BUDGET = Config.getInt("context.budget.tokens", 32000);
+    private static final boolean NOTE_ENABLED = Config.getBoolean("context.trim.note", true);
+    private static final String NOTE = "[%d earlier messages omitted]";
+
+    private static final int CACHE_MAX_ENTRIES = Config.getInt("context.cache.max.entries", 4096);
+    private static final Map<Long, Integer> counts = Collections.synchronizedMap(new LinkedHashMap<Long, Integer>(CACHE_MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > CACHE_MAX_ENTRIES;
+        }
+    });
+    // 模型名已在 CompletionHandler 中校验过，数量有限
+    private static final Map<String, Integer> budgets = new ConcurrentHashMap<>();
+
+    private static final LongAdder trimmedRequests = new LongAdder();
+    private static final LongAdder trimmedMessages = new LongAdder();
+    private static final LongAdder savedTokens = new LongAdder();
+    private static final LongAdder savedBytes = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+
+    private static final Metrics.Family<Metrics.Counter> TRIMMED_MESSAGES = Metrics.counter("chaton_context_trimmed_messages_total",
+            "上下文裁剪移除的消息数", "model");
+    private static final Metrics.Family<Metrics.Counter> SAVED_TOKENS = Metrics.counter("chaton_context_saved_tokens_total",
+            "上下文裁剪节省的 prompt token 数", "model");
+    private static final Metrics.Family<Metrics.Counter> SAVED_BYTES = Metrics.counter("chaton_context_saved_bytes_total",
+            "上下文裁剪节省的上游请求体字节数", "model");
+
+    static {
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats())));
+        }
+    }
+
+    /**
+     * 原地裁剪 messages，使其 token 数不超过模型的预算
+     *
+     * @param model    已校验的模型名称
+     * @param messages 规范化后的 messages
+     * @return 裁剪后 messages 的 prompt token 数，可直接用于 usage
+     */
+    public static int trim(String model, JSONArray messages) {
+        int size = messages.length();
+        int[] tokens = new int[size];
+        int total = TokenCounter.REPLY_PRIMING_TOKENS;
+        TokenCounter.Counter counter = TokenCounter.counter();
+        for (int i = 0; i < size; i++) {
+            JSONObject message = messages.optJSONObject(i);
+            tokens[i] = message == null ? 0 : count(message, counter);
+            total += tokens[i];
+        }
+        int budget = budgets.computeIfAbsent(model, m -> Config.getInt("context.budget." + m, DEFAULT_BUDGET));
+        if (total <= budget || size < 2) {
+            return total;
+        }
+
+        // 开头的 system 消息与最后一条消息始终保留
+        int first = 0;
+        while (first < size - 1 && "system".equals(role(messages, first))) {
+            first++;
+        }
+        int last = size - 1;
+        int noteTokens = NOTE_ENABLED ? countNote(1, counter) : 0;
+        int end = first;
+        int removedTokens = 0;
+        while (end < last && total - removedTokens + noteTokens > budget) {
+            // 整轮移除：当前消息及其后直到下一条 user 消息之前的回复
+            do {
+                removedTokens += tokens[end];
+                end++;
+            } while (end < last && !"user".equals(role(messages, end)));
+            if (NOTE_ENABLED) {
+                noteTokens = countNote(end - first, counter);
+            }
+        }
+        int removed = end - first;
+        if (removed == 0) {
+            return total;
+        }
+
+        long bytes = 0;
+        for (int i = end - 1; i >= first; i--) {
+            // 每条消息在请求体中还有一个分隔的逗号
+            bytes += messages.get(i).toString().getBytes(StandardCharsets.UTF_8).length + 1;
+            messages.remove(i);
+        }
+        int saved = removedTokens;
+        if (NOTE_ENABLED) {
+            JSONObject noteMessage = note(removed);
+            bytes -= noteMessage.toString().getBytes(StandardCharsets.UTF_8).length + 1;
+            saved -= noteTokens;
+            insert(messages, first, noteMessage);
+        }
+        total -= saved;
+
+        trimmedRequests.increment();
+        trimmedMessages.add(removed);
+        savedTokens.add(saved);
+        savedBytes.add(bytes);
+        TRIMMED_MESSAGES.labels(model).add(removed);
+        SAVED_TOKENS.labels(model).add(saved);
+        SAVED_BYTES.labels(model).add(bytes);
+        if (Log.DEBUG) {
+            Log.debug("上下文裁剪: 模型 " + model + " 预算 " + budget + "，移除 " + removed + " 条消息，节省 "
+                    + saved + " token / " + bytes + " 字节，剩余 " + total + " token");
+        }
+        return total;
+    }
+
+    /**
+     * 单条消息的 token 数，优先读取缓存
+     */
+    private static int count(JSONObject message, TokenCounter.Counter counter) {
+        long key = key(message);
+        Integer cached = counts.get(key);
+        if (cached != null) {
+            cacheHits.increment();
+            return cached;
+        }
+        cacheMisses.increment();
+        // 在锁外计数，并发请求偶尔会重复计数同一条消息，结果相同
+        int count = TokenCounter.countMessage(message, counter);
+        counts.put(key, count);
+        return count;
+    }
+
+    private static JSONObject note(int removed) {
+        return new JSONObject().put("role", "system").put("content", String.format(NOTE, removed));
+    }
+
+    private static int countNote(int removed, TokenCounter.Counter counter) {
+        return TokenCounter.countMessage(note(removed), counter);
+    }
+
+    /**
+     * role、content、name 与图片数的 64 位 FNV-1a 哈希
+     */
+    private static long key(JSONObject message) {
+        long h = 0xCBF29CE484222325L;
+        h = hash(h, message.optString("role", ""));
+        h = hash(h, message.optString("content", ""));
+        h = hash(h, message.optString("name", ""));
+        JSONArray images = message.optJSONArray("images");
+        return (h ^ (images == null ? 0 : images.length())) * 0x100000001B3L;
+    }
+
+    private static long hash(long h, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        // 字段之间的分隔，避免 "ab" + "c" 与 "a" + "bc" 相同
+        return (h ^ 0xFFFF) * 0x100000001B3L;
+    }
+
+    private static String role(JSONArray messages, int index) {
+        JSONObject message = messages.optJSONObject(index);
+        return message == null ? "" : message.optString("role", "");
+    }
+
+    private static void insert(JSONArray messages, int index, JSONObject message) {
+        messages.put(message);
+        for (int i = messages.length() - 1; i > index; i--) {
+            messages.put(i, messages.get(i - 1));
+        }
+        messages.put(index, message);
+    }
+
+    /**
+     * 输出裁剪与缓存统计
+     */
+    public static String stats() {
+        return "上下文裁剪: " + trimmedRequests.sum() + " 个请求, 移除 " + trimmedMessages.sum() + " 条消息, 节省 "
+                + savedTokens.sum() + " token / " + savedBytes.sum() + " 字节; 消息 token 数缓存: " + counts.size() + " 条, 命中 "
+                + cacheHits.sum() + " 次, 未命中 " + cacheMisses.sum() + " 次";
+    }
+}
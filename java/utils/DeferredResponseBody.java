@@ -0,0 +1,69 @@
+package utils;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * 第一次写入（或关闭）时才发送 200 响应头的响应体
+ * <p>
+ * 流式响应在客户端收到任何数据之前，仍然可以换一个上游请求重试，或者改为返回错误状态码。
+ * 调用方需要保证写入是串行的（{@link SseWriter} 在锁内写入）。
+ */
+public class DeferredResponseBody extends OutputStream {
+    private final HttpExchange exchange;
+    private final Map<String, String> headers;
+    private volatile OutputStream out;
+
+    /**
+     * @param exchange 当前的 HttpExchange 对象
+     * @param headers  发送响应头时添加的头部，例如 SSE 的 Content-Type
+     */
+    public DeferredResponseBody(HttpExchange exchange, Map<String, String> headers) {
+        this.exchange = exchange;
+        this.headers = headers;
+    }
+
+    /**
+     * @return 响应头是否已经发出
+     */
+    public boolean committed() {
+        return out != null;
+    }
+
+    private OutputStream out() throws IOException {
+        OutputStream current = out;
+        if (current == null) {
+            headers.forEach(exchange.getResponseHeaders()::add);
+            exchange.sendResponseHeaders(200, 0);
+            current = exchange.getResponseBody();
+            out = current;
+        }
+        return current;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        OutputStream current = out;
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out().close();
+    }
+}
@@ -0,0 +1,289 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上传图片的本地存储 (images 目录)
+ * <p>
+ * base64 数据直接从 data URL 字符串中按块解码并写入文件，不再生成 base64 子串和完整的 byte[]，
+ * 每个请求的额外内存只有一个固定大小的缓冲区。
+ * <p>
+ * 文件按内容的 SHA-256 命名，同一张图片重复上传时复用同一个文件和 URL，只刷新其修改时间。
+ * 后台线程定期清理超过 image.ttl.seconds（默认 600 秒）未再上传的文件，
+ * 并在总大小超过 image.max.bytes（默认 1 GB）时从最旧的文件开始删除，清理不在请求路径上进行。
+ */
+public class ImageStore {
+    public static final File IMAGES_DIR = new File("images");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_PREFIX = ".upload-";
+
+    private static final long TTL_MILLIS = Config.getLong("image.ttl.seconds", 600) * 1000;
+    private static final long MAX_BYTES = Config.getLong("image.max.bytes", 1024L * 1024 * 1024);
+    private static final long EVICT_INTERVAL_SECONDS = Math.max(1, Config.getLong("image.evict.interval.seconds", 60));
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder stores = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder evictedBytes = new LongAdder();
+
+    private static volatile ScheduledExecutorService evictor;
+
+    /**
+     * 把 data:image/...;base64, 格式的图片保存到 images 目录
+     *
+     * @param dataUrl data URL
+     * @return 保存后的文件名
+     * @throws IOException 写入失败或 base64 数据无效
+     */
+    public static String save(String dataUrl) throws IOException {
+        int start = dataUrl.indexOf("base64,") + 7;
+        String extension = "jpg"; // 默认扩展名
+        if (dataUrl.startsWith("data:image/png")) {
+            extension = "png";
+        }
+
+        Path dir = IMAGES_DIR.toPath();
+        Files.createDirectories(dir);
+        // 先写入临时文件，写完后再改名，避免被 /images/ 访问到不完整的文件
+        Path tmp = Files.createTempFile(dir, TEMP_PREFIX, ".tmp");
+        try {
+            String filename = decodeTo(dataUrl, start, tmp) + "." + extension;
+            Path target = dir.resolve(filename);
+            if (refresh(target)) {
+                hits.increment();
+                return filename;
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                stores.increment();
+            } catch (FileAlreadyExistsException e) {
+                // 并发上传了相同内容
+                hits.increment();
+            }
+            return filename;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 相同内容已存在时刷新修改时间以延长保留期
+     * <p>
+     * 文件可能同时被 {@link #evict} 删除：刷新前已被删除时抛出 NoSuchFileException，刷新后被删除时文件不再存在，
+     * 两种情况都返回 false，由调用方重新写入。evict 删除前会重新检查修改时间，跳过刚被刷新的文件。
+     *
+     * @return 文件存在且已刷新
+     */
+    private static boolean refresh(Path target) throws IOException {
+        try {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        return Files.exists(target);
+    }
+
+    /**
+     * 解码并写入文件
+     *
+     * @return 解码后内容的 SHA-256 十六进制串
+     */
+    private static String decodeTo(String dataUrl, int start, Path target) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Base64.getDecoder().wrap(new CharSequenceInputStream(dataUrl, start));
+             FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * 启动后台清理线程，重复调用无副作用
+     */
+    public static synchronized void startEviction() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "image-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(() -> {
+            try {
+                evict();
+            } catch (Exception e) {
+                Log.warn("清理图片目录失败: " + e.getMessage());
+            }
+        }, EVICT_INTERVAL_SECONDS, EVICT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 清理过期文件，并在总大小超限时删除最旧的文件
+     */
+    public static void evict() throws IOException {
+        Path dir = IMAGES_DIR.toPath();
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Path> files = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long totalBytes = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                if (now - attrs.lastModifiedTime().toMillis() > TTL_MILLIS) {
+                    delete(file, attrs);
+                    continue;
+                }
+                if (!file.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    files.add(file);
+                    attributes.add(attrs);
+                    totalBytes += attrs.size();
+                }
+            }
+        }
+        if (totalBytes <= MAX_BYTES) {
+            return;
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+        for (int i : order) {
+            if (totalBytes <= MAX_BYTES) {
+                break;
+            }
+            if (delete(files.get(i), attributes.get(i))) {
+                totalBytes -= attributes.get(i).size();
+            }
+        }
+    }
+
+    /**
+     * 删除文件，修改时间与扫描时不同（save 刚刚复用并刷新了它）时跳过
+     *
+     * @return 是否已删除
+     */
+    private static boolean delete(Path file, BasicFileAttributes attrs) throws IOException {
+        try {
+            if (!Files.getLastModifiedTime(file).equals(attrs.lastModifiedTime())) {
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (Files.deleteIfExists(file)) {
+            evictions.increment();
+            evictedBytes.add(attrs.size());
+            return true;
+        }
+        return false;
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long stores() {
+        return stores.sum();
+    }
+
+    public static long evictions() {
+        return evictions.sum();
+    }
+
+    public static long evictedBytes() {
+        return evictedBytes.sum();
+    }
+
+    /**
+     * @return 命中、写入与清理统计
+     */
+    public static String stats() {
+        return "图片存储 命中: " + hits() + ", 写入: " + stores() + ", 清理: " + evictions() + " (" + evictedBytes() + " 字节)";
+    }
+
+    /**
+     * 以 ASCII 字节流的方式读取字符串的一部分，不复制字符串
+     */
+    private static class CharSequenceInputStream extends InputStream {
+        private final CharSequence chars;
+        private int position;
+
+        CharSequenceInputStream(CharSequence chars, int start) {
+            this.chars = chars;
+            this.position = start;
+        }
+
+        @Override
+        public int read() {
+            return position < chars.length() ? toAscii(chars.charAt(position++)) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int remaining = chars.length() - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = Math.min(len, remaining);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) toAscii(chars.charAt(position++));
+            }
+            return n;
+        }
+
+        // 非 ASCII 字符映射为非法的 base64 字符，交给解码器报错
+        private static int toAscii(char c) {
+            return c < 0x80 ? c : '!';
+        }
+    }
+}
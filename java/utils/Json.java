@@ -0,0 +1,418 @@
+package utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基于 Jackson 流式 API 的 JSON 读写，替代热路径上 org.json 的 JSONObject 构建与 toString
+ * <p>
+ * JsonFactory 线程安全，全局共享一个实例，生成器与解析器的缓冲区由 Jackson 的 BufferRecycler 复用。
+ * 输出与 org.json 逐字节一致，客户端和上游看到的内容不变：
+ * <ul>
+ *     <li>字符串按 JSONObject.quote 的规则转义："&lt;/" 写为 "&lt;\/"，控制字符、U+0080–U+009F 与 U+2000–U+20FF
+ *     写为小写十六进制的 \\uXXXX，孤立的代理字符写为 '?'（与 String.getBytes 的替换结果相同）</li>
+ *     <li>数字按 JSONObject.numberToString 的规则写出，小数去掉末尾的 0</li>
+ *     <li>对象字段按写出的顺序排列；固定字段的对象由调用方按 org.json（HashMap）的迭代顺序写出，
+ *     JSONObject 按其自身的迭代顺序写出</li>
+ * </ul>
+ * 解析得到的 JSONObject 与 org.json 自己解析的结果相同（数字经 JSONObject.stringToValue 转换，重复的键报错），
+ * 规范化、缓存和上下文裁剪仍然可以在 JSONObject 上进行。
+ */
+public final class Json {
+    public static final JsonFactory FACTORY = new JsonFactoryBuilder()
+            .enable(StreamReadFeature.STRICT_DUPLICATE_DETECTION)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .disable(StreamWriteFeature.FLUSH_PASSED_TO_STREAM)
+            .build();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * 写出 JSON 内容的函数
+     */
+    @FunctionalInterface
+    public interface Body {
+        void write(JsonGenerator gen) throws IOException;
+    }
+
+    private Json() {
+    }
+
+    /**
+     * @return UTF-8 编码的 JSON
+     */
+    public static byte[] toBytes(Body body) throws IOException {
+        ByteArrayBuilder out = new ByteArrayBuilder(1024);
+        try (JsonGenerator gen = FACTORY.createGenerator(out)) {
+            body.write(gen);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return JSON 字符串
+     */
+    public static String toString(Body body) throws IOException {
+        StringWriter out = new StringWriter(1024);
+        try (JsonGenerator gen = FACTORY.createGenerator(out)) {
+            body.write(gen);
+        }
+        return out.toString();
+    }
+
+    /**
+     * 与 JSONObject.toString() 相同的序列化结果
+     */
+    public static String toString(JSONObject object) throws IOException {
+        return toString(gen -> writeValue(gen, object));
+    }
+
+    /**
+     * 写出一个 "data: {...}\n\n" 的 SSE 事件，整条事件在生成器的缓冲区中拼好后一次写入 os，不 flush
+     *
+     * @param os   客户端输出流
+     * @param body 事件的 JSON 内容
+     */
+    public static void writeEvent(OutputStream os, Body body) throws IOException {
+        try (JsonGenerator gen = FACTORY.createGenerator(os)) {
+            gen.writeRaw("data: ");
+            body.write(gen);
+            gen.writeRaw("\n\n");
+        }
+    }
+
+    /**
+     * 按 org.json 的转义规则写出字符串值
+     */
+    public static void writeString(JsonGenerator gen, String value) throws IOException {
+        if (plain(value)) {
+            gen.writeString(value);
+            return;
+        }
+        // writeRawValue 负责写出与前一个值之间的分隔符，其余部分按连续的不需转义的片段原样写出
+        gen.writeRawValue("\"");
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (!needsEscape(value, i)) {
+                if (Character.isHighSurrogate(c)) {
+                    i++;
+                }
+                continue;
+            }
+            if (i > start) {
+                gen.writeRaw(value, start, i - start);
+            }
+            writeEscape(gen, c);
+            start = i + 1;
+        }
+        if (length > start) {
+            gen.writeRaw(value, start, length - start);
+        }
+        gen.writeRaw('"');
+    }
+
+    public static void writeStringField(JsonGenerator gen, String name, String value) throws IOException {
+        writeFieldName(gen, name);
+        writeString(gen, value);
+    }
+
+    /**
+     * 按 org.json 的转义规则写出字段名；固定的字段名直接用 {@link JsonGenerator#writeFieldName(String)}
+     */
+    public static void writeFieldName(JsonGenerator gen, String name) throws IOException {
+        if (plain(name)) {
+            gen.writeFieldName(name);
+            return;
+        }
+        StringWriter quoted = new StringWriter(name.length() + 16);
+        try (JsonGenerator raw = FACTORY.createGenerator(quoted)) {
+            writeString(raw, name);
+        }
+        String text = quoted.toString();
+        gen.writeFieldName(new QuotedName(name, text.substring(1, text.length() - 1)));
+    }
+
+    /**
+     * Jackson 与 org.json 的转义结果是否相同：只包含 Jackson 与 org.json 都原样输出或都用相同方式转义的字符
+     * （'"' 与 '\\'），不包含需要 org.json 特殊处理的 "&lt;/"、控制字符、U+0080–U+009F、U+2000–U+20FF，
+     * 也不包含 Jackson 会转义为 \\uXXXX 的代理字符
+     */
+    private static boolean plain(String value) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c < ' ' || c >= 0x80 && c < 0xA0 || c >= 0x2000 && c < 0x2100 || Character.isSurrogate(c)
+                    || c == '/' && i > 0 && value.charAt(i - 1) == '<') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return value 的第 i 个字符按 org.json 的规则是否需要转义；成对的代理字符不需要
+     */
+    private static boolean needsEscape(String value, int i) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\' || c < ' ' || c >= 0x80 && c < 0xA0 || c >= 0x2000 && c < 0x2100) {
+            return true;
+        }
+        if (c == '/') {
+            return i > 0 && value.charAt(i - 1) == '<';
+        }
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 >= value.length() || !Character.isLowSurrogate(value.charAt(i + 1));
+        }
+        return Character.isLowSurrogate(c);
+    }
+
+    private static void writeEscape(JsonGenerator gen, char c) throws IOException {
+        switch (c) {
+            case '"' -> gen.writeRaw("\\\"");
+            case '\\' -> gen.writeRaw("\\\\");
+            case '/' -> gen.writeRaw("\\/");
+            case '\b' -> gen.writeRaw("\\b");
+            case '\t' -> gen.writeRaw("\\t");
+            case '\n' -> gen.writeRaw("\\n");
+            case '\f' -> gen.writeRaw("\\f");
+            case '\r' -> gen.writeRaw("\\r");
+            default -> {
+                if (Character.isSurrogate(c)) {
+                    // 孤立的代理字符，org.json 原样输出，编码为 UTF-8 时被替换为 '?'
+                    gen.writeRaw('?');
+                } else {
+                    gen.writeRaw(new char[]{'\\', 'u', HEX[c >> 12], HEX[(c >> 8) & 0xF], HEX[(c >> 4) & 0xF], HEX[c & 0xF]}, 0, 6);
+                }
+            }
+        }
+    }
+
+    /**
+     * 已按 org.json 规则转义的字段名
+     */
+    private record QuotedName(String name, String quoted) implements SerializableString {
+        @Override
+        public String getValue() {
+            return name;
+        }
+
+        @Override
+        public int charLength() {
+            return name.length();
+        }
+
+        @Override
+        public char[] asQuotedChars() {
+            return quoted.toCharArray();
+        }
+
+        @Override
+        public byte[] asUnquotedUTF8() {
+            return name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public byte[] asQuotedUTF8() {
+            return quoted.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int appendQuotedUTF8(byte[] buffer, int offset) {
+            return append(asQuotedUTF8(), buffer, offset);
+        }
+
+        @Override
+        public int appendQuoted(char[] buffer, int offset) {
+            return append(quoted.toCharArray(), buffer, offset);
+        }
+
+        @Override
+        public int appendUnquotedUTF8(byte[] buffer, int offset) {
+            return append(asUnquotedUTF8(), buffer, offset);
+        }
+
+        @Override
+        public int appendUnquoted(char[] buffer, int offset) {
+            return append(name.toCharArray(), buffer, offset);
+        }
+
+        @Override
+        public int writeQuotedUTF8(OutputStream out) throws IOException {
+            byte[] bytes = asQuotedUTF8();
+            out.write(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public int writeUnquotedUTF8(OutputStream out) throws IOException {
+            byte[] bytes = asUnquotedUTF8();
+            out.write(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public int putQuotedUTF8(ByteBuffer buffer) {
+            return put(asQuotedUTF8(), buffer);
+        }
+
+        @Override
+        public int putUnquotedUTF8(ByteBuffer buffer) {
+            return put(asUnquotedUTF8(), buffer);
+        }
+
+        private static int append(byte[] bytes, byte[] buffer, int offset) {
+            if (offset + bytes.length > buffer.length) {
+                return -1;
+            }
+            System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+            return bytes.length;
+        }
+
+        private static int append(char[] chars, char[] buffer, int offset) {
+            if (offset + chars.length > buffer.length) {
+                return -1;
+            }
+            System.arraycopy(chars, 0, buffer, offset, chars.length);
+            return chars.length;
+        }
+
+        private static int put(byte[] bytes, ByteBuffer buffer) {
+            if (bytes.length > buffer.remaining()) {
+                return -1;
+            }
+            buffer.put(bytes);
+            return bytes.length;
+        }
+    }
+
+    /**
+     * 按 JSONObject.numberToString 的规则写出数字：不是科学计数法的小数去掉末尾的 0 与小数点
+     */
+    public static void writeNumber(JsonGenerator gen, Number value) throws IOException {
+        if (value instanceof Integer || value instanceof Long) {
+            gen.writeNumber(value.longValue());
+            return;
+        }
+        String text = value.toString();
+        if (text.indexOf('.') > 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            int end = text.length();
+            while (text.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (text.charAt(end - 1) == '.') {
+                end--;
+            }
+            text = text.substring(0, end);
+        }
+        gen.writeNumber(text);
+    }
+
+    /**
+     * 写出 org.json 的值：JSONObject 与 JSONArray 按其自身的迭代顺序递归写出
+     */
+    public static void writeValue(JsonGenerator gen, Object value) throws IOException {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            gen.writeNull();
+        } else if (value instanceof String s) {
+            writeString(gen, s);
+        } else if (value instanceof JSONObject object) {
+            gen.writeStartObject();
+            for (String key : object.keySet()) {
+                writeFieldName(gen, key);
+                writeValue(gen, object.opt(key));
+            }
+            gen.writeEndObject();
+        } else if (value instanceof JSONArray array) {
+            gen.writeStartArray();
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(gen, array.opt(i));
+            }
+            gen.writeEndArray();
+        } else if (value instanceof Number number) {
+            writeNumber(gen, number);
+        } else if (value instanceof Boolean b) {
+            gen.writeBoolean(b);
+        } else {
+            writeString(gen, value.toString());
+        }
+    }
+
+    /**
+     * 用 Jackson 解析为 JSONObject，结果与 new JSONObject(String) 相同
+     *
+     * @throws IOException 不是合法的 JSON 对象
+     */
+    public static JSONObject parseObject(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(data, offset, length)) {
+            return readObject(parser);
+        }
+    }
+
+    public static JSONObject parseObject(String data) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(data)) {
+            return readObject(parser);
+        }
+    }
+
+    private static JSONObject readObject(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "JSON 文本必须以 '{' 开头");
+        }
+        return (JSONObject) readValue(parser, JsonToken.START_OBJECT);
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT -> {
+                JSONObject object = new JSONObject();
+                String name;
+                while ((name = parser.nextFieldName()) != null) {
+                    object.put(name, readValue(parser, parser.nextToken()));
+                }
+                return object;
+            }
+            case START_ARRAY -> {
+                JSONArray array = new JSONArray();
+                JsonToken element;
+                while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    array.put(readValue(parser, element));
+                }
+                return array;
+            }
+            case VALUE_STRING -> {
+                return parser.getText();
+            }
+            case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> {
+                // 与 org.json 解析得到的数字类型相同（Integer、Long、BigInteger 或 BigDecimal）
+                return JSONObject.stringToValue(parser.getText());
+            }
+            case VALUE_TRUE -> {
+                return Boolean.TRUE;
+            }
+            case VALUE_FALSE -> {
+                return Boolean.FALSE;
+            }
+            case VALUE_NULL -> {
+                return JSONObject.NULL;
+            }
+            default -> throw new JsonParseException(parser, "意外的 JSON 内容: " + token);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package utils;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步分级日志
+ * <p>
+ * 请求线程只把日志放入固定大小的环形缓冲区（无锁，多生产者单消费者），由后台线程格式化并批量写到控制台，
+ * 不再在请求线程上争用 System.out 的锁。缓冲区满时丢弃新日志并计数，不会阻塞请求。
+ * 单条日志超过 log.max.chars 个字符时截断。
+ * <p>
+ * 级别低于 log.level 的日志在调用处直接返回，拼接代价较高的调试日志先检查 {@link #DEBUG}；请求体与流式 token 的跟踪默认关闭（log.trace.requests、trace.tokens），
+ * 开启后按 log.sample.rate 对请求抽样。这些开关都是静态常量，关闭时 JIT 会把相应分支整体去掉。
+ * 启动与退出时的统计信息仍直接打印。
+ */
+public class Log {
+    public enum Level {TRACE, DEBUG, INFO, WARN, ERROR}
+
+    public static final Level LEVEL = parseLevel(Config.get("log.level", "info"));
+    // 热路径上拼接日志内容之前先检查此常量
+    public static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) <= 0;
+    // 是否打印改写后的上游请求体
+    public static final boolean TRACE_REQUESTS = Config.getBoolean("log.trace.requests", false);
+    // 是否打印流式输出的完整回答
+    public static final boolean TRACE_TOKENS = Config.getBoolean("trace.tokens", false);
+    private static final double SAMPLE_RATE = Config.getDouble("log.sample.rate", 1.0);
+    private static final int MAX_CHARS = Math.max(64, Config.getInt("log.max.chars", 4096));
+    private static final boolean ASYNC = Config.getBoolean("log.async", true);
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private record Entry(long millis, Level level, String thread, String message, Throwable error) {
+    }
+
+    private static final Ring ring = new Ring(Config.getInt("log.buffer.size", 8192));
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Thread writer;
+    private static volatile boolean sleeping;
+
+    static {
+        if (ASYNC) {
+            Thread t = new Thread(Log::drainLoop, "log-writer");
+            t.setDaemon(true);
+            writer = t;
+            t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+        }
+        Metrics.counterFunction("chaton_log_dropped_total", "日志缓冲区已满而丢弃的日志数", dropped::sum);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * 按 log.sample.rate 决定是否跟踪当前请求，每个请求只调用一次
+     */
+    public static boolean sampled() {
+        return SAMPLE_RATE >= 1 || ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE;
+    }
+
+    public static void trace(String message) {
+        log(Level.TRACE, message, null);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    public static void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), level, Thread.currentThread().getName(), truncate(message), error);
+        if (!ASYNC) {
+            write(entry);
+            return;
+        }
+        if (!ring.offer(entry)) {
+            dropped.increment();
+            return;
+        }
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * 超过 log.max.chars 的内容只保留开头部分
+     */
+    public static String truncate(String message) {
+        if (message == null || message.length() <= MAX_CHARS) {
+            return message;
+        }
+        return message.substring(0, MAX_CHARS) + "...（共 " + message.length() + " 个字符）";
+    }
+
+    private static void drainLoop() {
+        long reportedDrops = 0;
+        while (true) {
+            if (!drain()) {
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    System.err.println(format(new Entry(System.currentTimeMillis(), Level.WARN, "log-writer",
+                            "日志缓冲区已满，累计丢弃 " + drops + " 条日志", null)));
+                    reportedDrops = drops;
+                }
+                sleeping = true;
+                // 再检查一次，避免错过 sleeping 置位前放入的日志
+                if (idle()) {
+                    LockSupport.parkNanos(100_000_000L);
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    /**
+     * 写出缓冲区中的所有日志
+     *
+     * @return 是否写出了日志
+     */
+    private static synchronized boolean drain() {
+        StringBuilder out = null;
+        StringBuilder err = null;
+        Entry entry;
+        while ((entry = ring.poll()) != null) {
+            if (entry.level().compareTo(Level.WARN) >= 0) {
+                err = append(err, entry);
+            } else {
+                out = append(out, entry);
+            }
+        }
+        if (out != null) {
+            System.out.print(out);
+            System.out.flush();
+        }
+        if (err != null) {
+            System.err.print(err);
+            System.err.flush();
+        }
+        return out != null || err != null;
+    }
+
+    private static synchronized boolean idle() {
+        return ring.isEmpty();
+    }
+
+    private static StringBuilder append(StringBuilder sb, Entry entry) {
+        if (sb == null) {
+            sb = new StringBuilder(256);
+        }
+        return sb.append(format(entry)).append(System.lineSeparator());
+    }
+
+    private static void write(Entry entry) {
+        PrintStream stream = entry.level().compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        stream.println(format(entry));
+    }
+
+    private static String format(Entry entry) {
+        String text = TIME.format(Instant.ofEpochMilli(entry.millis())) + " " + entry.level() + " [" + entry.thread() + "] "
+                + entry.message();
+        if (entry.error() != null) {
+            StringWriter trace = new StringWriter();
+            entry.error().printStackTrace(new PrintWriter(trace));
+            text += System.lineSeparator() + trace.toString().stripTrailing();
+        }
+        return text;
+    }
+
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("未知的 log.level: " + value + "，使用 info");
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * 有界的多生产者单消费者环形缓冲区：每个槽位带序号，生产者用 CAS 抢占位置，满时直接返回 false
+     */
+    private static final class Ring {
+        private final int mask;
+        private final AtomicReferenceArray<Entry> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        // 只由消费者（持有 Log.class 锁的线程）访问
+        private long head;
+
+        Ring(int requested) {
+            int capacity = Integer.highestOneBit(Math.max(2, requested) - 1) << 1;
+            mask = capacity - 1;
+            slots = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(Entry entry) {
+            long pos = tail.get();
+            while (true) {
+                int index = (int) (pos & mask);
+                long diff = sequences.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        slots.set(index, entry);
+                        sequences.set(index, pos + 1);
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    // 缓冲区已满
+                    return false;
+                } else {
+                    pos = tail.get();
+                }
+            }
+        }
+
+        Entry poll() {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            Entry entry = slots.get(index);
+            slots.set(index, null);
+            sequences.set(index, head + mask + 1);
+            head++;
+            return entry;
+        }
+
+        boolean isEmpty() {
+            return sequences.get((int) (head & mask)) != head + 1;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * 把 OpenAI 格式的 messages 规范化为上游接受的格式
+ */
+public class MessageNormalizer {
+
+    /**
+     * 原地规范化 messages 数组
+     * <p>
+     * 数组形式的 content 会被拼接为字符串，其中的图片转换为 images 字段（base64 图片保存到 images 目录），
+     * 内容为空或类型不符合预期的消息会被移除。
+     *
+     * @param messages 请求中的 messages 数组
+     * @param baseURL  对外可访问的地址，用于构建上传图片的 URL
+     * @return 是否包含图片
+     * @throws IOException 保存图片失败
+     */
+    public static boolean normalize(JSONArray messages, String baseURL) throws IOException {
+        StringBuilder contentBuilder = new StringBuilder();
+        boolean hasImage = false;
+        String imageFilename;
+        String imageURL;
+
+        Iterator<Object> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            JSONObject message = (JSONObject) iterator.next();
+            if (message.has("content")) {
+                Object contentObj = message.get("content");
+                if (contentObj instanceof JSONArray contentArray) {
+                    for (int j = 0; j < contentArray.length(); j++) {
+                        JSONObject contentItem = contentArray.getJSONObject(j);
+                        if (contentItem.has("type")) {
+                            String type = contentItem.getString("type");
+                            if (type.equals("text") && contentItem.has("text")) {
+                                // 处理文本内容
+                                String text = contentItem.getString("text");
+                                contentBuilder.append(text);
+                                if (j < contentArray.length() - 1) {
+                                    contentBuilder.append(" ");
+                                }
+                            } else if (type.equals("image_url") && contentItem.has("image_url")) {
+                                // 处理图片内容
+                                JSONObject imageUrlObj = contentItem.getJSONObject("image_url");
+                                String dataUrl = imageUrlObj.getString("url");
+                                if (dataUrl.startsWith("data:image/")) {
+                                    // 处理 base64 编码的图片，边解码边写入 images 目录，相同内容复用同一文件
+                                    imageFilename = ImageStore.save(dataUrl);
+                                    // 构建可访问的 URL
+                                    imageURL = baseURL + "/images/" + imageFilename;
+                                    hasImage = true;
+                                    Log.debug("图片已保存: " + imageFilename + ", 可访问 URL: " + imageURL);
+                                } else {
+                                    // 处理标准 URL 的图片
+                                    imageURL = dataUrl;
+                                    hasImage = true;
+                                    if (Log.DEBUG) {
+                                        Log.debug("接收到标准图片 URL: " + imageURL);
+                                    }
+                                }
+
+                                // 在消息中添加 images 字段
+                                JSONArray imagesArray = new JSONArray();
+                                JSONObject imageObj = new JSONObject();
+                                imageObj.put("data", imageURL);
+                                imagesArray.put(imageObj);
+                                message.put("images", imagesArray);
+                            }
+                        }
+                    }
+
+                    // 处理完 contentArray 后，设置消息的 content 字段
+                    String extractedContent = contentBuilder.toString().trim();
+                    if (extractedContent.isEmpty() && !hasImage) {
+                        // 如果内容为空且没有图片，则移除该消息
+                        iterator.remove();
+                        Log.debug("移除内容为空的消息。");
+                    } else {
+                        // 否则，更新内容
+                        message.put("content", extractedContent);
+                        if (Log.DEBUG) {
+                            Log.debug("提取的内容: " + extractedContent);
+                        }
+                    }
+                } else if (contentObj instanceof String) {
+                    // 处理纯文本内容
+                    String contentStr = ((String) contentObj).trim();
+                    if (contentStr.isEmpty()) {
+                        iterator.remove();
+                        Log.debug("移除内容为空的消息。");
+                    } else {
+                        message.put("content", contentStr);
+                        if (Log.DEBUG) {
+                            Log.debug("保留的内容: " + contentStr);
+                        }
+                    }
+                } else {
+                    // 移除不符合预期类型的消息
+                    iterator.remove();
+                    Log.debug("移除非预期类型的消息。");
+                }
+            }
+        }
+        return hasImage;
+    }
+
+    /**
+     * 规范化后的 messages 中是否还有图片，上下文裁剪可能移除了所有带图片的消息
+     *
+     * @param messages 规范化后的 messages
+     * @return 是否有消息带有 images 字段
+     */
+    public static boolean hasImage(JSONArray messages) {
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject message = messages.optJSONObject(i);
+            JSONArray images = message == null ? null : message.optJSONArray("images");
+            if (images != null && !images.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 构建发往上游的请求 JSON
+     *
+     * @param model       模型名称
+     * @param maxTokens   max_tokens
+     * @param temperature temperature
+     * @param hasImage    是否包含图片
+     * @param messages    规范化后的 messages
+     * @return 上游请求 JSON
+     */
+    public static JSONObject buildUpstreamRequest(String model, int maxTokens, double temperature, boolean hasImage, JSONArray messages) {
+        JSONObject newRequestJson = new JSONObject();
+        newRequestJson.put("function_image_gen", false);
+        newRequestJson.put("function_web_search", true);
+        newRequestJson.put("max_tokens", maxTokens);
+        newRequestJson.put("model", model);
+        if (hasImage) {
+            newRequestJson.put("source", "chat/image_upload");
+        } else {
+            newRequestJson.put("source", "chat/free");
+        }
+        newRequestJson.put("temperature", temperature);
+        newRequestJson.put("messages", messages);
+        return newRequestJson;
+    }
+}
@@ -0,0 +1,240 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * 进程内的指标注册表，按 Prometheus 文本格式 (0.0.4) 输出
+ * <p>
+ * 计数器和直方图的每个桶都是 LongAdder，记录时不加锁，高并发下各线程写入不同的 cell；
+ * 同一组标签值对应的子指标只在第一次使用时创建，之后的查找是一次 ConcurrentHashMap.get。
+ * 热路径上标签值固定的指标应在初始化时调用 labels(...) 并保存结果。
+ * <p>
+ * 标签值应来自有限的集合（模型名已经过校验、状态码、处理器名），不要使用用户输入。
+ */
+public class Metrics {
+    public static final boolean ENABLED = Config.getBoolean("metrics.enabled", true);
+
+    // 请求级耗时（秒）
+    public static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+    // 进程内的短耗时（秒），如排队等待与 Token 生成
+    public static final double[] FAST_BUCKETS = {0.00001, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.05, 0.1, 0.5, 1};
+    // 每秒 token 数
+    public static final double[] RATE_BUCKETS = {1, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private static final Map<String, Collector> registry = new ConcurrentSkipListMap<>();
+
+    private interface Collector {
+        void write(StringBuilder out);
+    }
+
+    /**
+     * 注册带标签的计数器，同名指标已存在时返回已有的实例
+     */
+    public static Family<Counter> counter(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "counter", labelNames, labels -> new Counter()));
+    }
+
+    /**
+     * 注册带标签的直方图
+     *
+     * @param buckets 桶的上界，升序；+Inf 桶自动添加
+     */
+    public static Family<Histogram> histogram(String name, String help, double[] buckets, String... labelNames) {
+        return register(new Family<>(name, help, "histogram", labelNames, labels -> new Histogram(buckets)));
+    }
+
+    /**
+     * 注册在输出时读取的瞬时值，用于暴露已有的统计（并发数、缓存大小等）
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        register(new Sampled(name, help, "gauge", value));
+    }
+
+    /**
+     * 注册在输出时读取的累计值，用于暴露已有的 LongAdder 计数
+     */
+    public static void counterFunction(String name, String help, DoubleSupplier value) {
+        register(new Sampled(name, help, "counter", value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Collector> T register(T collector) {
+        String name = collector instanceof Family<?> family ? family.name : ((Sampled) collector).name;
+        Collector existing = registry.putIfAbsent(name, collector);
+        return existing != null ? (T) existing : collector;
+    }
+
+    /**
+     * @return 所有指标的 Prometheus 文本格式，按指标名排序
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Collector collector : registry.values()) {
+            collector.write(out);
+        }
+        return out.toString();
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private final double[] bounds;
+        // 非累计的桶计数，最后一个为 +Inf
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        /**
+         * 以秒为单位记录纳秒耗时
+         */
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 同名、同标签集合的一组指标
+     */
+    public static final class Family<T> implements Collector {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+        private final Function<List<String>, T> factory;
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labelNames, Function<List<String>, T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+            this.factory = factory;
+        }
+
+        /**
+         * @param values 与注册时的标签名一一对应
+         * @return 这组标签值对应的指标
+         */
+        public T labels(String... values) {
+            if (values.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " 需要 " + labelNames.length + " 个标签值，实际为 " + values.length);
+            }
+            List<String> key = List.of(values);
+            T child = children.get(key);
+            return child != null ? child : children.computeIfAbsent(key, factory);
+        }
+
+        @Override
+        public void write(StringBuilder out) {
+            if (children.isEmpty()) {
+                return;
+            }
+            header(out, name, help, type);
+            List<Map.Entry<List<String>, T>> entries = new ArrayList<>(children.entrySet());
+            entries.sort((a, b) -> String.join("\0", a.getKey()).compareTo(String.join("\0", b.getKey())));
+            for (Map.Entry<List<String>, T> entry : entries) {
+                List<String> values = entry.getKey();
+                if (entry.getValue() instanceof Counter counter) {
+                    sample(out, name, labelNames, values, null, counter.get());
+                } else if (entry.getValue() instanceof Histogram histogram) {
+                    long cumulative = 0;
+                    for (int i = 0; i < histogram.buckets.length; i++) {
+                        cumulative += histogram.buckets[i].sum();
+                        String le = i < histogram.bounds.length ? format(histogram.bounds[i]) : "+Inf";
+                        sample(out, name + "_bucket", labelNames, values, le, cumulative);
+                    }
+                    sample(out, name + "_sum", labelNames, values, null, histogram.sum.sum());
+                    sample(out, name + "_count", labelNames, values, null, cumulative);
+                }
+            }
+        }
+    }
+
+    private record Sampled(String name, String help, String type, DoubleSupplier value) implements Collector {
+        @Override
+        public void write(StringBuilder out) {
+            header(out, name, help, type);
+            sample(out, name, new String[0], List.of(), null, value.getAsDouble());
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String[] labelNames, List<String> values, String le, double value) {
+        out.append(name);
+        if (labelNames.length > 0 || le != null) {
+            out.append('{');
+            for (int i = 0; i < labelNames.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labelNames[i]).append("=\"").append(escape(values.get(i))).append('"');
+            }
+            if (le != null) {
+                out.append(labelNames.length > 0 ? "," : "").append("le=\"").append(le).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
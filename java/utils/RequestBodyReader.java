@@ -0,0 +1,131 @@
+package utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 请求体读取器
+ * <p>
+ * 一次性把请求体读入可复用的缓冲区，再直接交给 Jackson 流式解析器解析 UTF-8 字节，避免逐行拼接字符串与逐字符解码。
+ * 请求体大小受 request.max.bytes 限制（默认 32 MB），超过限制时抛出 {@link TooLargeException}。
+ * 缓冲区放在一个小的共享池中而不是 ThreadLocal 中，因为虚拟线程不会被复用。
+ */
+public class RequestBodyReader {
+    public static final int MAX_BYTES = Config.getInt("request.max.bytes", 32 * 1024 * 1024);
+    // 超过该大小的缓冲区用完后不放回池中，避免长期占用内存
+    private static final int RETAIN_BYTES = 1024 * 1024;
+    private static final int POOL_SIZE = 32;
+
+    private static final ConcurrentLinkedQueue<Buffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * 请求体超过大小限制
+     */
+    public static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(long limit) {
+            super("请求体超过大小限制 " + limit + " 字节");
+        }
+    }
+
+    /**
+     * 读取请求体并解析为 JSONObject
+     *
+     * @param exchange 当前的 HttpExchange 对象
+     * @return 解析后的 JSON 对象
+     * @throws TooLargeException 请求体超过大小限制
+     * @throws JSONException     请求体不是合法的 JSON 对象
+     * @throws IOException       读取失败
+     */
+    public static JSONObject readJson(HttpExchange exchange) throws IOException {
+        Buffer buffer = acquire();
+        try {
+            buffer.readFrom(exchange, MAX_BYTES);
+            return Json.parseObject(buffer.bytes(), 0, buffer.size());
+        } catch (JsonProcessingException e) {
+            // 与之前 JSONTokener 的异常类型保持一致，调用方按 JSONException 返回解析错误
+            throw new JSONException(e.getOriginalMessage(), e);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static Buffer acquire() {
+        Buffer buffer = pool.poll();
+        if (buffer == null) {
+            return new Buffer();
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    private static void release(Buffer buffer) {
+        if (buffer.capacity() > RETAIN_BYTES) {
+            return;
+        }
+        if (pooled.incrementAndGet() > POOL_SIZE) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.reset();
+        pool.offer(buffer);
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(16 * 1024);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        void readFrom(HttpExchange exchange, int limit) throws IOException {
+            reset();
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength != null) {
+                try {
+                    long length = Long.parseLong(contentLength.trim());
+                    if (length > limit) {
+                        throw new TooLargeException(limit);
+                    }
+                    // 预先扩容（多一个字节用于探测流结束），避免多次复制；
+                    // Content-Length 由客户端声明，预分配不超过 RETAIN_BYTES，更大的请求体在实际读到数据时再扩容
+                    if (length >= buf.length) {
+                        buf = new byte[(int) Math.min(length + 1, RETAIN_BYTES)];
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            InputStream is = exchange.getRequestBody();
+            while (true) {
+                if (count == buf.length) {
+                    buf = Arrays.copyOf(buf, (int) Math.min((long) buf.length * 2, (long) limit + 1));
+                }
+                int read = is.read(buf, count, buf.length - count);
+                if (read == -1) {
+                    break;
+                }
+                count += read;
+                if (count > limit) {
+                    throw new TooLargeException(limit);
+                }
+            }
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package utils;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * 单个请求的指标记录，按处理器、模型和是否流式打标签
+ * <p>
+ * 处理器在请求开始时创建，确定模型后调用 {@link #model(String, boolean)}，在 finally 中调用 {@link #finish(HttpExchange)}
+ * 记录状态码与总耗时。流式请求每转发一个内容 chunk 调用一次 {@link #tokens(int)}，用于统计上游首 token 延迟与输出速率。
+ * 只在处理请求的线程上使用，不需要同步。
+ */
+public class RequestMetrics {
+    private static final Metrics.Family<Metrics.Counter> REQUESTS = Metrics.counter("chaton_http_requests_total",
+            "已处理的请求数", "handler", "model", "stream", "status");
+    private static final Metrics.Family<Metrics.Histogram> DURATION = Metrics.histogram("chaton_http_request_duration_seconds",
+            "从收到请求到响应结束的耗时", Metrics.LATENCY_BUCKETS, "handler", "model", "stream");
+    private static final Metrics.Family<Metrics.Counter> RESPONSE_BYTES = Metrics.counter("chaton_http_response_bytes_total",
+            "写给客户端的响应体字节数", "handler", "model", "stream");
+    private static final Metrics.Family<Metrics.Counter> UPSTREAM_RESPONSES = Metrics.counter("chaton_upstream_responses_total",
+            "上游响应数，status 为 error 表示没有收到响应", "handler", "model", "stream", "status");
+    private static final Metrics.Family<Metrics.Histogram> FIRST_TOKEN = Metrics.histogram("chaton_upstream_first_token_seconds",
+            "从发出上游请求到转发第一个内容 chunk 的耗时", Metrics.LATENCY_BUCKETS, "handler", "model", "stream");
+    private static final Metrics.Family<Metrics.Counter> TOKENS = Metrics.counter("chaton_completion_chunks_total",
+            "转发或聚合的内容 chunk 数（约等于 token 数）", "handler", "model", "stream");
+    private static final Metrics.Family<Metrics.Histogram> TOKEN_RATE = Metrics.histogram("chaton_completion_tokens_per_second",
+            "流式请求从第一个到最后一个内容 chunk 之间的输出速率", Metrics.RATE_BUCKETS, "handler", "model", "stream");
+
+    private final String handler;
+    private final long startNanos = System.nanoTime();
+    private String model = "unknown";
+    private String stream = "false";
+    private long upstreamNanos;
+    private long firstTokenNanos;
+    private long lastTokenNanos;
+    private long tokens;
+    private long bytes;
+    private int promptTokens;
+    private int completionTokens;
+
+    /**
+     * @param handler 处理器名，例如 chat_completions
+     */
+    public RequestMetrics(String handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * 设置模型与是否流式，之后记录的指标都带上这两个标签
+     */
+    public RequestMetrics model(String model, boolean stream) {
+        this.model = model;
+        this.stream = stream ? "true" : "false";
+        return this;
+    }
+
+    /**
+     * 即将发出上游请求
+     */
+    public void upstreamStarted() {
+        upstreamNanos = System.nanoTime();
+    }
+
+    /**
+     * 记录上游响应状态码
+     */
+    public void upstreamStatus(int status) {
+        upstreamResponse(handler, model, stream.equals("true"), status);
+    }
+
+    /**
+     * 上游请求失败，没有收到响应
+     */
+    public void upstreamFailed() {
+        upstreamResponse(handler, model, stream.equals("true"), -1);
+    }
+
+    /**
+     * 不经过 RequestMetrics 实例的上游请求（例如并发的图像生成尝试）记录状态码
+     *
+     * @param status 上游状态码，小于 0 表示没有收到响应
+     */
+    public static void upstreamResponse(String handler, String model, boolean stream, int status) {
+        UPSTREAM_RESPONSES.labels(handler, model, stream ? "true" : "false", status < 0 ? "error" : String.valueOf(status)).inc();
+    }
+
+    /**
+     * 转发了 count 个内容 chunk；第一次调用时记录首 token 延迟
+     */
+    public void tokens(int count) {
+        if (count <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (tokens == 0) {
+            firstTokenNanos = now;
+            if (upstreamNanos != 0) {
+                FIRST_TOKEN.labels(handler, model, stream).observeNanos(now - upstreamNanos);
+            }
+        }
+        lastTokenNanos = now;
+        tokens += count;
+    }
+
+    /**
+     * 非流式请求聚合得到的 chunk 数，不参与首 token 延迟与速率统计
+     */
+    public void aggregatedTokens(int count) {
+        tokens += count;
+    }
+
+    public void responseBytes(long count) {
+        bytes += count;
+    }
+
+    /**
+     * @return 已记录的响应体字节数
+     */
+    public long totalBytes() {
+        return bytes;
+    }
+
+    /**
+     * 记录按 BPE 词表统计的 token 数，与返回给客户端的 usage 一致，用于按 API Key 计费
+     *
+     * @param promptTokens     messages 的 token 数
+     * @param completionTokens 回答的 token 数
+     */
+    public void usage(int promptTokens, int completionTokens) {
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+    }
+
+    public int promptTokens() {
+        return promptTokens;
+    }
+
+    public int completionTokens() {
+        return completionTokens;
+    }
+
+    /**
+     * @return 已记录的内容 chunk 数（约等于 token 数）
+     */
+    public long totalTokens() {
+        return tokens;
+    }
+
+    /**
+     * 请求结束，记录状态码与总耗时；响应头尚未发出时状态码记为 none
+     */
+    public void finish(HttpExchange exchange) {
+        int status = exchange.getResponseCode();
+        REQUESTS.labels(handler, model, stream, status < 0 ? "none" : String.valueOf(status)).inc();
+        DURATION.labels(handler, model, stream).observeNanos(System.nanoTime() - startNanos);
+        if (bytes > 0) {
+            RESPONSE_BYTES.labels(handler, model, stream).add(bytes);
+        }
+        if (tokens > 0) {
+            TOKENS.labels(handler, model, stream).add(tokens);
+        }
+        long streamingNanos = lastTokenNanos - firstTokenNanos;
+        if (tokens > 1 && streamingNanos > 0) {
+            TOKEN_RATE.labels(handler, model, stream).observe((tokens - 1) / (streamingNanos / 1e9));
+        }
+    }
+}
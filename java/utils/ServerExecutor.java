@@ -0,0 +1,129 @@
+package utils;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HttpServer 与所有处理器共用的执行器
+ * <p>
+ * 通过配置 executor.mode 选择执行模式：
+ * <ul>
+ *     <li>virtual（默认）：每个任务一个虚拟线程，阻塞式上游调用不占用平台线程</li>
+ *     <li>fixed：固定大小的平台线程池，大小由 executor.threads 指定（默认 10）</li>
+ *     <li>single：单线程，与旧版本行为一致</li>
+ * </ul>
+ * 执行器会统计当前并发任务数、峰值并发与已完成任务数，用于比较各模式实际达到的并发度。
+ * 设置 executor.report.seconds 大于 0 时会定期打印统计信息。
+ * 任务从提交到开始执行的等待时间记录在 chaton_executor_queue_wait_seconds 中。
+ */
+public class ServerExecutor {
+    public enum Mode {
+        VIRTUAL, FIXED, SINGLE
+    }
+
+    private static final Mode mode = parseMode(Config.get("executor.mode", "virtual"));
+    private static final int threads = Math.max(1, Config.getInt("executor.threads", 10));
+
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final AtomicInteger peak = new AtomicInteger();
+    private static final LongAdder submitted = new LongAdder();
+    private static final LongAdder completed = new LongAdder();
+    private static final Metrics.Histogram queueWait = Metrics.histogram("chaton_executor_queue_wait_seconds",
+            "任务从提交到开始执行的等待时间", Metrics.FAST_BUCKETS).labels();
+
+    private static final ExecutorService delegate = createDelegate();
+    private static final Executor executor = ServerExecutor::execute;
+
+    static {
+        long reportSeconds = Config.getLong("executor.report.seconds", 0);
+        if (reportSeconds > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "executor-report");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleAtFixedRate(() -> System.out.println(stats()), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats())));
+        Metrics.gauge("chaton_executor_active_tasks", "正在执行的任务数", active::get);
+        Metrics.counterFunction("chaton_executor_completed_tasks_total", "已完成的任务数", completed::sum);
+    }
+
+    /**
+     * @return 共享执行器
+     */
+    public static Executor get() {
+        return executor;
+    }
+
+    public static Mode mode() {
+        return mode;
+    }
+
+    public static int activeTasks() {
+        return active.get();
+    }
+
+    public static int peakTasks() {
+        return peak.get();
+    }
+
+    public static long submittedTasks() {
+        return submitted.sum();
+    }
+
+    public static long completedTasks() {
+        return completed.sum();
+    }
+
+    /**
+     * @return 当前执行模式与并发统计
+     */
+    public static String stats() {
+        String size = mode == Mode.FIXED ? "(" + threads + ")" : "";
+        return "执行器模式: " + mode.name().toLowerCase(Locale.ROOT) + size
+                + ", 当前并发: " + activeTasks()
+                + ", 峰值并发: " + peakTasks()
+                + ", 已提交: " + submittedTasks()
+                + ", 已完成: " + completedTasks();
+    }
+
+    private static void execute(Runnable task) {
+        submitted.increment();
+        long queuedAt = System.nanoTime();
+        delegate.execute(() -> {
+            queueWait.observeNanos(System.nanoTime() - queuedAt);
+            int now = active.incrementAndGet();
+            peak.accumulateAndGet(now, Math::max);
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                completed.increment();
+            }
+        });
+    }
+
+    private static ExecutorService createDelegate() {
+        return switch (mode) {
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("request-", 0).factory());
+            case FIXED -> Executors.newFixedThreadPool(threads);
+            case SINGLE -> Executors.newSingleThreadExecutor();
+        };
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("未知的执行器模式: " + value + "，使用 virtual");
+            return Mode.VIRTUAL;
+        }
+    }
+}
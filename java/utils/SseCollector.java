@@ -0,0 +1,94 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 非流式请求的 SSE 增量聚合器
+ * <p>
+ * 边读取上游响应边把 delta.content 追加到同一个 StringBuilder 中，不保留原始行，
+ * 单个请求的内存占用约等于最终回答的大小。读到 [DONE] 后停止读取并关闭上游流。
+ */
+public class SseCollector {
+    private final StringBuilder content = new StringBuilder();
+    private final List<String> imageUrls;
+    private int chunks;
+    private boolean done;
+
+    /**
+     * @param collectImages 是否同时收集 delta.images 中的图片 URL
+     */
+    public SseCollector(boolean collectImages) {
+        this.imageUrls = collectImages ? new ArrayList<>() : null;
+    }
+
+    /**
+     * 消费上游的 SSE 行直到 [DONE] 或流结束
+     *
+     * @param lines 上游响应体
+     * @return this
+     */
+    public SseCollector collect(Stream<String> lines) {
+        try (lines) {
+            Iterator<String> iterator = lines.iterator();
+            while (!done && iterator.hasNext()) {
+                accept(iterator.next());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 处理一行 SSE
+     *
+     * @param line 原始行
+     * @return 是否需要继续读取
+     */
+    public boolean accept(String line) {
+        if (done || !line.startsWith("data: ")) {
+            return !done;
+        }
+        String data = line.substring(6).trim();
+        if (data.equals("[DONE]")) {
+            done = true;
+            return false;
+        }
+        int before = content.length();
+        if (!SseEvent.appendDelta(data, content, imageUrls)) {
+            Log.warn("JSON解析错误: " + data);
+        } else if (content.length() > before) {
+            chunks++;
+        }
+        return true;
+    }
+
+    /**
+     * @return 拼接后的 content
+     */
+    public StringBuilder content() {
+        return content;
+    }
+
+    /**
+     * @return 收集到的图片 URL，未开启收集时为空列表
+     */
+    public List<String> imageUrls() {
+        return imageUrls != null ? imageUrls : List.of();
+    }
+
+    /**
+     * @return 带有内容的 chunk 数
+     */
+    public int chunks() {
+        return chunks;
+    }
+
+    /**
+     * @return 是否读到了 [DONE]
+     */
+    public boolean isDone() {
+        return done;
+    }
+}
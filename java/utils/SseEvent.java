@@ -0,0 +1,296 @@
+package utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 上游 SSE 事件的单次解析分类
+ * <p>
+ * 上游的 data 行分为以下几类：
+ * <ul>
+ *     <li>[DONE] 结束信号</li>
+ *     <li>需要过滤的 ping、analytics 和 operation 消息</li>
+ *     <li>包含联网搜索来源 (data.web.sources) 的消息</li>
+ *     <li>其余的 choices 内容消息，原样转发给客户端</li>
+ * </ul>
+ * 绝大多数事件是内容消息。只有在 data 中出现 "ping" 或 "data" 键名时才需要解析，
+ * 否则直接判定为内容消息，不做任何 JSON 解析；需要解析时也只用 Jackson 流式解析器顺序读取一遍。
+ */
+public class SseEvent {
+    public enum Type {
+        DONE, FILTERED, WEB_SOURCES, CONTENT, INVALID
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public static final SseEvent DONE = new SseEvent(Type.DONE, null, null);
+    public static final SseEvent FILTERED = new SseEvent(Type.FILTERED, null, null);
+    public static final SseEvent CONTENT = new SseEvent(Type.CONTENT, null, null);
+    public static final SseEvent INVALID = new SseEvent(Type.INVALID, null, null);
+
+    private final Type type;
+    private final List<String> urls;
+    private final String model;
+
+    private SseEvent(Type type, List<String> urls, String model) {
+        this.type = type;
+        this.urls = urls;
+        this.model = model;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    /**
+     * @return 联网搜索来源的 URL 列表，仅 WEB_SOURCES 类型有效
+     */
+    public List<String> urls() {
+        return urls;
+    }
+
+    /**
+     * @return 事件中的 model 字段，可能为 null
+     */
+    public String model() {
+        return model;
+    }
+
+    /**
+     * 对 "data: " 之后的内容进行分类
+     *
+     * @param data 去掉 "data: " 前缀并 trim 后的内容
+     * @return 分类结果
+     */
+    public static SseEvent classify(String data) {
+        return classify(data, null);
+    }
+
+    /**
+     * 对 "data: " 之后的内容进行分类，同时在同一遍解析中把 choices[].delta.content 追加到 content
+     * <p>
+     * 用于需要统计回答 token 数的请求（stream_options.include_usage）：此时内容消息也必须解析一次，
+     * 但每行只解析一遍；content 为 null 时与 {@link #classify(String)} 相同，内容消息不做解析。
+     *
+     * @param data    去掉 "data: " 前缀并 trim 后的内容
+     * @param content 内容输出，为 null 时不提取；结果不是 CONTENT 时不追加任何内容
+     * @return 分类结果
+     */
+    public static SseEvent classify(String data, StringBuilder content) {
+        if (data.equals("[DONE]")) {
+            return DONE;
+        }
+        // JSON 字符串内的引号必然被转义，因此未出现这两个带引号的键名时不可能是 ping 或 data 消息
+        if (!data.contains("\"ping\"") && !data.contains("\"data\"")) {
+            if (content != null) {
+                int start = content.length();
+                if (!appendContent(data, content)) {
+                    content.setLength(start);
+                }
+            }
+            return CONTENT;
+        }
+        int start = content != null ? content.length() : 0;
+        SseEvent event = classifyParsed(data, content);
+        if (content != null && event.type != Type.CONTENT) {
+            content.setLength(start);
+        }
+        return event;
+    }
+
+    private static SseEvent classifyParsed(String data, StringBuilder content) {
+        try (JsonParser parser = JSON_FACTORY.createParser(data)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return INVALID;
+            }
+            boolean hasData = false;
+            boolean analytics = false;
+            boolean operation = false;
+            boolean message = false;
+            boolean web = false;
+            List<String> urls = null;
+            String model = null;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals("ping")) {
+                    return FILTERED;
+                } else if (name.equals("model")) {
+                    model = value.isScalarValue() ? parser.getValueAsString() : null;
+                    parser.skipChildren();
+                } else if (name.equals("data")) {
+                    if (value != JsonToken.START_OBJECT) {
+                        return INVALID;
+                    }
+                    hasData = true;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String dataField = parser.currentName();
+                        JsonToken dataValue = parser.nextToken();
+                        switch (dataField) {
+                            case "analytics" -> analytics = true;
+                            case "operation" -> operation = true;
+                            case "message" -> message = true;
+                            case "web" -> {
+                                if (dataValue != JsonToken.START_OBJECT) {
+                                    return INVALID;
+                                }
+                                web = true;
+                                urls = readSources(parser);
+                                continue;
+                            }
+                            default -> {
+                            }
+                        }
+                        parser.skipChildren();
+                    }
+                } else if (content != null && name.equals("choices") && value == JsonToken.START_ARRAY) {
+                    readChoices(parser, content, null);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (hasData) {
+                if (analytics || (operation && message)) {
+                    return FILTERED;
+                }
+                if (web) {
+                    // 不包含 sources 的 web 消息不转发
+                    return urls == null ? FILTERED : new SseEvent(Type.WEB_SOURCES, urls, model);
+                }
+            }
+            return CONTENT;
+        } catch (IOException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * 读取 web 对象，返回 sources 中的 url 列表；解析器停在 web 对象的 END_OBJECT 上
+     */
+    private static List<String> readSources(JsonParser parser) throws IOException {
+        List<String> urls = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (name.equals("sources") && value == JsonToken.START_ARRAY) {
+                urls = new ArrayList<>();
+                JsonToken element;
+                while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+                    if (element != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        JsonToken fieldValue = parser.nextToken();
+                        if (field.equals("url") && fieldValue == JsonToken.VALUE_STRING) {
+                            urls.add(parser.getText());
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * 提取内容消息中所有 choices[].delta.content 并追加到 out
+     *
+     * @param data 去掉 "data: " 前缀并 trim 后的内容
+     * @param out  输出
+     * @return 是否解析成功
+     */
+    public static boolean appendContent(String data, StringBuilder out) {
+        return appendDelta(data, out, null);
+    }
+
+    /**
+     * 提取内容消息中所有 choices[].delta.content 与 choices[].delta.images[].data
+     *
+     * @param data   去掉 "data: " 前缀并 trim 后的内容
+     * @param out    content 输出
+     * @param images 图片 URL 输出，为 null 时忽略图片
+     * @return 是否解析成功
+     */
+    public static boolean appendDelta(String data, StringBuilder out, List<String> images) {
+        try (JsonParser parser = JSON_FACTORY.createParser(data)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return false;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals("choices") && value == JsonToken.START_ARRAY) {
+                    readChoices(parser, out, images);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 读取 choices 数组中每个 delta；解析器停在数组的 END_ARRAY 上
+     */
+    private static void readChoices(JsonParser parser, StringBuilder out, List<String> images) throws IOException {
+        JsonToken element;
+        while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+            if (element != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String choiceField = parser.currentName();
+                JsonToken choiceValue = parser.nextToken();
+                if (choiceField.equals("delta") && choiceValue == JsonToken.START_OBJECT) {
+                    readDelta(parser, out, images);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static void readDelta(JsonParser parser, StringBuilder out, List<String> images) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String deltaField = parser.currentName();
+            JsonToken deltaValue = parser.nextToken();
+            if (deltaField.equals("content") && deltaValue == JsonToken.VALUE_STRING) {
+                out.append(parser.getText());
+            } else if (images != null && deltaField.equals("images") && deltaValue == JsonToken.START_ARRAY) {
+                JsonToken element;
+                while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+                    if (element != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        JsonToken fieldValue = parser.nextToken();
+                        if (field.equals("data") && fieldValue == JsonToken.VALUE_STRING) {
+                            images.add(parser.getText());
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+}
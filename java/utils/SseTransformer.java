@@ -0,0 +1,545 @@
+package utils;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 把上游 SSE 消息转换为 OpenAI 格式的 chat.completion.chunk
+ * <p>
+ * 需要重新生成的 chunk 由 Jackson 生成器直接写入客户端输出流，识图消息用流式解析器读取一遍，
+ * 每个 token 不再构建 JSONObject；输出与之前逐字节相同（见 {@link Json}）。
+ */
+public class SseTransformer {
+    private static final byte[] EVENT_SEPARATOR = "\n\n".getBytes(StandardCharsets.UTF_8);
+    // 重放缓存回答时每个 chunk 的字符数
+    private static final int REPLAY_CHUNK_CHARS = 32;
+
+    /**
+     * 处理普通对话流式响应的一行：内容消息与 [DONE] 原样转发，web sources 转换后转发，其余消息丢弃
+     *
+     * @param line 上游的原始行
+     * @param os   客户端输出流
+     * @return 转发的内容 chunk 数
+     */
+    public static int relayLine(String line, OutputStream os) throws IOException {
+        return relayLine(line, os, null);
+    }
+
+    /**
+     * 同 {@link #relayLine(String, OutputStream)}，usage 不为 null 时在分类的同一遍解析中统计回答的 token 数，
+     * 并在 [DONE] 之前写出 usage chunk
+     *
+     * @param line  上游的原始行
+     * @param os    客户端输出流
+     * @param usage stream_options.include_usage 的统计状态，可以为 null
+     * @return 转发的内容 chunk 数
+     */
+    public static int relayLine(String line, OutputStream os, Usage usage) throws IOException {
+        // 只处理以 "data: " 开头的行
+        if (!line.startsWith("data: ")) {
+            return 0;
+        }
+
+        String data = line.substring(6).trim();
+        SseEvent event = SseEvent.classify(data, usage != null ? usage.buffer() : null);
+        switch (event.type()) {
+            case DONE, CONTENT -> {
+                if (usage != null) {
+                    if (event.type() == SseEvent.Type.DONE) {
+                        usage.write(os);
+                    } else {
+                        usage.count(usage.content);
+                    }
+                }
+                // 原样转发 [DONE] 信号和内容消息
+                os.write(line.getBytes(StandardCharsets.UTF_8));
+                os.write(EVENT_SEPARATOR);
+                os.flush();
+                return event.type() == SseEvent.Type.CONTENT ? 1 : 0;
+            }
+            // 处理包含 web sources 的消息
+            case WEB_SOURCES -> writeWebSources(event, os);
+            case INVALID -> Log.warn("JSON解析错误: " + data);
+            case FILTERED -> {
+                // 过滤掉 ping、analytics 等消息
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 处理识图流式响应的一行：内容与图片转换为 chunk 后转发，[DONE] 原样转发
+     *
+     * @param line 上游的原始行
+     * @param os   客户端输出流
+     * @return 写出的内容 chunk 数
+     */
+    public static int relayVisionLine(String line, OutputStream os) throws IOException {
+        return relayVisionLine(line, os, null);
+    }
+
+    /**
+     * 同 {@link #relayVisionLine(String, OutputStream)}，usage 不为 null 时用转换时解析出的内容统计回答的 token 数，
+     * 并在 [DONE] 之前写出 usage chunk
+     *
+     * @param line  上游的原始行
+     * @param os    客户端输出流
+     * @param usage stream_options.include_usage 的统计状态，可以为 null
+     * @return 写出的内容 chunk 数
+     */
+    public static int relayVisionLine(String line, OutputStream os, Usage usage) throws IOException {
+        if (!line.startsWith("data: ")) {
+            return 0;
+        }
+        String data = line.substring(6).trim();
+        if (data.equals("[DONE]")) {
+            if (usage != null) {
+                usage.write(os);
+            }
+            // 转发 [DONE] 信号
+            os.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            return 0;
+        }
+        try {
+            return writeVisionChunks(data, os, usage);
+        } catch (JsonProcessingException e) {
+            Log.warn("JSON解析错误: " + e.getOriginalMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * 把 web sources 消息转换为一个内容为来源 URL 列表的 chunk 并写出
+     *
+     * @param event 分类结果为 WEB_SOURCES 的事件
+     * @param os    客户端输出流
+     */
+    public static void writeWebSources(SseEvent event, OutputStream os) throws IOException {
+        String urlsList = String.join("\n\n", event.urls());
+        Log.debug("从 API 接收到的内容: " + urlsList);
+        // 构造新的 SSE 消息，填入 content 字段
+        String model = event.model() != null ? event.model() : "gpt-4o";
+        Json.writeEvent(os, gen -> {
+            gen.writeStartObject();
+            gen.writeNumberField("created", Instant.now().getEpochSecond());
+            Json.writeStringField(gen, "model", model);
+            gen.writeStringField("id", generateId());
+            gen.writeArrayFieldStart("choices");
+            gen.writeStartObject();
+            gen.writeNullField("finish_reason");
+            gen.writeObjectFieldStart("delta");
+            Json.writeStringField(gen, "content", "\n" + urlsList + "\n");
+            gen.writeEndObject();
+            gen.writeNumberField("index", 0);
+            gen.writeEndObject();
+            gen.writeEndArray();
+            gen.writeStringField("object", "chat.completion.chunk");
+            gen.writeEndObject();
+        });
+        os.flush();
+    }
+
+    /**
+     * 把识图请求的上游消息转换为 chunk 并写出，content 与每张图片各生成一个 chunk
+     *
+     * @param data 去掉 "data: " 前缀并 trim 后的内容
+     * @param os   客户端输出流
+     * @return 写出的 chunk 数
+     * @throws JsonProcessingException 上游消息不是合法 JSON
+     */
+    public static int writeVisionChunks(String data, OutputStream os) throws IOException {
+        return writeVisionChunks(data, os, null);
+    }
+
+    private static int writeVisionChunks(String data, OutputStream os, Usage usage) throws IOException {
+        VisionEvent event = VisionEvent.parse(data);
+        int written = 0;
+        for (VisionChoice choice : event.choices) {
+            // 处理 'content'，与之前的 getLong、getString 一致，created、id 类型不对时丢弃这条消息
+            if (choice.content() != null) {
+                if (event.badCreated || event.badId) {
+                    throw new JsonParseException(null, "created 或 id 的类型不正确");
+                }
+                writeVisionChunk(os,
+                        event.created != null ? event.created : Instant.now().getEpochSecond(),
+                        event.model,
+                        event.id != null ? event.id : UUID.randomUUID().toString(),
+                        choice.index(), choice.content());
+                written++;
+                if (usage != null) {
+                    usage.count(choice.content());
+                }
+            }
+
+            // 处理 'images'，假设 data 是可访问的 URL；与之前的 optLong、optString 一致，类型不对时使用默认值
+            for (String imageData : choice.images()) {
+                writeVisionChunk(os,
+                        event.created != null ? event.created : Instant.now().getEpochSecond(),
+                        event.model,
+                        event.idText != null ? event.idText : UUID.randomUUID().toString(),
+                        choice.index(), "[Image at " + imageData + "]");
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private static void writeVisionChunk(OutputStream os, long created, String model, String id, int index, String content)
+            throws IOException {
+        Json.writeEvent(os, gen -> {
+            gen.writeStartObject();
+            gen.writeNumberField("created", created);
+            Json.writeStringField(gen, "model", model);
+            Json.writeStringField(gen, "id", id);
+            gen.writeArrayFieldStart("choices");
+            gen.writeStartObject();
+            gen.writeObjectFieldStart("delta");
+            Json.writeStringField(gen, "content", content);
+            gen.writeEndObject();
+            gen.writeNumberField("index", index);
+            gen.writeEndObject();
+            gen.writeEndArray();
+            gen.writeStringField("system_fingerprint", "fp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12));
+            gen.writeEndObject();
+        });
+        os.flush();
+    }
+
+    /**
+     * 识图上游消息中的一个 choice
+     *
+     * @param index   choices[].index，缺省时为在数组中的位置
+     * @param content delta.content，没有时为 null
+     * @param images  delta.images[].data
+     */
+    private record VisionChoice(int index, String content, List<String> images) {
+    }
+
+    /**
+     * 识图上游消息中需要的字段，Jackson 流式解析一遍得到；created、id、model 可能出现在 choices 之后
+     */
+    private static final class VisionEvent {
+        // 数字或数字字符串
+        Long created;
+        boolean badCreated;
+        // 字符串类型的 id
+        String id;
+        // 标量 id 的文本
+        String idText;
+        boolean badId;
+        String model = "gpt-4o";
+        final List<VisionChoice> choices = new ArrayList<>(1);
+
+        static VisionEvent parse(String data) throws IOException {
+            VisionEvent event = new VisionEvent();
+            try (JsonParser parser = Json.FACTORY.createParser(data)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new JsonParseException(parser, "JSON 文本必须以 '{' 开头");
+                }
+                String name;
+                while ((name = parser.nextFieldName()) != null) {
+                    JsonToken value = parser.nextToken();
+                    switch (name) {
+                        case "created" -> {
+                            event.created = null;
+                            event.badCreated = false;
+                            if (value.isNumeric()) {
+                                event.created = parser.getValueAsLong();
+                            } else if (value == JsonToken.VALUE_STRING
+                                    && JSONObject.stringToValue(parser.getText()) instanceof Number number) {
+                                event.created = number.longValue();
+                            } else {
+                                event.badCreated = true;
+                                parser.skipChildren();
+                            }
+                        }
+                        case "id" -> {
+                            event.id = null;
+                            event.idText = scalarText(parser, value);
+                            event.badId = value != JsonToken.VALUE_STRING;
+                            if (!event.badId) {
+                                event.id = event.idText;
+                            }
+                        }
+                        case "model" -> {
+                            String model = scalarText(parser, value);
+                            event.model = model != null ? model : "gpt-4o";
+                        }
+                        case "choices" -> {
+                            if (value != JsonToken.START_ARRAY) {
+                                throw new JsonParseException(parser, "choices 不是数组");
+                            }
+                            JsonToken element;
+                            int position = 0;
+                            while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                                if (element != JsonToken.START_OBJECT) {
+                                    throw new JsonParseException(parser, "choices 的元素不是对象");
+                                }
+                                VisionChoice choice = readChoice(parser, position++);
+                                if (choice != null) {
+                                    event.choices.add(choice);
+                                }
+                            }
+                        }
+                        default -> parser.skipChildren();
+                    }
+                }
+            }
+            return event;
+        }
+
+        /**
+         * 与 optString 一致：字符串原样返回，数字为解析后 Number 的 toString，null 与对象、数组返回 null
+         */
+        private static String scalarText(JsonParser parser, JsonToken value) throws IOException {
+            if (value == JsonToken.VALUE_STRING || value == JsonToken.VALUE_TRUE || value == JsonToken.VALUE_FALSE) {
+                return parser.getText();
+            }
+            if (value.isNumeric()) {
+                return JSONObject.stringToValue(parser.getText()).toString();
+            }
+            parser.skipChildren();
+            return null;
+        }
+
+        /**
+         * @param position 在 choices 数组中的下标，index 缺省时使用
+         * @return 没有 delta 时为 null
+         */
+        private static VisionChoice readChoice(JsonParser parser, int position) throws IOException {
+            int index = position;
+            boolean hasDelta = false;
+            String content = null;
+            List<String> images = List.of();
+            String name;
+            while ((name = parser.nextFieldName()) != null) {
+                JsonToken value = parser.nextToken();
+                if (name.equals("index") && value.isNumeric()) {
+                    index = parser.getValueAsInt();
+                } else if (name.equals("delta") && value == JsonToken.START_OBJECT) {
+                    hasDelta = true;
+                    String field;
+                    while ((field = parser.nextFieldName()) != null) {
+                        JsonToken fieldValue = parser.nextToken();
+                        if (field.equals("content")) {
+                            if (fieldValue != JsonToken.VALUE_STRING) {
+                                throw new JsonParseException(parser, "delta.content 不是字符串");
+                            }
+                            content = parser.getText();
+                        } else if (field.equals("images")) {
+                            images = readImages(parser, fieldValue);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return hasDelta ? new VisionChoice(index, content, images) : null;
+        }
+
+        private static List<String> readImages(JsonParser parser, JsonToken value) throws IOException {
+            if (value != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "delta.images 不是数组");
+            }
+            List<String> images = new ArrayList<>(1);
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String data = null;
+                String name;
+                while ((name = parser.nextFieldName()) != null) {
+                    JsonToken fieldValue = parser.nextToken();
+                    if (name.equals("data") && fieldValue == JsonToken.VALUE_STRING) {
+                        data = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (data == null) {
+                    throw new JsonParseException(parser, "images[].data 不是字符串");
+                }
+                images.add(data);
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new JsonParseException(parser, "images 的元素不是对象");
+            }
+            return images;
+        }
+    }
+
+    /**
+     * 流式请求的 token 统计状态：转发时累计回答的 token 数；stream_options.include_usage 为 true 时
+     * 在转发 [DONE] 之前写出 choices 为空、带 usage 的 chunk。只能用于一次转发。
+     */
+    public static final class Usage {
+        private final String model;
+        private final int promptTokens;
+        private final boolean emit;
+        private final TokenCounter.Counter counter = TokenCounter.counter();
+        private final StringBuilder content = new StringBuilder();
+
+        /**
+         * @param model        使用的模型名称
+         * @param promptTokens messages 的 token 数
+         * @param emit         是否在 [DONE] 之前写出 usage chunk；为 false 时只统计（例如用于按 API Key 计费）
+         */
+        public Usage(String model, int promptTokens, boolean emit) {
+            this.model = model;
+            this.promptTokens = promptTokens;
+            this.emit = emit;
+        }
+
+        public int promptTokens() {
+            return promptTokens;
+        }
+
+        /**
+         * @return 到目前为止转发的回答的 token 数
+         */
+        public int completionTokens() {
+            return counter.total();
+        }
+
+        /**
+         * @return 清空后的内容缓冲区，交给 {@link SseEvent#classify(String, StringBuilder)} 在分类的同时提取内容
+         */
+        private StringBuilder buffer() {
+            content.setLength(0);
+            return content;
+        }
+
+        private void count(CharSequence text) {
+            if (!text.isEmpty()) {
+                counter.append(text);
+            }
+        }
+
+        private void write(OutputStream os) throws IOException {
+            if (!emit) {
+                return;
+            }
+            writeUsage("chatcmpl-" + generateId(), Instant.now().getEpochSecond(), model, promptTokens, counter.total(), os);
+        }
+    }
+
+    /**
+     * 写出流式响应最后的 usage chunk
+     *
+     * @param id               chunk 的 id
+     * @param created          创建时间（秒）
+     * @param model            使用的模型名称
+     * @param promptTokens     messages 的 token 数
+     * @param completionTokens 回答的 token 数
+     * @param os               客户端输出流
+     */
+    public static void writeUsage(String id, long created, String model, int promptTokens, int completionTokens,
+                                  OutputStream os) throws IOException {
+        Json.writeEvent(os, gen -> {
+            gen.writeStartObject();
+            gen.writeNumberField("created", created);
+            gen.writeFieldName("usage");
+            CompletionResponses.writeUsage(gen, promptTokens, completionTokens);
+            Json.writeStringField(gen, "model", model);
+            Json.writeStringField(gen, "id", id);
+            gen.writeArrayFieldStart("choices");
+            gen.writeEndArray();
+            gen.writeStringField("object", "chat.completion.chunk");
+            gen.writeEndObject();
+        });
+        os.flush();
+    }
+
+    /**
+     * 把缓存的完整回答按 chat.completion.chunk 格式重新以 SSE 输出，最后发送 finish_reason 为 stop 的 chunk 和 [DONE]
+     *
+     * @param model   使用的模型名称
+     * @param content 完整回答
+     * @param os      客户端输出流
+     */
+    public static void writeReplay(String model, String content, OutputStream os) throws IOException {
+        writeReplay(model, content, -1, os);
+    }
+
+    /**
+     * 同 {@link #writeReplay(String, String, OutputStream)}，promptTokens 不小于 0 时在 [DONE] 之前发送 usage chunk
+     *
+     * @param model        使用的模型名称
+     * @param content      完整回答
+     * @param promptTokens messages 的 token 数，小于 0 时不发送 usage
+     * @param os           客户端输出流
+     */
+    public static void writeReplay(String model, String content, int promptTokens, OutputStream os) throws IOException {
+        String id = "chatcmpl-" + generateId();
+        long created = Instant.now().getEpochSecond();
+        int start = 0;
+        while (start < content.length()) {
+            int end = Math.min(content.length(), start + REPLAY_CHUNK_CHARS);
+            // 不拆开代理对
+            if (end < content.length() && Character.isHighSurrogate(content.charAt(end - 1))) {
+                end--;
+            }
+            writeReplayChunk(id, created, model, content.substring(start, end), null, os);
+            start = end;
+        }
+        writeReplayChunk(id, created, model, null, "stop", os);
+        if (promptTokens >= 0) {
+            writeUsage(id, created, model, promptTokens, TokenCounter.count(content), os);
+        }
+        os.write("data: [DONE]".getBytes(StandardCharsets.UTF_8));
+        os.write(EVENT_SEPARATOR);
+        os.flush();
+    }
+
+    /**
+     * @param content      delta 中的内容，为 null 时 delta 为空对象
+     * @param finishReason 为 null 时写出 JSON null
+     */
+    private static void writeReplayChunk(String id, long created, String model, String content, String finishReason,
+                                         OutputStream os) throws IOException {
+        Json.writeEvent(os, gen -> {
+            gen.writeStartObject();
+            gen.writeNumberField("created", created);
+            Json.writeStringField(gen, "model", model);
+            Json.writeStringField(gen, "id", id);
+            gen.writeArrayFieldStart("choices");
+            gen.writeStartObject();
+            if (finishReason != null) {
+                gen.writeStringField("finish_reason", finishReason);
+            } else {
+                gen.writeNullField("finish_reason");
+            }
+            gen.writeObjectFieldStart("delta");
+            if (content != null) {
+                Json.writeStringField(gen, "content", content);
+            }
+            gen.writeEndObject();
+            gen.writeNumberField("index", 0);
+            gen.writeEndObject();
+            gen.writeEndArray();
+            gen.writeStringField("object", "chat.completion.chunk");
+            gen.writeEndObject();
+        });
+        os.flush();
+    }
+
+    /**
+     * 生成随机的 ID
+     *
+     * @return 长度为 24 的随机字符串
+     */
+    public static String generateId() {
+        return UUID.randomUUID().toString().replace("-", "").substring(0, 24);
+    }
+}
@@ -0,0 +1,242 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 流式响应的客户端输出流，决定何时把数据真正刷新到网络
+ * <p>
+ * sse.flush.mode 为 immediate（默认）时每个 chunk 写完立即 flush，延迟最低，但每个 token 都是一次系统调用和一个小 TCP 包；
+ * 为 coalesce 时，距上次 flush 超过 sse.flush.millis 的 chunk 仍立即发出（保证首个 token 的延迟），
+ * 窗口内的后续 chunk 先放在缓冲区中，到窗口结束或累积超过 sse.flush.bytes 时一起发出。
+ * 窗口结束时由后台定时器补发，最后一个 token 最多延迟一个窗口。
+ * <p>
+ * 定时器刷新失败（客户端已断开）时，异常会在下一次写入时抛出，由 {@link StreamRelay} 取消上游请求。
+ */
+public class SseWriter extends OutputStream {
+    public enum Mode {IMMEDIATE, COALESCE}
+
+    public static final Mode MODE = parseMode(Config.get("sse.flush.mode", "immediate"));
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Config.getLong("sse.flush.millis", 20)));
+    private static final int THRESHOLD_BYTES = Math.max(1, Config.getInt("sse.flush.bytes", 8 * 1024));
+
+    private static final LongAdder streams = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder flushRequests = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder timedFlushes = new LongAdder();
+
+    private static volatile ScheduledExecutorService timer;
+
+    private final OutputStream out;
+    private final Mode mode;
+    private final long windowNanos;
+    private final int thresholdBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private byte[] buffer;
+    private int count;
+    // 上次 flush 之后写入的字节数（包括缓冲区放不下而直接写出的部分）
+    private long pendingBytes;
+    private long lastFlushNanos;
+    // 本条流写入的总字节数，只由写入线程访问
+    private long written;
+    private boolean flushScheduled;
+    private boolean closed;
+    private IOException failure;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats())));
+        Metrics.counterFunction("chaton_sse_flushes_total", "SSE 输出流实际 flush 的次数", flushes::sum);
+    }
+
+    /**
+     * 按配置的模式包装客户端输出流
+     */
+    public static SseWriter create(OutputStream out) {
+        return new SseWriter(out, MODE, WINDOW_NANOS, THRESHOLD_BYTES);
+    }
+
+    public SseWriter(OutputStream out, Mode mode, long windowNanos, int thresholdBytes) {
+        this.out = out;
+        this.mode = mode;
+        this.windowNanos = windowNanos;
+        this.thresholdBytes = thresholdBytes;
+        this.lastFlushNanos = System.nanoTime() - windowNanos;
+        streams.increment();
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("未知的 sse.flush.mode: " + value + "，使用 immediate");
+            return Mode.IMMEDIATE;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        bytes.add(len);
+        written += len;
+        if (mode == Mode.IMMEDIATE) {
+            out.write(b, off, len);
+            return;
+        }
+        lock.lock();
+        try {
+            ensureOpen();
+            if (buffer == null) {
+                buffer = new byte[thresholdBytes];
+            }
+            if (len > buffer.length - count) {
+                drain();
+            }
+            if (len >= buffer.length) {
+                out.write(b, off, len);
+            } else {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+            pendingBytes += len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 一个 SSE 事件写完；immediate 模式立即刷新，coalesce 模式按时间窗口和字节阈值决定
+     */
+    @Override
+    public void flush() throws IOException {
+        flushRequests.increment();
+        if (mode == Mode.IMMEDIATE) {
+            out.flush();
+            flushes.increment();
+            return;
+        }
+        lock.lock();
+        try {
+            ensureOpen();
+            if (pendingBytes == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (pendingBytes >= thresholdBytes || now - lastFlushNanos >= windowNanos) {
+                flushNow();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                long delay = lastFlushNanos + windowNanos - now;
+                timer().schedule(() -> Thread.startVirtualThread(this::timedFlush), delay, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (failure == null && pendingBytes > 0) {
+                flushNow();
+            }
+        } finally {
+            lock.unlock();
+            out.close();
+        }
+    }
+
+    private void timedFlush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            if (closed || failure != null || pendingBytes == 0) {
+                return;
+            }
+            flushNow();
+            timedFlushes.increment();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushNow() throws IOException {
+        drain();
+        out.flush();
+        flushes.increment();
+        pendingBytes = 0;
+        lastFlushNanos = System.nanoTime();
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("输出流已关闭");
+        }
+    }
+
+    private static ScheduledExecutorService timer() {
+        ScheduledExecutorService t = timer;
+        if (t == null) {
+            synchronized (SseWriter.class) {
+                if (timer == null) {
+                    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "sse-flush-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                t = timer;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @return 本条流写入的总字节数
+     */
+    public long bytesWritten() {
+        return written;
+    }
+
+    public static long flushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * @return 输出模式、实际 flush 次数（约等于写系统调用次数）与每次 flush 的平均字节数
+     */
+    public static String stats() {
+        long f = flushes();
+        return "SSE 输出模式: " + MODE.name().toLowerCase(Locale.ROOT) + ", 流: " + streams.sum()
+                + ", 字节: " + bytes.sum() + ", 事件: " + flushRequests.sum() + ", flush: " + f
+                + " (定时 " + timedFlushes.sum() + "), 平均每次 " + (f == 0 ? 0 : bytes.sum() / f) + " 字节";
+    }
+}
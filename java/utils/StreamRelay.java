@@ -0,0 +1,112 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * 把上游 SSE 逐行转发给客户端，客户端断开时立即取消上游请求
+ * <p>
+ * 向客户端写入失败说明连接已断开，此时关闭上游的行流：HttpClient 会取消订阅并关闭连接（HTTP/2 下只重置该流），
+ * 上游不再继续生成，处理线程也随之释放。
+ * <p>
+ * 转发是同步拉取的：写入客户端阻塞时不会读取下一行，HttpClient 只保留少量已接收的缓冲区，
+ * 之后依靠 TCP / HTTP/2 流量控制让上游暂停发送，慢客户端不会导致数据在内存中无限堆积。
+ */
+public class StreamRelay {
+    private static final LongAdder streams = new LongAdder();
+    private static final LongAdder completed = new LongAdder();
+    private static final LongAdder cancelled = new LongAdder();
+    private static final LongAdder upstreamErrors = new LongAdder();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats())));
+        Metrics.counterFunction("chaton_stream_cancelled_total", "客户端断开后取消的上游流", cancelled::sum);
+        Metrics.counterFunction("chaton_stream_upstream_errors_total", "读取中途失败的上游流", upstreamErrors::sum);
+    }
+
+    /**
+     * 处理单行并写入客户端
+     */
+    @FunctionalInterface
+    public interface LineHandler {
+        void accept(String line, OutputStream os) throws IOException;
+    }
+
+    /**
+     * 一次转发的结果
+     */
+    public enum Outcome {
+        // 上游正常结束
+        COMPLETED,
+        // 客户端断开，上游已取消
+        CANCELLED,
+        // 读取上游时出错
+        UPSTREAM_ERROR
+    }
+
+    /**
+     * 转发上游的所有行，直到上游结束、上游出错或客户端断开
+     *
+     * @param lines   上游响应体，返回前一定会被关闭
+     * @param os      客户端输出流
+     * @param handler 逐行处理函数，例如 SseTransformer::relayLine
+     * @return 是否完整转发；返回 false 时客户端连接已不可用
+     */
+    public static boolean relay(Stream<String> lines, OutputStream os, LineHandler handler) {
+        return relayOutcome(lines, os, handler) == Outcome.COMPLETED;
+    }
+
+    /**
+     * 与 {@link #relay} 相同，但区分客户端断开与上游出错；上游出错且客户端还没有收到数据时可以重试
+     */
+    public static Outcome relayOutcome(Stream<String> lines, OutputStream os, LineHandler handler) {
+        streams.increment();
+        try (lines) {
+            Iterator<String> iterator = lines.iterator();
+            while (iterator.hasNext()) {
+                String line = iterator.next();
+                try {
+                    handler.accept(line, os);
+                } catch (IOException e) {
+                    cancelled.increment();
+                    Log.info("客户端已断开，取消上游请求: " + e.getMessage());
+                    return Outcome.CANCELLED;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            upstreamErrors.increment();
+            Log.warn("读取上游响应失败: " + e.getMessage());
+            return Outcome.UPSTREAM_ERROR;
+        }
+        completed.increment();
+        return Outcome.COMPLETED;
+    }
+
+    public static long streams() {
+        return streams.sum();
+    }
+
+    public static long completed() {
+        return completed.sum();
+    }
+
+    public static long cancelled() {
+        return cancelled.sum();
+    }
+
+    public static long upstreamErrors() {
+        return upstreamErrors.sum();
+    }
+
+    /**
+     * @return 流式转发统计
+     */
+    public static String stats() {
+        return "流式转发: " + streams() + ", 完成: " + completed() + ", 客户端断开取消: " + cancelled()
+                + ", 上游中断: " + upstreamErrors();
+    }
+}
@@ -0,0 +1,411 @@
+package utils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * BPE token 计数，用于响应中的 usage
+ * <p>
+ * 词表为 tiktoken 格式（每行 "base64 编码的 token 空格 rank"），通过 tokenizer.vocab.file 指定，
+ * 例如 cl100k_base.tiktoken 或 o200k_base.tiktoken；tokenizer.encoding 选择对应的预分词正则。
+ * 词表文件启动时以内存映射方式读取一次，所有 token 的字节存放在一个连续数组中，按开放寻址的 int 哈希表查找，
+ * 查找时直接比较字节区间，不创建 String 或 byte[]。
+ * <p>
+ * 计数时先按正则切分片段，再把片段编码为 UTF-8 并按 rank 做 BPE 合并，只统计合并后的数量；
+ * 片段缓冲区与合并用的数组在同一个 {@link Counter} 内复用，逐片段计数不分配内存。
+ * 没有配置词表（或加载失败）时退化为按片段估算：ASCII 片段约 4 个字符一个 token，其他字符一个字符一个 token。
+ * <p>
+ * 流式回答用 {@link #counter()} 逐 chunk 追加，已确定的片段立即计数，只保留最后一个可能继续增长的片段。
+ */
+public class TokenCounter {
+    // cl100k_base 与 o200k_base 的预分词正则
+    private static final String CL100K_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}"
+            + "| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    private static final String O200K_PATTERN = "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+
+    private static final Pattern PATTERN = Pattern.compile(
+            "o200k_base".equals(Config.get("tokenizer.encoding", "cl100k_base")) ? O200K_PATTERN : CL100K_PATTERN,
+            Pattern.UNICODE_CHARACTER_CLASS);
+    private static final Vocab VOCAB = loadVocab(Config.get("tokenizer.vocab.file", ""));
+
+    // 每条消息的格式开销 (<|start|>role<|message|>...<|end|>) 与回复的起始标记，按 OpenAI 的计算方式
+    private static final int TOKENS_PER_MESSAGE = 3;
+    private static final int TOKENS_PER_NAME = 1;
+    static final int REPLY_PRIMING_TOKENS = 3;
+    // 低清晰度图片的固定 token 数
+    private static final int TOKENS_PER_IMAGE = 85;
+
+    /**
+     * @return 是否加载了词表；为 false 时计数是估算值
+     */
+    public static boolean exact() {
+        return VOCAB != null;
+    }
+
+    /**
+     * @return 文本的 token 数
+     */
+    public static int count(CharSequence text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        Counter counter = new Counter();
+        counter.append(text);
+        return counter.total();
+    }
+
+    /**
+     * 规范化后的 messages 的 prompt token 数：每条消息的 role、content、name 与格式开销，图片按固定值计
+     */
+    public static int countMessages(JSONArray messages) {
+        if (messages == null) {
+            return 0;
+        }
+        Counter counter = new Counter();
+        int total = REPLY_PRIMING_TOKENS;
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject message = messages.optJSONObject(i);
+            if (message != null) {
+                total += countMessage(message, counter);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 单条消息的 token 数，包括格式开销；messages 的总数为各条之和加 {@link #REPLY_PRIMING_TOKENS}
+     *
+     * @param message 规范化后的消息
+     * @param counter 用于复用缓冲区的计数器
+     */
+    static int countMessage(JSONObject message, Counter counter) {
+        int before = counter.total();
+        int overhead = TOKENS_PER_MESSAGE;
+        counter.appendPiece(message.optString("role", ""));
+        counter.appendPiece(message.optString("content", ""));
+        if (message.has("name")) {
+            overhead += TOKENS_PER_NAME;
+            counter.appendPiece(message.optString("name", ""));
+        }
+        JSONArray images = message.optJSONArray("images");
+        if (images != null) {
+            overhead += TOKENS_PER_IMAGE * images.length();
+        }
+        return counter.total() - before + overhead;
+    }
+
+    /**
+     * @return 新的增量计数器，只能在一个线程中使用
+     */
+    public static Counter counter() {
+        return new Counter();
+    }
+
+    /**
+     * 增量计数器：追加的文本按片段计数，最后一个片段留到下一次追加或 {@link #total()} 时再计数
+     */
+    public static final class Counter {
+        private final StringBuilder pending = new StringBuilder();
+        private final Matcher matcher = PATTERN.matcher(pending);
+        private byte[] bytes = new byte[256];
+        private int[] parts = new int[257];
+        private int[] ranks = new int[257];
+        private int counted;
+
+        private Counter() {
+        }
+
+        /**
+         * 追加一段流式输出的文本
+         */
+        public Counter append(CharSequence text) {
+            pending.append(text);
+            matcher.reset();
+            // 最后两个片段都可能随后续文本变化：o200k 中 "I" 与 "'" 在追加 "m" 后会合并为 "I'm"
+            int start = 0;
+            int end = 0;
+            int lastStart = 0;
+            int lastEnd = 0;
+            while (matcher.find()) {
+                // 之后还有两个新的片段，它已经不会再变化
+                counted += countPiece(pending, start, end);
+                start = lastStart;
+                end = lastEnd;
+                lastStart = matcher.start();
+                lastEnd = matcher.end();
+            }
+            pending.delete(0, start);
+            return this;
+        }
+
+        /**
+         * 追加一段独立的文本，不与前后的文本合并成同一个片段
+         */
+        Counter appendPiece(CharSequence text) {
+            append(text);
+            flush();
+            return this;
+        }
+
+        /**
+         * @return 到目前为止的 token 数，包括尚未确定的最后一个片段
+         */
+        public int total() {
+            flush();
+            return counted;
+        }
+
+        private void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            matcher.reset();
+            while (matcher.find()) {
+                counted += countPiece(pending, matcher.start(), matcher.end());
+            }
+            pending.setLength(0);
+        }
+
+        private int countPiece(CharSequence text, int start, int end) {
+            if (end <= start) {
+                return 0;
+            }
+            if (VOCAB == null) {
+                return estimate(text, start, end);
+            }
+            int length = encode(text, start, end);
+            if (length == 1 || VOCAB.rank(bytes, 0, length) >= 0) {
+                return 1;
+            }
+            return bytePairCount(length);
+        }
+
+        /**
+         * 把片段编码为 UTF-8 写入 bytes
+         *
+         * @return 字节数
+         */
+        private int encode(CharSequence text, int start, int end) {
+            int needed = (end - start) * 3;
+            if (bytes.length < needed) {
+                bytes = new byte[Math.max(needed, bytes.length * 2)];
+            }
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    bytes[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[n++] = (byte) (0xC0 | (c >> 6));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    bytes[n++] = (byte) (0xF0 | (cp >> 18));
+                    bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    bytes[n++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // 孤立的代理字符按 U+FFFD 编码，与 String.getBytes 一致
+                    bytes[n++] = (byte) 0xEF;
+                    bytes[n++] = (byte) 0xBF;
+                    bytes[n++] = (byte) 0xBD;
+                } else {
+                    bytes[n++] = (byte) (0xE0 | (c >> 12));
+                    bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[n++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return n;
+        }
+
+        /**
+         * 与 tiktoken 相同的合并过程：每次合并 rank 最小的相邻两段，直到没有可合并的段
+         *
+         * @return 合并后的段数
+         */
+        private int bytePairCount(int length) {
+            if (parts.length < length + 1) {
+                parts = new int[length + 1];
+                ranks = new int[length + 1];
+            }
+            int n = length + 1;
+            for (int i = 0; i < n; i++) {
+                parts[i] = i;
+            }
+            // ranks[i] 为 parts[i] 到 parts[i + 2] 这一段的 rank，不存在时为 MAX_VALUE
+            for (int i = 0; i < n - 2; i++) {
+                ranks[i] = pairRank(i, i + 2, n);
+            }
+            ranks[n - 2] = Integer.MAX_VALUE;
+            ranks[n - 1] = Integer.MAX_VALUE;
+            while (n > 2) {
+                int min = Integer.MAX_VALUE;
+                int at = -1;
+                for (int i = 0; i < n - 2; i++) {
+                    if (ranks[i] < min) {
+                        min = ranks[i];
+                        at = i;
+                    }
+                }
+                if (at < 0) {
+                    break;
+                }
+                ranks[at] = pairRank(at, at + 3, n);
+                if (at > 0) {
+                    ranks[at - 1] = pairRank(at - 1, at + 2, n);
+                }
+                System.arraycopy(parts, at + 2, parts, at + 1, n - at - 2);
+                System.arraycopy(ranks, at + 2, ranks, at + 1, n - at - 2);
+                n--;
+            }
+            return n - 1;
+        }
+
+        private int pairRank(int from, int to, int n) {
+            if (to >= n) {
+                return Integer.MAX_VALUE;
+            }
+            int rank = VOCAB.rank(bytes, parts[from], parts[to]);
+            return rank < 0 ? Integer.MAX_VALUE : rank;
+        }
+    }
+
+    private static int estimate(CharSequence text, int start, int end) {
+        int ascii = 0;
+        int other = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                ascii++;
+            } else if (!Character.isLowSurrogate(c)) {
+                other++;
+            }
+        }
+        return (ascii + 3) / 4 + other;
+    }
+
+    /**
+     * tiktoken 词表：token 字节连续存放，哈希表保存 token 下标 + 1
+     */
+    private static final class Vocab {
+        private final byte[] arena;
+        private final int[] offsets;
+        private final int[] ranks;
+        private final int[] table;
+        private final int mask;
+
+        Vocab(byte[] arena, int[] offsets, int[] ranks, int size) {
+            this.arena = arena;
+            this.offsets = offsets;
+            this.ranks = ranks;
+            int capacity = Integer.highestOneBit(Math.max(2, size * 2) - 1) << 1;
+            this.table = new int[capacity];
+            this.mask = capacity - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = hash(arena, offsets[i], offsets[i + 1]) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+        }
+
+        /**
+         * @return bytes[from, to) 的 rank，不在词表中时为 -1
+         */
+        int rank(byte[] bytes, int from, int to) {
+            int slot = hash(bytes, from, to) & mask;
+            int length = to - from;
+            while (true) {
+                int entry = table[slot];
+                if (entry == 0) {
+                    return -1;
+                }
+                int index = entry - 1;
+                int offset = offsets[index];
+                if (offsets[index + 1] - offset == length
+                        && Arrays.equals(arena, offset, offset + length, bytes, from, to)) {
+                    return ranks[index];
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static int hash(byte[] bytes, int from, int to) {
+            int h = 0x811C9DC5;
+            for (int i = from; i < to; i++) {
+                h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private static Vocab loadVocab(String file) {
+        if (file.isBlank()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Base64.Decoder decoder = Base64.getDecoder();
+            int limit = buffer.limit();
+            // 解码后的 token 不会比 base64 文本长
+            byte[] arena = new byte[limit];
+            int[] offsets = new int[1024];
+            int[] ranks = new int[1024];
+            int size = 0;
+            int used = 0;
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int space = -1;
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    if (space < 0 && buffer.get(lineEnd) == ' ') {
+                        space = lineEnd;
+                    }
+                    lineEnd++;
+                }
+                if (space > lineStart) {
+                    if (size + 1 >= offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        ranks = Arrays.copyOf(ranks, ranks.length * 2);
+                    }
+                    byte[] token = decoder.decode(buffer.slice(lineStart, space - lineStart)).array();
+                    int rank = 0;
+                    for (int i = space + 1; i < lineEnd; i++) {
+                        byte b = buffer.get(i);
+                        if (b >= '0' && b <= '9') {
+                            rank = rank * 10 + (b - '0');
+                        }
+                    }
+                    offsets[size] = used;
+                    System.arraycopy(token, 0, arena, used, token.length);
+                    used += token.length;
+                    ranks[size] = rank;
+                    size++;
+                }
+                lineStart = lineEnd + 1;
+            }
+            offsets[size] = used;
+            Vocab vocab = new Vocab(Arrays.copyOf(arena, used), offsets, ranks, size);
+            System.out.println("已加载 BPE 词表 " + file + ": " + size + " 个 token, 耗时 "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return vocab;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("加载 BPE 词表失败，token 数改为估算: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package utils;
+
+/**
+ * 一次性 Bearer Token 的生成后端
+ */
+public interface TokenProvider {
+    /**
+     * @return 后端名称
+     */
+    String name();
+
+    /**
+     * 为上游请求体生成 Token
+     *
+     * @param jsonBody 发往上游的请求体
+     * @return tmpToken[0] 为 Authorization，tmpToken[1] 为 Date
+     */
+    String[] getBearer(String jsonBody);
+}
@@ -0,0 +1,188 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token 生成后端的选择与耗时统计
+ * <p>
+ * 通过配置 token.backend 选择后端：
+ * <ul>
+ *     <li>java（默认）：{@link BearerTokenGenerator}</li>
+ *     <li>native：通过 JNI 调用 {@link BearerTokenGeneratorNative}</li>
+ *     <li>stub：根据请求体生成确定性的假 Token，仅用于测试和本地压测</li>
+ * </ul>
+ * 返回的后端会记录调用次数、失败次数、累计耗时和最大耗时，耗时分布同时记录在 chaton_token_generation_seconds 中。
+ * 签名算法本身不在本仓库中，如果后端能够缓存派生出的密钥材料，应在后端内部完成，调用方无需改动。
+ */
+public class TokenProviders {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private static final Metrics.Family<Metrics.Histogram> GENERATION_SECONDS = Metrics.histogram(
+            "chaton_token_generation_seconds", "生成一次 Bearer Token 的耗时", Metrics.FAST_BUCKETS, "backend");
+    private static final Metrics.Family<Metrics.Counter> GENERATION_FAILURES = Metrics.counter(
+            "chaton_token_generation_failures_total", "生成 Bearer Token 失败的次数", "backend");
+
+    private static final TimedTokenProvider provider = timed(create(Config.get("token.backend", "java")));
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(provider.stats())));
+    }
+
+    /**
+     * @return 配置的 Token 生成后端
+     */
+    public static TimedTokenProvider get() {
+        return provider;
+    }
+
+    /**
+     * 按名称创建后端
+     *
+     * @param name java、native 或 stub
+     * @return 未包装统计的后端
+     */
+    public static TokenProvider create(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "native" -> new NativeTokenProvider();
+            case "stub" -> new StubTokenProvider();
+            case "java" -> new JavaTokenProvider();
+            default -> {
+                System.err.println("未知的 Token 后端: " + name + "，使用 java");
+                yield new JavaTokenProvider();
+            }
+        };
+    }
+
+    /**
+     * 为后端加上耗时统计
+     */
+    public static TimedTokenProvider timed(TokenProvider delegate) {
+        return delegate instanceof TimedTokenProvider timed ? timed : new TimedTokenProvider(delegate);
+    }
+
+    public static class JavaTokenProvider implements TokenProvider {
+        @Override
+        public String name() {
+            return "java";
+        }
+
+        @Override
+        public String[] getBearer(String jsonBody) {
+            return BearerTokenGenerator.GetBearer(jsonBody);
+        }
+    }
+
+    public static class NativeTokenProvider implements TokenProvider {
+        @Override
+        public String name() {
+            return "native";
+        }
+
+        @Override
+        public String[] getBearer(String jsonBody) {
+            return BearerTokenGeneratorNative.GetBearer(jsonBody);
+        }
+    }
+
+    /**
+     * 确定性的假 Token：Authorization 为请求体的 SHA-256，Date 固定为纪元时间
+     */
+    public static class StubTokenProvider implements TokenProvider {
+        private static final String DATE = HTTP_DATE.format(Instant.EPOCH.atOffset(ZoneOffset.UTC));
+
+        @Override
+        public String name() {
+            return "stub";
+        }
+
+        @Override
+        public String[] getBearer(String jsonBody) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(jsonBody.getBytes(StandardCharsets.UTF_8));
+                return new String[]{"Bearer stub." + HexFormat.of().formatHex(hash), DATE};
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * 记录调用次数与耗时的包装
+     */
+    public static class TimedTokenProvider implements TokenProvider {
+        private final TokenProvider delegate;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final Metrics.Histogram histogram;
+        private final Metrics.Counter failureCounter;
+
+        TimedTokenProvider(TokenProvider delegate) {
+            this.delegate = delegate;
+            this.histogram = GENERATION_SECONDS.labels(delegate.name());
+            this.failureCounter = GENERATION_FAILURES.labels(delegate.name());
+        }
+
+        @Override
+        public String name() {
+            return delegate.name();
+        }
+
+        @Override
+        public String[] getBearer(String jsonBody) {
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                String[] token = delegate.getBearer(jsonBody);
+                ok = true;
+                return token;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                calls.increment();
+                totalNanos.add(elapsed);
+                maxNanos.accumulateAndGet(elapsed, Math::max);
+                histogram.observeNanos(elapsed);
+                if (!ok) {
+                    failures.increment();
+                    failureCounter.inc();
+                }
+            }
+        }
+
+        public long calls() {
+            return calls.sum();
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @return 后端名称、调用次数与平均/最大耗时
+         */
+        public String stats() {
+            long n = calls();
+            double avgMicros = n == 0 ? 0 : totalNanos() / 1000.0 / n;
+            return String.format(Locale.ROOT, "Token 后端: %s, 调用: %d, 失败: %d, 平均: %.1fus, 最大: %.1fus",
+                    name(), n, failures(), avgMicros, maxNanos() / 1000.0);
+        }
+    }
+}
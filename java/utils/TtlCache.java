@@ -0,0 +1,200 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 带过期时间和容量上限的异步结果缓存
+ * <p>
+ * 条目存放在 ConcurrentHashMap 中，查找不需要全局锁。相同 key 的并发请求只会触发一次加载 (single-flight)，
+ * 其余请求等待同一个 CompletableFuture。加载失败或结果不满足 cacheable 条件时条目被移除，下次请求重新加载。
+ * 超过容量时先清理过期条目，仍然超出则按最近访问时间淘汰最旧的条目，一次降到容量的 90%，
+ * 全表扫描的开销分摊到之后的约 10% 次未命中上，而不是每次未命中都扫描。
+ *
+ * @param <K> 键类型
+ * @param <V> 值类型
+ */
+public class TtlCache<K, V> {
+    private final String name;
+    private final int maxEntries;
+    // 淘汰后的目标条目数
+    private final int lowWater;
+    private final long ttlMillis;
+    private final Predicate<V> cacheable;
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry<V> {
+        final CompletableFuture<V> future;
+        // 加载完成前为 Long.MAX_VALUE
+        volatile long expiresAt = Long.MAX_VALUE;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        Entry(CompletableFuture<V> future) {
+            this.future = future;
+        }
+    }
+
+    /**
+     * 淘汰候选，lastAccess 取扫描时的快照，排序期间不会变化
+     */
+    private record Candidate<K, V>(K key, Entry<V> entry, long lastAccess) {
+    }
+
+    /**
+     * @param name       缓存名称，用于统计输出
+     * @param maxEntries 最大条目数
+     * @param ttlMillis  加载完成后的保留时间
+     * @param cacheable  判断加载结果是否可以缓存
+     */
+    public TtlCache(String name, int maxEntries, long ttlMillis, Predicate<V> cacheable) {
+        this.name = name;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.lowWater = this.maxEntries - Math.max(1, this.maxEntries / 10);
+        this.ttlMillis = ttlMillis;
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * 读取缓存，不存在或已过期时调用 loader 加载
+     *
+     * @param key    键
+     * @param loader 加载函数，同一个 key 同时只会调用一次
+     * @return 缓存的结果或正在进行的加载
+     */
+    public CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> loader) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= now) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry != null) {
+            entry.lastAccess = now;
+            if (entry.future.isDone()) {
+                hits.increment();
+            } else {
+                joins.increment();
+            }
+            return entry.future;
+        }
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        Entry<V> created = new Entry<>(future);
+        Entry<V> existing = entries.putIfAbsent(key, created);
+        if (existing != null) {
+            // 另一个请求刚刚开始加载
+            joins.increment();
+            existing.lastAccess = now;
+            return existing.future;
+        }
+        misses.increment();
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+
+        CompletableFuture<V> loading;
+        try {
+            loading = loader.get();
+        } catch (RuntimeException e) {
+            loading = CompletableFuture.failedFuture(e);
+        }
+        loading.whenComplete((value, error) -> {
+            if (error != null || !cacheable.test(value)) {
+                entries.remove(key, created);
+            } else {
+                created.expiresAt = System.currentTimeMillis() + ttlMillis;
+            }
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(value);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 清理过期条目，仍超过 lowWater 时按最近访问时间淘汰最旧的已完成条目；同一时间只有一个线程执行清理
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            List<Candidate<K, V>> candidates = new ArrayList<>(entries.size());
+            Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, Entry<V>> e = iterator.next();
+                Entry<V> entry = e.getValue();
+                if (entry.expiresAt <= now) {
+                    iterator.remove();
+                    evictions.increment();
+                } else if (entry.future.isDone()) {
+                    // 正在进行的加载不淘汰
+                    candidates.add(new Candidate<>(e.getKey(), entry, entry.lastAccess));
+                }
+            }
+            int excess = entries.size() - lowWater;
+            if (excess <= 0) {
+                return;
+            }
+            candidates.sort(Comparator.comparingLong(Candidate::lastAccess));
+            for (int i = 0; i < candidates.size() && excess > 0; i++) {
+                Candidate<K, V> candidate = candidates.get(i);
+                if (entries.remove(candidate.key(), candidate.entry())) {
+                    evictions.increment();
+                    excess--;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long joins() {
+        return joins.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return 命中、未命中、合并的并发请求与淘汰统计
+     */
+    public String stats() {
+        long lookups = hits() + misses() + joins();
+        String hitRate = lookups == 0 ? "N/A" : String.format(Locale.ROOT, "%.1f%%", 100.0 * (hits() + joins()) / lookups);
+        return name + " 条目: " + size() + ", 命中: " + hits() + ", 未命中: " + misses() + ", 合并请求: " + joins()
+                + ", 命中率: " + hitRate + ", 淘汰: " + evictions();
+    }
+}
@@ -0,0 +1,267 @@
+package utils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLSession;
+
+/**
+ * 所有上游请求共用的 HttpClient
+ * <p>
+ * 优先使用 HTTP/2（upstream.http2），同一主机的并发请求复用一条连接；HTTP/1.1 时由 JDK 连接池复用连接，
+ * 池大小和空闲保活时间通过 upstream.pool.size、upstream.keepalive.seconds 设置。
+ * 连接超时为 upstream.connect.timeout.seconds，等待响应头的超时为 upstream.timeout.seconds。
+ * 客户端的回调运行在独立的守护线程池中，不占用请求处理线程。
+ * <p>
+ * 启动时可通过 {@link #warmUp()} 预先完成 DNS、TCP 与 TLS 握手，避免第一个请求承担建连开销。
+ * JDK 不暴露连接池信息，连接复用情况按 TLS 会话近似统计：不同 TLS 会话的数量约等于建立的连接数。
+ * 等待响应头的耗时分布记录在 chaton_upstream_headers_seconds 中。
+ * 只有 /chats/stream 的响应会反馈给 {@link AdmissionController}（由 {@link UpstreamRetry} 与图像生成的尝试负责），
+ * storage 查询、图片下载与预热请求不影响对话的并发上限。
+ */
+public class UpstreamClient {
+    public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(Config.getLong("upstream.connect.timeout.seconds", 10));
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(Config.getLong("upstream.timeout.seconds", 60));
+    private static final boolean HTTP2 = Config.getBoolean("upstream.http2", true);
+    private static final int THREADS = Math.max(1, Config.getInt("upstream.threads", Math.max(2, Runtime.getRuntime().availableProcessors())));
+    // 最多记录的 TLS 会话数，超过后不再计入新连接
+    private static final int MAX_TRACKED_SESSIONS = 10_000;
+
+    private static final LongAdder requests = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder http2Responses = new LongAdder();
+    private static final LongAdder headerNanos = new LongAdder();
+    private static final AtomicLong maxHeaderNanos = new AtomicLong();
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final AtomicInteger peakInFlight = new AtomicInteger();
+    private static final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private static final Metrics.Histogram headerSeconds = Metrics.histogram("chaton_upstream_headers_seconds",
+            "从发出上游请求到收到响应头的耗时", Metrics.LATENCY_BUCKETS).labels();
+
+    private static final HttpClient CLIENT;
+
+    static {
+        // JDK 连接池参数只在 HttpClient 首次初始化时读取，必须在创建客户端之前设置
+        setIfAbsent("jdk.httpclient.connectionPoolSize", Config.get("upstream.pool.size", null));
+        setIfAbsent("jdk.httpclient.keepalive.timeout", Config.get("upstream.keepalive.seconds", null));
+
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "upstream-io-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        CLIENT = HttpClient.newBuilder()
+                .version(HTTP2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(executor)
+                .build();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats())));
+        Metrics.gauge("chaton_upstream_in_flight", "正在等待的上游请求数", inFlight::get);
+        Metrics.counterFunction("chaton_upstream_failures_total", "没有收到响应的上游请求数", failures::sum);
+        Metrics.gauge("chaton_upstream_connections", "近似的已建立连接数（不同 TLS 会话数）", sessions::size);
+    }
+
+    private static void setIfAbsent(String property, String value) {
+        if (value != null && System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    /**
+     * @return 共享的 HttpClient
+     */
+    public static HttpClient client() {
+        return CLIENT;
+    }
+
+    /**
+     * 创建带默认超时的请求构建器
+     *
+     * @param url 请求地址
+     * @return HttpRequest.Builder
+     */
+    public static HttpRequest.Builder newRequest(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(REQUEST_TIMEOUT);
+    }
+
+    /**
+     * 同步发送请求并记录统计
+     */
+    public static <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        long start = begin();
+        try {
+            HttpResponse<T> response = CLIENT.send(request, handler);
+            record(response, start);
+            return response;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            failures.increment();
+            throw e;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 异步发送请求并记录统计
+     * <p>
+     * 取消返回的 future 会中止还没有收到响应头的请求；取消后才到达的响应，可关闭的响应体（如 ofLines 的 Stream）会被关闭。
+     */
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        long start = begin();
+        CompletableFuture<HttpResponse<T>> exchange = CLIENT.sendAsync(request, handler);
+        // 统计放在 exchange 自己的回调里：取消依赖的 future 会跳过依赖上的回调
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        exchange.whenComplete((response, error) -> {
+            inFlight.decrementAndGet();
+            if (error != null) {
+                if (!(error instanceof CancellationException)) {
+                    failures.increment();
+                }
+                result.completeExceptionally(error);
+                return;
+            }
+            record(response, start);
+            if (!result.complete(response) && response.body() instanceof AutoCloseable body) {
+                try {
+                    body.close();
+                } catch (Exception ignored) {
+                    // 调用方已放弃该响应
+                }
+            }
+        });
+        result.whenComplete((response, error) -> {
+            if (error instanceof CancellationException) {
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 预热到上游的连接，不等待结果，失败只打印日志
+     * <p>
+     * HTTP/2 下一条连接即可承载所有并发请求；HTTP/1.1 下会并发发出 upstream.warmup.connections 个请求以填充连接池。
+     */
+    public static void warmUp() {
+        if (!Config.getBoolean("upstream.warmup", true)) {
+            return;
+        }
+        int connections = Math.max(1, Config.getInt("upstream.warmup.connections", HTTP2 ? 1 : 4));
+        HttpRequest request = newRequest(utils.UPSTREAM_BASE + "/")
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (error != null) {
+                    System.err.println("上游连接预热失败: " + error.getMessage());
+                } else {
+                    System.out.println("上游连接预热完成: " + response.version() + ", 耗时 " + millis + " ms");
+                }
+            });
+        }
+    }
+
+    private static long begin() {
+        requests.increment();
+        int current = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(current, Math::max);
+        return System.nanoTime();
+    }
+
+    private static void record(HttpResponse<?> response, long start) {
+        long elapsed = System.nanoTime() - start;
+        headerNanos.add(elapsed);
+        headerSeconds.observeNanos(elapsed);
+        maxHeaderNanos.accumulateAndGet(elapsed, Math::max);
+        if (response.version() == HttpClient.Version.HTTP_2) {
+            http2Responses.increment();
+        }
+        response.sslSession().ifPresent(UpstreamClient::trackSession);
+    }
+
+    /**
+     * 解析 Retry-After 响应头，支持秒数和 HTTP 日期两种格式
+     */
+    public static OptionalLong retryAfterSeconds(HttpResponse<?> response) {
+        Optional<String> header = response.headers().firstValue("Retry-After");
+        if (header.isEmpty()) {
+            return OptionalLong.empty();
+        }
+        String value = header.get().trim();
+        try {
+            return OptionalLong.of(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            try {
+                long at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                return OptionalLong.of(Math.max(0, at - System.currentTimeMillis() / 1000));
+            } catch (DateTimeParseException ignored) {
+                return OptionalLong.empty();
+            }
+        }
+    }
+
+    private static void trackSession(SSLSession session) {
+        if (sessions.size() < MAX_TRACKED_SESSIONS) {
+            sessions.add(HexFormat.of().formatHex(session.getId()) + "@" + session.getCreationTime());
+        }
+    }
+
+    public static long requests() {
+        return requests.sum();
+    }
+
+    public static long failures() {
+        return failures.sum();
+    }
+
+    public static long http2Responses() {
+        return http2Responses.sum();
+    }
+
+    /**
+     * @return 近似的已建立连接数（不同 TLS 会话数），非 TLS 连接无法统计时为 0
+     */
+    public static int connections() {
+        return sessions.size();
+    }
+
+    /**
+     * @return 请求数、失败数、HTTP/2 占比、近似连接复用率和等待响应头的耗时
+     */
+    public static String stats() {
+        long total = requests();
+        long succeeded = total - failures();
+        int connections = connections();
+        String reuse = connections == 0 || succeeded == 0 ? "N/A"
+                : String.format(Locale.ROOT, "%.1f%%", 100.0 * Math.max(0, succeeded - connections) / succeeded);
+        long avgMicros = succeeded == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(headerNanos.sum() / succeeded);
+        return "上游请求: " + total + ", 失败: " + failures() + ", HTTP/2: " + http2Responses()
+                + ", 峰值并发: " + peakInFlight.get() + ", 近似连接数: " + connections + ", 连接复用率: " + reuse
+                + ", 响应头平均耗时: " + avgMicros + "us, 最大耗时: " + TimeUnit.NANOSECONDS.toMicros(maxHeaderNanos.get()) + "us";
+    }
+}
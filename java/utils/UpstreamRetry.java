@@ -0,0 +1,386 @@
+package utils;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.OptionalLong;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 上游请求的重试、对冲与重试预算
+ * <p>
+ * 一次逻辑请求（{@link Call}）最多发出 retry.max.attempts 次上游请求。连接失败、超时或上游返回 429/5xx 时，
+ * 按指数退避加全抖动等待后重试：等待时间在 0 到 min(retry.backoff.max.millis, retry.backoff.millis * 2^(n-1)) 之间随机。
+ * 上游带 Retry-After 时至少等待该时长，超过 retry.backoff.max.millis 时不再重试，由处理器把 429 转发给客户端。
+ * 每次尝试都重新生成请求，包括一次性的 Bearer Token。
+ * <p>
+ * 重试预算是全局的：每个逻辑请求存入 retry.budget.ratio 个，每次重试或对冲取出 1 个，最多积累 retry.budget.max 个。
+ * 上游整体故障时重试量因此不超过请求量的固定比例，不会把故障放大成重试风暴。
+ * <p>
+ * 非流式请求可以开启对冲 (retry.hedge.enabled)：等待响应头的时间超过最近 1024 次上游响应头耗时的
+ * retry.hedge.percentile 分位时，再发出一个相同的请求，先收到响应头的一方胜出，另一方被取消。
+ * 对冲只针对响应头，上游生成回答本身的耗时不会触发对冲。流式请求由处理器在客户端收到第一个字节之前调用
+ * {@link Call#retry(String)} 重新发起。
+ */
+public class UpstreamRetry {
+    public static final int MAX_ATTEMPTS = Math.max(1, Config.getInt("retry.max.attempts", 3));
+    public static final boolean HEDGE_ENABLED = Config.getBoolean("retry.hedge.enabled", false);
+    private static final long BACKOFF_MILLIS = Math.max(1, Config.getLong("retry.backoff.millis", 100));
+    private static final long MAX_BACKOFF_MILLIS = Math.max(BACKOFF_MILLIS, Config.getLong("retry.backoff.max.millis", 2000));
+    private static final double HEDGE_PERCENTILE = Math.min(0.999, Math.max(0.5, Config.getDouble("retry.hedge.percentile", 0.95)));
+    private static final int HEDGE_MIN_SAMPLES = Math.max(1, Config.getInt("retry.hedge.min.samples", 50));
+    // 重试预算以千分之一为单位
+    private static final long BUDGET_DEPOSIT = Math.round(Math.max(0, Config.getDouble("retry.budget.ratio", 0.2)) * 1000);
+    private static final long BUDGET_MAX = Math.round(Math.max(1, Config.getDouble("retry.budget.max", 50)) * 1000);
+
+    private static final AtomicLong budget = new AtomicLong(BUDGET_MAX);
+    private static final LatencyWindow headerLatency = new LatencyWindow(1024);
+
+    private static final Metrics.Family<Metrics.Counter> RETRIES = Metrics.counter("chaton_upstream_retries_total",
+            "上游请求的重试次数，reason 为触发重试的状态码、io（没有收到响应）或 stream（读取响应体时出错）", "handler", "reason");
+    private static final Metrics.Family<Metrics.Counter> EXHAUSTED = Metrics.counter("chaton_upstream_retries_exhausted_total",
+            "需要重试但已达到最大尝试次数或重试预算不足的次数", "handler");
+    private static final Metrics.Family<Metrics.Counter> HEDGES = Metrics.counter("chaton_upstream_hedges_total",
+            "对冲请求数，result 为 won（对冲请求先收到响应头）、lost 或 denied（预算不足未发出）", "handler", "result");
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats())));
+        Metrics.gauge("chaton_upstream_retry_budget", "当前可用的重试预算", () -> budget.get() / 1000.0);
+        Metrics.gauge("chaton_upstream_hedge_threshold_seconds", "触发对冲的响应头等待时间，样本不足时为 -1",
+                () -> {
+                    long threshold = headerLatency.percentile(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+                    return threshold < 0 ? -1 : threshold / 1e9;
+                });
+    }
+
+    /**
+     * 开始一次逻辑请求，并向重试预算存入 retry.budget.ratio 个
+     *
+     * @param handler  处理器名，用作指标标签
+     * @param requests 每次尝试调用一次，生成新的上游请求
+     * @param metrics  当前请求的指标，每次尝试记录上游状态码与首 token 的起点；可以为 null
+     */
+    public static Call call(String handler, Supplier<HttpRequest> requests, RequestMetrics metrics) {
+        deposit();
+        return new Call(handler, requests, metrics);
+    }
+
+    /**
+     * 不经过 {@link Call} 的请求（例如并发的图像生成尝试）每发出一个初始请求存入一次预算
+     */
+    public static void deposit() {
+        if (BUDGET_DEPOSIT > 0) {
+            budget.updateAndGet(v -> Math.min(BUDGET_MAX, v + BUDGET_DEPOSIT));
+        }
+    }
+
+    /**
+     * 为一次重试取出预算并计数
+     *
+     * @param handler 处理器名
+     * @param reason  重试原因
+     * @return 预算不足时返回 false，此时不应重试
+     */
+    public static boolean tryRetry(String handler, String reason) {
+        if (!withdraw()) {
+            EXHAUSTED.labels(handler).inc();
+            return false;
+        }
+        RETRIES.labels(handler, reason).inc();
+        return true;
+    }
+
+    /**
+     * @param retry 第几次重试，从 1 开始
+     * @return 重试前等待的毫秒数，带全抖动
+     */
+    public static long backoffMillis(int retry) {
+        long ceiling = BACKOFF_MILLIS << Math.min(20, Math.max(0, retry - 1));
+        return ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF_MILLIS, ceiling) + 1);
+    }
+
+    /**
+     * 上游状态码是否值得重试
+     */
+    public static boolean retryable(int status) {
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    private static boolean withdraw() {
+        while (true) {
+            long current = budget.get();
+            if (current < 1000) {
+                return false;
+            }
+            if (budget.compareAndSet(current, current - 1000)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 一次逻辑请求的重试状态，只在处理请求的线程上使用
+     */
+    public static final class Call {
+        private final String handler;
+        private final Supplier<HttpRequest> requests;
+        private final RequestMetrics metrics;
+        private int attempts;
+
+        private Call(String handler, Supplier<HttpRequest> requests, RequestMetrics metrics) {
+            this.handler = handler;
+            this.requests = requests;
+            this.metrics = metrics;
+        }
+
+        /**
+         * 发送上游请求，连接失败或返回可重试的状态码时按退避重试
+         *
+         * @param bodyHandler 响应体处理器
+         * @param discard     丢弃不使用的响应体，例如 Stream::close
+         * @param hedge       是否允许对冲，只应用于客户端看不到中间过程的非流式请求
+         * @return 最后一次尝试的响应，状态码可能不是 200
+         * @throws IOException 最后一次尝试没有收到响应
+         */
+        public <T> HttpResponse<T> send(HttpResponse.BodyHandler<T> bodyHandler, Consumer<T> discard, boolean hedge)
+                throws IOException, InterruptedException {
+            while (true) {
+                HttpResponse<T> response;
+                try {
+                    response = hedge && HEDGE_ENABLED ? sendHedged(bodyHandler, discard) : sendOnce(bodyHandler);
+                } catch (IOException e) {
+                    if (!retry("io")) {
+                        throw e;
+                    }
+                    Log.warn("上游请求失败，已重试 " + attempts + " 次: " + e.getMessage());
+                    continue;
+                }
+                int status = response.statusCode();
+                if (retryable(status)) {
+                    OptionalLong retryAfter = UpstreamClient.retryAfterSeconds(response);
+                    long minDelay = TimeUnit.SECONDS.toMillis(retryAfter.orElse(0));
+                    // 上游要求等待的时间超过退避上限时不再重试，由处理器转发 Retry-After
+                    if (minDelay <= MAX_BACKOFF_MILLIS && mayRetry(String.valueOf(status))) {
+                        // 先释放上游连接再等待
+                        discard.accept(response.body());
+                        Log.warn("上游返回 " + status + "，已重试 " + attempts + " 次");
+                        backoff(minDelay);
+                        continue;
+                    }
+                }
+                return response;
+            }
+        }
+
+        /**
+         * 读取上游响应体时出错，客户端尚未收到任何数据，准备重新发起请求
+         *
+         * @param reason 重试原因，用作指标标签
+         * @return 是否可以重试；返回 true 时已完成退避等待
+         */
+        public boolean retry(String reason) throws InterruptedException {
+            if (!mayRetry(reason)) {
+                return false;
+            }
+            backoff(0);
+            return true;
+        }
+
+        private boolean mayRetry(String reason) {
+            if (attempts >= MAX_ATTEMPTS) {
+                EXHAUSTED.labels(handler).inc();
+                return false;
+            }
+            return tryRetry(handler, reason);
+        }
+
+        private void backoff(long minDelayMillis) throws InterruptedException {
+            Thread.sleep(Math.max(minDelayMillis, backoffMillis(attempts)));
+        }
+
+        private <T> HttpResponse<T> sendOnce(HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+            long start = started();
+            try {
+                return received(UpstreamClient.send(requests.get(), bodyHandler), start);
+            } catch (IOException | InterruptedException e) {
+                failed();
+                throw e;
+            }
+        }
+
+        /**
+         * 超过响应头耗时的分位数仍未收到响应头时发出对冲请求，返回先收到的响应
+         */
+        private <T> HttpResponse<T> sendHedged(HttpResponse.BodyHandler<T> bodyHandler, Consumer<T> discard)
+                throws IOException, InterruptedException {
+            long threshold = headerLatency.percentile(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+            if (threshold < 0) {
+                return sendOnce(bodyHandler);
+            }
+            long start = started();
+            CompletableFuture<HttpResponse<T>> primary = UpstreamClient.sendAsync(requests.get(), bodyHandler);
+            try {
+                return received(primary.get(threshold, TimeUnit.NANOSECONDS), start);
+            } catch (TimeoutException e) {
+                // 超过阈值，准备对冲
+            } catch (ExecutionException e) {
+                failed();
+                throw unwrap(e);
+            } catch (InterruptedException e) {
+                primary.cancel(true);
+                failed();
+                throw e;
+            }
+            if (!withdraw()) {
+                HEDGES.labels(handler, "denied").inc();
+                return received(await(primary), start);
+            }
+            CompletableFuture<HttpResponse<T>> hedge = UpstreamClient.sendAsync(requests.get(), bodyHandler);
+            CompletableFuture<Winner<T>> first = new CompletableFuture<>();
+            AtomicInteger failures = new AtomicInteger();
+            primary.whenComplete((response, error) -> settle(first, response, false, error, failures, discard));
+            hedge.whenComplete((response, error) -> settle(first, response, true, error, failures, discard));
+            try {
+                Winner<T> winner = await(first);
+                HEDGES.labels(handler, winner.hedge() ? "won" : "lost").inc();
+                return received(winner.response(), start);
+            } catch (IOException | InterruptedException e) {
+                failed();
+                throw e;
+            } finally {
+                // 取消仍在等待响应头的一方；已完成的一方不受影响，输掉的响应体在 settle 中丢弃
+                primary.cancel(true);
+                hedge.cancel(true);
+            }
+        }
+
+        private long started() {
+            attempts++;
+            if (metrics != null) {
+                metrics.upstreamStarted();
+            }
+            return System.nanoTime();
+        }
+
+        private <T> HttpResponse<T> received(HttpResponse<T> response, long start) {
+            headerLatency.record(System.nanoTime() - start);
+            // 状态码与 Retry-After 用于调整 /chats/stream 的并发上限
+            AdmissionController.get().onUpstreamResponse(response.statusCode(), UpstreamClient.retryAfterSeconds(response));
+            if (metrics != null) {
+                metrics.upstreamStatus(response.statusCode());
+            }
+            return response;
+        }
+
+        private void failed() {
+            if (metrics != null) {
+                metrics.upstreamFailed();
+            }
+        }
+    }
+
+    private record Winner<T>(HttpResponse<T> response, boolean hedge) {
+    }
+
+    private static <T> void settle(CompletableFuture<Winner<T>> first, HttpResponse<T> response, boolean hedge,
+                                   Throwable error, AtomicInteger failures, Consumer<T> discard) {
+        if (error == null) {
+            if (!first.complete(new Winner<>(response, hedge))) {
+                discard.accept(response.body());
+            }
+        } else if (failures.incrementAndGet() == 2) {
+            first.completeExceptionally(error);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        while (cause instanceof ExecutionException || cause instanceof CompletionException) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof IOException io) {
+            return io;
+        }
+        if (cause instanceof CancellationException) {
+            return new IOException("上游请求已取消", cause);
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * 最近若干次上游响应头耗时的滑动窗口，分位数每秒最多重新计算一次
+     */
+    private static final class LatencyWindow {
+        private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final AtomicLongArray samples;
+        private final AtomicLong count = new AtomicLong();
+        private volatile long refreshedAt = System.nanoTime() - REFRESH_NANOS;
+        private volatile long cached = -1;
+
+        LatencyWindow(int size) {
+            samples = new AtomicLongArray(size);
+        }
+
+        void record(long nanos) {
+            samples.set((int) (count.getAndIncrement() % samples.length()), nanos);
+        }
+
+        /**
+         * @return 纳秒，样本数不足 minSamples 时为 -1
+         */
+        long percentile(double p, int minSamples) {
+            long now = System.nanoTime();
+            if (now - refreshedAt < REFRESH_NANOS) {
+                return cached;
+            }
+            int n = (int) Math.min(count.get(), samples.length());
+            long value = -1;
+            if (n >= minSamples) {
+                long[] sorted = new long[n];
+                for (int i = 0; i < n; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                value = sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+            }
+            // 并发刷新时只是重复计算，不影响结果
+            cached = value;
+            refreshedAt = now;
+            return value;
+        }
+    }
+
+    /**
+     * @return 重试预算与对冲阈值
+     */
+    public static String stats() {
+        long threshold = headerLatency.percentile(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+        return String.format(Locale.ROOT, "上游重试 预算: %.1f, 对冲阈值: %s", budget.get() / 1000.0,
+                threshold < 0 ? "N/A" : TimeUnit.NANOSECONDS.toMillis(threshold) + "ms");
+    }
+}
@@ -5,11 +5,14 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.URI;
 import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
 
 public class utils {
+    /**
+     * 上游 ChatOn 服务地址，可通过 upstream.base 指向本地的模拟服务进行压测
+     */
+    public static final String UPSTREAM_BASE = stripTrailingSlash(Config.get("upstream.base", "https://api.chaton.ai"));
 
     /**
      * 构建通用的 HttpRequest
@@ -19,8 +22,7 @@ public class utils {
      * @return 构建好的 HttpRequest 对象
      */
     public static HttpRequest buildHttpRequest(String modifiedRequestBody, String[] tmpToken) {
-        return HttpRequest.newBuilder()
-                .uri(URI.create("https://api.chaton.ai/chats/stream"))
+        return UpstreamClient.newRequest(UPSTREAM_BASE + "/chats/stream")
                 .header("Date", tmpToken[1])
                 .header("Client-time-zone", "-05:00")
                 .header("Authorization", tmpToken[0])
@@ -36,17 +38,36 @@ public class utils {
      * 发送错误响应
      */
     public static void sendError(HttpExchange exchange, String message) {
+        sendError(exchange, 500, message);
+    }
+
+    /**
+     * 发送指定状态码的错误响应
+     */
+    public static void sendError(HttpExchange exchange, int statusCode, String message) {
         try {
             JSONObject error = new JSONObject();
             error.put("error", message);
             byte[] bytes = error.toString().getBytes(StandardCharsets.UTF_8);
             exchange.getResponseHeaders().add("Content-Type", "application/json");
-            exchange.sendResponseHeaders(500, bytes.length);
+            exchange.sendResponseHeaders(statusCode, bytes.length);
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(bytes);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("发送错误响应失败: " + e.getMessage());
         }
     }
+
+    /**
+     * 返回 429，并通过 Retry-After 告知客户端等待的秒数
+     */
+    public static void sendTooManyRequests(HttpExchange exchange, long retryAfterSeconds, String message) {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(Math.max(1, retryAfterSeconds)));
+        sendError(exchange, 429, message);
+    }
+
+    private static String stripTrailingSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
 }